@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * TCP ack filter used by SFQCodel on enqueue (like CAKE ack-filter).
+ * Each flow remembers its last queued pure ack, when a new pure ack makes it redundant
+ * the new ack replaces the queued one in place and the old ack is dropped.
+ */
+public interface AckFilter {
+    /**
+     * @return true if p is a pure ack : no payload and no SYN/FIN/RST or options which must be delivered
+     */
+    boolean isPureAck(Packet p);
+
+    /**
+     * @return true if newer is for the same connection and acknowledges at least what queued does
+     */
+    boolean isRedundant(Packet queued, Packet newer);
+}
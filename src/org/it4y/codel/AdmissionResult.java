@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * Result of SFQCodel.offer(), reusable holder so offer() does not allocate.
+ */
+public class AdmissionResult {
+    /* packet queued, flow is not congested */
+    public static final int ACCEPTED=0;
+    /* packet queued, but flow sojourn time is above target or queue is near its limit : slow down */
+    public static final int ACCEPTED_CONGESTED=1;
+    /* queue was full, a packet of this flow was dropped (head drop, may not be the offered packet) */
+    public static final int DROPPED_OVERFLOW=2;
+    /* consumer is stalled, queue sheds load (see SFQCodel.setStallWatchdog) */
+    public static final int DROPPED_STALL=3;
+
+    public int status;
+    /* flow index of the packet */
+    public int flow;
+    /* last measured sojourn time of the flow in msec */
+    public long sojourn;
+    /* bytes and packets queued in the flow */
+    public int backlog;
+    public int packets;
+
+    public boolean isCongested() {
+        return this.status != ACCEPTED;
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * fq_codel on a PacketArena : packets are descriptors addressed by int handle, each flow is a HandleQueue
+ * linking handles and new/old flows link flow indexes in int arrays. The heap holds a fixed set of arrays and
+ * flow objects whatever the number of queued packets, so GC marking does not grow with the queue depth.
+ * DRR and codel follow SFQCodel, pacing, weights, listeners and ring flows are not supported.
+ *
+ * The caller keeps the packet data, e.g. in a buffer at the descriptor offset. A handle returned by dequeue()
+ * is given back with release(). Dropped packets are queued on a drop queue, takeDropped() returns them so the
+ * caller can reuse their buffer space before giving them back with release() too.
+ *
+ * Not thread safe, like the arena it is owned by the thread running the scheduler.
+ */
+public class ArenaCodel {
+    private static final int NONE=0;
+    private static final int NEW=1;
+    private static final int OLD=2;
+
+    private final PacketArena arena;
+    private final HandleQueue[] flows;
+    private final HandleQueue dropped;
+    private final int maxQueueSize;
+    private final int flow_cnt;
+    private final int quantum;
+    private final long interval;
+    private final long target;
+    private int maxsize;
+    private int qlen;
+    private long backlog;
+    private long drops;
+
+    /* flow lists, indexed by NEW and OLD. Flows are linked by index through flow_next */
+    private final int[] list_head={PacketArena.NIL,PacketArena.NIL,PacketArena.NIL};
+    private final int[] list_tail={PacketArena.NIL,PacketArena.NIL,PacketArena.NIL};
+    private final int[] flow_next;
+    private final byte[] flow_list;
+    private final int[] deficit;
+
+    /* codel_var struct of each flow */
+    private final int[] codel_var_count;
+    private final int[] codel_var_lastcount;
+    private final boolean[] codel_var_dropping;
+    private final long[] codel_var_first_above_time;
+    private final long[] codel_var_drop_next;
+
+    /**
+     * @param capacity number of packet descriptors in the arena
+     * @param maxQueueSize maximum number of packets queued, the arena also holds dropped and dequeued
+     *                     packets until they are released so its capacity should be larger
+     * @param flow_cnt number of flows
+     * @param quantum DRR quantum in bytes, should be MTU or lower
+     * @param interval codel interval in msec
+     * @param target codel target in msec
+     */
+    public ArenaCodel(final int capacity, final int maxQueueSize, final int flow_cnt, final int quantum, final long interval, final long target) {
+        if (maxQueueSize <= 0 || flow_cnt <= 0) {
+            throw new IllegalArgumentException("maxQueueSize and flow_cnt must be positive");
+        }
+        this.arena=new PacketArena(capacity);
+        this.maxQueueSize=maxQueueSize;
+        this.flow_cnt=flow_cnt;
+        this.quantum=quantum;
+        this.interval=interval;
+        this.target=target;
+        this.flows=new HandleQueue[flow_cnt];
+        for (int i=0;i<flow_cnt;i++) {
+            this.flows[i]=new HandleQueue(this.arena);
+        }
+        this.dropped=new HandleQueue(this.arena);
+        this.flow_next=new int[flow_cnt];
+        this.flow_list=new byte[flow_cnt];
+        this.deficit=new int[flow_cnt];
+        this.codel_var_count=new int[flow_cnt];
+        this.codel_var_lastcount=new int[flow_cnt];
+        this.codel_var_dropping=new boolean[flow_cnt];
+        this.codel_var_first_above_time=new long[flow_cnt];
+        this.codel_var_drop_next=new long[flow_cnt];
+    }
+
+    /**
+     * queue a packet, drop the head packet of the biggest flow if the queue is full
+     * @param size packet size in bytes
+     * @param key flow hash, the flow is key % flow_cnt
+     * @param offset buffer offset of the packet data, kept for the caller
+     * @param now time in msec
+     * @return handle of the queued packet, NIL if the arena is full and the packet is not queued
+     */
+    public int enqueue(final int size, final int key, final int offset, final long now) {
+        final int idx=(key & Integer.MAX_VALUE) % this.flow_cnt;
+        final int h= this.arena.allocate(size,now,idx,offset);
+        if (h == PacketArena.NIL) {
+            this.drops++;
+            return h;
+        }
+        this.flows[idx].add(h);
+        this.qlen++;
+        this.backlog= this.backlog+size;
+        if (this.flow_list[idx] == NONE) {
+            this.deficit[idx]= this.quantum;
+            this.link(NEW,idx);
+        }
+        if (this.qlen > this.maxQueueSize) {
+            this.drop();
+        }
+        return h;
+    }
+
+    /**
+     * drop the head packet of the flow with the biggest backlog
+     * @return index of the flow
+     */
+    public int drop() {
+        int idx=0;
+        int maxbacklog=-1;
+        for (int i=0;i< this.flow_cnt;i++) {
+            if (this.flows[i].getBacklog() > maxbacklog) {
+                maxbacklog= this.flows[i].getBacklog();
+                idx=i;
+            }
+        }
+        final int h= this.remove(idx);
+        if (h != PacketArena.NIL) {
+            this.do_drop(h);
+        }
+        return idx;
+    }
+
+    /**
+     * dequeue a packet, codel drops are queued on the drop queue
+     * @param now time in msec
+     * @return handle of the packet, NIL if the queue is empty or codel dropped all packets
+     */
+    public int dequeue(final long now) {
+        final int idx= this.getFlow();
+        if (idx == PacketArena.NIL) {
+            return idx;
+        }
+        return this.codel_dequeue(idx,now);
+    }
+
+    /**
+     * give a dequeued or dropped packet back to the arena
+     * @throws IllegalStateException if the handle is already released
+     */
+    public void release(final int h) {
+        this.arena.free(h);
+    }
+
+    /**
+     * @return handle of the oldest dropped packet not taken yet, NIL if none. Give it back with release()
+     */
+    public int takeDropped() {
+        return this.dropped.remove();
+    }
+
+    /**
+     * drop all queued packets, they are moved to the drop queue and codel state is reset
+     */
+    public void reset() {
+        for (int i=0;i< this.flow_cnt;i++) {
+            int h;
+            while ((h= this.remove(i)) != PacketArena.NIL) {
+                this.do_drop(h);
+            }
+            this.codel_vars_init(i);
+            this.flow_list[i]=NONE;
+        }
+        for (int l=NEW;l<=OLD;l++) {
+            this.list_head[l]=PacketArena.NIL;
+            this.list_tail[l]=PacketArena.NIL;
+        }
+    }
+
+    //DRR : first flow of new flows, else old flows, with deficit left and packets queued
+    private int getFlow() {
+        for (;;) {
+            int list=NEW;
+            int idx= this.list_head[NEW];
+            if (idx == PacketArena.NIL) {
+                list=OLD;
+                idx= this.list_head[OLD];
+                if (idx == PacketArena.NIL) {
+                    return idx;
+                }
+            }
+            if (this.deficit[idx] <= 0) {
+                this.deficit[idx] += this.quantum;
+                this.unlink(list);
+                this.link(OLD,idx);
+            } else if (this.flows[idx].isEmpty()) {
+                this.unlink(list);
+                if (list == NEW) {
+                    //Add empty new flows to old_flows to prevent starvation
+                    this.link(OLD,idx);
+                } else {
+                    this.flow_list[idx]=NONE;
+                }
+            } else {
+                return idx;
+            }
+        }
+    }
+
+    private void link(final int list, final int idx) {
+        this.flow_next[idx]=PacketArena.NIL;
+        if (this.list_tail[list] == PacketArena.NIL) {
+            this.list_head[list]=idx;
+        } else {
+            this.flow_next[this.list_tail[list]]=idx;
+        }
+        this.list_tail[list]=idx;
+        this.flow_list[idx]=(byte) list;
+    }
+
+    //remove the head flow of list
+    private void unlink(final int list) {
+        final int idx= this.list_head[list];
+        if ((this.list_head[list]= this.flow_next[idx]) == PacketArena.NIL) {
+            this.list_tail[list]=PacketArena.NIL;
+        }
+        this.flow_next[idx]=PacketArena.NIL;
+    }
+
+    private int remove(final int idx) {
+        final int h= this.flows[idx].remove();
+        if (h != PacketArena.NIL) {
+            this.qlen--;
+            this.backlog= this.backlog- this.arena.size(h);
+        }
+        return h;
+    }
+
+    private void do_drop(final int h) {
+        this.dropped.add(h);
+        this.drops++;
+    }
+
+    private boolean shouldDrop(final int idx, final int h, final long now) {
+        if (h == PacketArena.NIL) {
+            this.codel_var_first_above_time[idx]=0;
+            return false;
+        }
+        final int size= this.arena.size(h);
+        if (size > this.maxsize) {
+            this.maxsize=size;
+        }
+        final long ldelay=now- this.arena.queueTime(h);
+        if (ldelay < this.target || this.flows[idx].getBacklog() <= this.maxsize) {
+            this.codel_var_first_above_time[idx]=0;
+            return false;
+        }
+        if (this.codel_var_first_above_time[idx] == 0) {
+            this.codel_var_first_above_time[idx]=now+ this.interval;
+        } else if (now >= this.codel_var_first_above_time[idx]) {
+            return true;
+        }
+        return false;
+    }
+
+    private long control_law(final int idx, final long now) {
+        return now+ this.interval/SFQCodel.SQRT[Math.min(SFQCodel.SQRT_top, this.codel_var_count[idx])];
+    }
+
+    //codel on the head packet of flow idx, same state machine as SFQCodel.codel_dequeue()
+    private int codel_dequeue(final int idx, final long now) {
+        int h= this.remove(idx);
+        if (h == PacketArena.NIL) {
+            this.codel_var_dropping[idx]=false;
+            return h;
+        }
+        final boolean drop= this.shouldDrop(idx,h,now);
+        if (this.codel_var_dropping[idx]) {
+            if (!drop) {
+                this.codel_var_dropping[idx]=false;
+            } else if (now >= this.codel_var_drop_next[idx]) {
+                while (this.codel_var_dropping[idx] && now > this.codel_var_drop_next[idx]) {
+                    this.codel_var_count[idx]++;
+                    this.do_drop(h);
+                    h= this.remove(idx);
+                    if (h == PacketArena.NIL || !this.shouldDrop(idx,h,now)) {
+                        this.codel_var_dropping[idx]=false;
+                    } else {
+                        this.codel_var_drop_next[idx]= this.control_law(idx,now);
+                    }
+                }
+            }
+        } else if (drop) {
+            this.do_drop(h);
+            h= this.remove(idx);
+            this.shouldDrop(idx,h,now);
+            this.codel_var_dropping[idx]=true;
+            final int delta= this.codel_var_count[idx]- this.codel_var_lastcount[idx];
+            if (delta > 1 && now- this.codel_var_drop_next[idx] < 16* this.interval) {
+                this.codel_var_count[idx]=delta;
+            } else {
+                this.codel_var_count[idx]=1;
+            }
+            this.codel_var_lastcount[idx]= this.codel_var_count[idx];
+            this.codel_var_drop_next[idx]= this.control_law(idx,now);
+        }
+        if (h != PacketArena.NIL) {
+            this.deficit[idx]= this.deficit[idx]- this.arena.size(h);
+        }
+        return h;
+    }
+
+    private void codel_vars_init(final int idx) {
+        this.codel_var_count[idx]=0;
+        this.codel_var_lastcount[idx]=0;
+        this.codel_var_dropping[idx]=false;
+        this.codel_var_first_above_time[idx]=0;
+        this.codel_var_drop_next[idx]=0;
+    }
+
+    public PacketArena getArena() {
+        return this.arena;
+    }
+
+    /**
+     * @return number of queued packets
+     */
+    public int size() {
+        return this.qlen;
+    }
+
+    /**
+     * @return bytes queued
+     */
+    public long backlog() {
+        return this.backlog;
+    }
+
+    public boolean isEmpty() {
+        return this.qlen == 0;
+    }
+
+    /**
+     * @return packets dropped by codel, overflow or reset and packets rejected because the arena was full
+     */
+    public long getDropped() {
+        return this.drops;
+    }
+
+    public int getFlowQueueSize(final int idx) {
+        return this.flows[idx].size();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ArenaCodelTest {
+
+    /**
+     * release dequeued and dropped handles, the arena must be complete again
+     * @return number of packets dequeued
+     */
+    private static int releaseAll(ArenaCodel codel, long now) {
+        int h;
+        int count = 0;
+        while ((h = codel.dequeue(now)) != PacketArena.NIL) {
+            codel.release(h);
+            count++;
+        }
+        while ((h = codel.takeDropped()) != PacketArena.NIL) {
+            codel.release(h);
+        }
+        Assert.assertTrue(codel.isEmpty());
+        Assert.assertEquals(0, codel.backlog());
+        Assert.assertEquals(codel.getArena().getCapacity(), codel.getArena().getFree());
+        return count;
+    }
+
+    @Test
+    public void testDrrOrder() {
+        ArenaCodel codel = new ArenaCodel(64, 32, 16, 1500, 100, 5);
+        for (int i = 0; i < 3; i++) {
+            codel.enqueue(1500, 1, i, 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            codel.enqueue(1500, 2, 100 + i, 0);
+        }
+        Assert.assertEquals(6, codel.size());
+        Assert.assertEquals(9000, codel.backlog());
+        Assert.assertEquals(3, codel.getFlowQueueSize(1));
+        //one quantum per flow per round, FIFO within a flow
+        final int[] offsets = {0, 100, 1, 101, 2, 102};
+        for (int offset : offsets) {
+            int h = codel.dequeue(1);
+            Assert.assertEquals(offset, codel.getArena().offset(h));
+            Assert.assertEquals(offset / 100 + 1, codel.getArena().flow(h));
+            codel.release(h);
+        }
+        Assert.assertEquals(PacketArena.NIL, codel.dequeue(1));
+        Assert.assertEquals(0, codel.getDropped());
+        releaseAll(codel, 1);
+    }
+
+    @Test
+    public void testOverflowDropsBiggestFlow() {
+        ArenaCodel codel = new ArenaCodel(16, 4, 16, 1500, 100, 5);
+        codel.enqueue(100, 1, 0, 0);
+        codel.enqueue(1000, 2, 1, 0);
+        codel.enqueue(1000, 2, 2, 0);
+        codel.enqueue(100, 3, 3, 0);
+        Assert.assertEquals(0, codel.getDropped());
+        //queue full, head of flow 2 is dropped
+        codel.enqueue(100, 1, 4, 0);
+        Assert.assertEquals(4, codel.size());
+        Assert.assertEquals(1, codel.getDropped());
+        Assert.assertEquals(1, codel.getFlowQueueSize(2));
+        int h = codel.takeDropped();
+        Assert.assertEquals(1, codel.getArena().offset(h));
+        codel.release(h);
+        Assert.assertEquals(PacketArena.NIL, codel.takeDropped());
+        try {
+            codel.release(h);
+            Assert.fail("double release");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        releaseAll(codel, 0);
+    }
+
+    @Test
+    public void testArenaFull() {
+        ArenaCodel codel = new ArenaCodel(4, 100, 16, 1500, 100, 5);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(codel.enqueue(100, i, i, 0) != PacketArena.NIL);
+        }
+        Assert.assertEquals(PacketArena.NIL, codel.enqueue(100, 5, 5, 0));
+        Assert.assertEquals(4, codel.size());
+        Assert.assertEquals(1, codel.getDropped());
+        //a dequeued handle is held until it is released
+        int h = codel.dequeue(0);
+        Assert.assertEquals(PacketArena.NIL, codel.enqueue(100, 5, 5, 0));
+        codel.release(h);
+        Assert.assertTrue(codel.enqueue(100, 5, 5, 0) != PacketArena.NIL);
+        releaseAll(codel, 0);
+    }
+
+    @Test
+    public void testCodelDrops() {
+        ArenaCodel codel = new ArenaCodel(64, 64, 16, 1500, 100, 5);
+        for (int i = 0; i < 20; i++) {
+            codel.enqueue(1500, 1, i, 0);
+        }
+        //sojourn above target, codel waits one interval before dropping
+        int h = codel.dequeue(10);
+        Assert.assertEquals(0, codel.getArena().offset(h));
+        codel.release(h);
+        Assert.assertEquals(0, codel.getDropped());
+        h = codel.dequeue(200);
+        Assert.assertEquals(1, codel.getDropped());
+        int d = codel.takeDropped();
+        Assert.assertEquals(1, codel.getArena().offset(d));
+        codel.release(d);
+        Assert.assertEquals(2, codel.getArena().offset(h));
+        codel.release(h);
+        //next drop after interval/sqrt(count)
+        h = codel.dequeue(250);
+        Assert.assertEquals(1, codel.getDropped());
+        codel.release(h);
+        h = codel.dequeue(400);
+        Assert.assertTrue(codel.getDropped() > 1);
+        codel.release(h);
+        //every packet is delivered or dropped
+        Assert.assertEquals(20, 4 + releaseAll(codel, 400) + codel.getDropped());
+    }
+
+    @Test
+    public void testReset() {
+        ArenaCodel codel = new ArenaCodel(64, 64, 16, 1500, 100, 5);
+        for (int i = 0; i < 10; i++) {
+            codel.enqueue(100, i, i, 0);
+        }
+        codel.reset();
+        Assert.assertTrue(codel.isEmpty());
+        Assert.assertEquals(0, codel.backlog());
+        Assert.assertEquals(PacketArena.NIL, codel.dequeue(0));
+        Assert.assertEquals(10, codel.getDropped());
+        //queue is usable after reset
+        codel.enqueue(100, 3, 42, 0);
+        int h = codel.dequeue(0);
+        Assert.assertEquals(42, codel.getArena().offset(h));
+        codel.release(h);
+        releaseAll(codel, 0);
+    }
+}
@@ -28,8 +28,41 @@ package org.it4y.codel;
  * Created by luc on 8/22/14.
  */
 public class CodelPacketQueue extends PacketQueue {
+    /* congestion signal levels */
+    public static final int CONGESTION_NONE=0;
+    public static final int CONGESTION_TARGET=1;      //sojourn time above target
+    public static final int CONGESTION_DROPPING=2;    //codel dropping state or overflow drop
+
+    public final int index;
     public int deficit;
+    public int weight=1;
+    /* pacing rate in bytes/sec, 0 is no pacing */
+    public long maxRate;
+
+    /* pacing state, times in usec. Throttled flows are held in the TimerWheel */
+    long time_next_packet;
+    long time_to_send;
+    boolean throttled;
+    /* msec, time held by the pacer is not counted as sojourn time */
+    long paced_until;
+
+    /* multiple consumers : flow is linked, throttled or leased, written with the flow lock.
+     * lease_list is the flow list a leased flow came from, null while the flow is not leased */
+    boolean scheduled;
+    FlowQueue lease_list;
+    CodelPacketQueue timer_next;
+
+    /* current codel drop episode, reported to QueueListener. Packets dropped since the episode started */
+    long episode_start;
+    long episode_sojourn;
+    int episode_dropped;
+
+    /* last queued pure ack and the packet in front of it, used by ack filter */
+    Packet ack_last;
+    Packet ack_prev;
     public int dropped;
+    /* written by the dequeue thread, polled by producers */
+    public volatile int congestion;
 
     /* codel_var struct is embedded */
     public int codel_var_count;
@@ -40,5 +73,29 @@ public class CodelPacketQueue extends PacketQueue {
     public long codel_var_drop_next;
     public long codel_var_ldelay;
 
+    public CodelPacketQueue(final int index) {
+        this.index=index;
+    }
+
+    /**
+     * @return packets dropped since the flow became active
+     */
+    public int getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * reset codel state of this flow
+     */
+    public void codel_vars_init() {
+        this.codel_var_count=0;
+        this.codel_var_lastcount=0;
+        this.codel_var_dropping=false;
+        this.codel_var_rec_inv_sqrt=0;
+        this.codel_var_first_above_time=0;
+        this.codel_var_drop_next=0;
+        this.codel_var_ldelay=0;
+        this.congestion=CONGESTION_NONE;
+    }
 
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.util.Random;
+
+/**
+ * L4S dual queue coupled AQM (RFC 9332, DualPI2 like).
+ *
+ * ECT(1) and CE packets go into a shallow FIFO low latency (L) queue with immediate step marking,
+ * all other packets stay in the SFQCodel classic queue. A PI2 controller derives the base probability p'
+ * from the classic queue delay, L packets are marked with the coupled probability k*p' and classic packets
+ * are dropped with the squared probability p'^2 (ECT(0) packets are marked instead), so scalable
+ * and classic flows get about the same throughput. Classic packets are managed by codel too.
+ *
+ * The L queue has priority, but classic traffic is protected by a credit based weighted round robin :
+ * with cProtection=10 the classic queue gets at least 10% of the bytes when both are backlogged.
+ *
+ * L packet queueTime is in nsec (System.nanoTime()), classic packet queueTime is in msec.
+ * Same threading rules as SFQCodel.
+ */
+public class DualQCodel {
+    /* PI2 gains in Hz for queue delay in sec (RFC 9332 defaults) */
+    private static final double ALPHA=0.16;
+    private static final double BETA=3.2;
+
+    private final SFQCodel classic;
+    private final PacketQueue l_queue;
+    private final int l_limit;
+    private final long step;
+    private final long tupdate;
+    private final long pi_target;
+    private final int coupling;
+    private final int c_protection;
+    private final Random random=new Random();
+
+    private double prob;
+    private long classic_qdelay;
+    private long prev_qdelay;
+    private long next_update;
+    private long credit;
+    private long l_marked;
+    private long l_step_marked;
+    private long l_dropped;
+    private long c_marked;
+    private long c_dropped;
+
+    public DualQCodel() {
+        this(new SFQCodel(),1024,1000000L,10);
+    }
+
+    /**
+     * @param classic codel queue for classic traffic
+     * @param l_limit maximum packets in L queue
+     * @param step L queue step marking threshold in nsec
+     * @param c_protection minimum share of classic queue in %
+     */
+    public DualQCodel(final SFQCodel classic, final int l_limit, final long step, final int c_protection) {
+        this.classic=classic;
+        this.l_queue=new PacketQueue();
+        this.l_limit=l_limit;
+        this.step=step;
+        this.c_protection=c_protection;
+        this.coupling=2;
+        this.tupdate=16000000L;
+        //PI2 target follows codel target
+        this.pi_target=classic.getTarget();
+    }
+
+    /**
+     * @return true if packet belongs in L queue
+     */
+    public static boolean isScalable(final Packet p) {
+        return p.ecn == Packet.ECN_ECT1 || p.ecn == Packet.ECN_CE;
+    }
+
+    public void enqueue(final Packet p) {
+        if (!isScalable(p)) {
+            this.classic.enqueue(p);
+            return;
+        }
+        if (this.l_queue.size() >= this.l_limit) {
+            this.l_dropped++;
+            p.drop();
+            return;
+        }
+        p.queueTime=System.nanoTime();
+        this.l_queue.add(p);
+    }
+
+    public Packet dequeue() {
+        final long now=System.nanoTime();
+        if (now >= this.next_update) {
+            this.next_update=now+ this.tupdate;
+            this.update(this.classic.isEmpty() ? 0 : this.classic_qdelay);
+        }
+        final boolean l_backlogged=!this.l_queue.isEmpty();
+        if (l_backlogged && (this.credit <= 0 || this.classic.isEmpty())) {
+            return this.dequeue_l(now,!this.classic.isEmpty());
+        }
+        Packet p;
+        do {
+            p= this.classic.dequeue();
+        } while (p != null && this.classic_drop(p));
+        if (p == null) {
+            //everything dropped by codel
+            return l_backlogged ? this.dequeue_l(now,false) : null;
+        }
+        this.classic_qdelay=System.currentTimeMillis()-p.queueTime;
+        if (l_backlogged) {
+            this.credit= this.credit-(100- this.c_protection)*p.size;
+        }
+        return p;
+    }
+
+    /**
+     * coupled PI2 on classic traffic : drop with probability p'^2, ECT(0) packets are marked instead
+     * @return true if packet is dropped
+     */
+    private boolean classic_drop(final Packet p) {
+        if (this.prob == 0 || this.random.nextDouble() >= this.prob* this.prob) {
+            return false;
+        }
+        if (p.ecn == Packet.ECN_ECT0) {
+            this.c_marked++;
+            p.mark();
+            return false;
+        }
+        this.c_dropped++;
+        p.drop();
+        return true;
+    }
+
+    private Packet dequeue_l(final long now, final boolean c_backlogged) {
+        final Packet p= this.l_queue.remove();
+        if (p == null) {
+            return null;
+        }
+        if (c_backlogged) {
+            this.credit= this.credit+ this.c_protection*p.size;
+        } else {
+            this.credit=0;
+        }
+        if (now-p.queueTime >= this.step) {
+            this.l_step_marked++;
+            this.l_marked++;
+            p.mark();
+        } else if (this.random.nextDouble() < this.coupling* this.prob) {
+            this.l_marked++;
+            p.mark();
+        }
+        return p;
+    }
+
+    /**
+     * PI2 update of base probability
+     * @param qdelay classic queue delay in msec
+     */
+    void update(final long qdelay) {
+        double p= this.prob+(ALPHA*(qdelay- this.pi_target)+BETA*(qdelay- this.prev_qdelay))/1000.0;
+        if (p < 0) {
+            p=0;
+        } else if (p > 1.0/ this.coupling) {
+            //L queue saturates at 100% marking
+            p=1.0/ this.coupling;
+        }
+        this.prob=p;
+        this.prev_qdelay=qdelay;
+    }
+
+    /**
+     * @return base probability p', L marking probability is coupling*p', classic drop probability is p'^2
+     */
+    public double getProbability() {
+        return this.prob;
+    }
+
+    public SFQCodel getClassic() {
+        return this.classic;
+    }
+
+    public int size() {
+        return this.classic.size()+ this.l_queue.size();
+    }
+
+    public boolean isEmpty() {
+        return this.classic.isEmpty() && this.l_queue.isEmpty();
+    }
+
+    public int getLSize() {
+        return this.l_queue.size();
+    }
+
+    public int getLBacklog() {
+        return this.l_queue.getBacklog();
+    }
+
+    public long getLMarked() {
+        return this.l_marked;
+    }
+
+    public long getLStepMarked() {
+        return this.l_step_marked;
+    }
+
+    public long getLDropped() {
+        return this.l_dropped;
+    }
+
+    /**
+     * @return classic packets marked with the coupled probability p'^2
+     */
+    public long getCMarked() {
+        return this.c_marked;
+    }
+
+    /**
+     * @return classic packets dropped with the coupled probability p'^2, codel drops not included
+     */
+    public long getCDropped() {
+        return this.c_dropped;
+    }
+
+    public void reset() {
+        Packet p= this.l_queue.detach();
+        while (p != null) {
+            final Packet next=p.next();
+            p.next(null);
+            p.drop();
+            p=next;
+        }
+        this.classic.reset();
+        this.prob=0;
+        this.credit=0;
+        this.classic_qdelay=0;
+        this.prev_qdelay=0;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DualQCodelTest {
+
+    private static Packet packet(int size, int ecn) {
+        Packet p = new Packet(size);
+        p.ecn = ecn;
+        return p;
+    }
+
+    @Test
+    public void testClassifyAndStepMarking() {
+        DualQCodel codel = new DualQCodel();
+        Assert.assertTrue(codel.isEmpty());
+        codel.enqueue(packet(100, Packet.ECN_NOT_ECT));
+        codel.enqueue(packet(100, Packet.ECN_ECT0));
+        Packet l = packet(100, Packet.ECN_ECT1);
+        codel.enqueue(l);
+        codel.enqueue(packet(100, Packet.ECN_CE));
+        Assert.assertEquals(4, codel.size());
+        Assert.assertEquals(2, codel.getLSize());
+        Assert.assertEquals(2, codel.getClassic().size());
+
+        //L packet above step threshold is marked, L has priority
+        l.queueTime = l.queueTime - 2000000L;
+        Assert.assertSame(l, codel.dequeue());
+        Assert.assertEquals(Packet.ECN_CE, l.ecn);
+        Assert.assertEquals(1, codel.getLStepMarked());
+        Assert.assertEquals(1, codel.getLMarked());
+
+        int count = 0;
+        while (codel.dequeue() != null) {
+            count++;
+        }
+        Assert.assertEquals(3, count);
+        Assert.assertTrue(codel.isEmpty());
+    }
+
+    @Test
+    public void testLQueueLimit() {
+        DualQCodel codel = new DualQCodel(new SFQCodel(), 4, 1000000L, 10);
+        for (int i = 0; i < 10; i++) {
+            codel.enqueue(packet(100, Packet.ECN_ECT1));
+        }
+        Assert.assertEquals(4, codel.getLSize());
+        Assert.assertEquals(400, codel.getLBacklog());
+        Assert.assertEquals(6, codel.getLDropped());
+        codel.reset();
+        Assert.assertTrue(codel.isEmpty());
+    }
+
+    @Test
+    public void testPI2Coupling() {
+        DualQCodel codel = new DualQCodel(new SFQCodel(), 1024, 1000000000L, 10);
+        //rising delay raises probability, stable delay at target keeps it
+        codel.update(10);
+        Assert.assertEquals(0.032, codel.getProbability(), 0.00001);
+        codel.update(10);
+        Assert.assertEquals(0.032, codel.getProbability(), 0.00001);
+        //above target, probability grows
+        for (int i = 0; i < 100; i++) {
+            codel.update(50);
+        }
+        Assert.assertEquals(0.5, codel.getProbability(), 0.00001);
+
+        //coupled probability marks L packets well below the step threshold,
+        //first dequeue updates PI2 with an empty classic queue : p'=0.338 and L marking 0.676
+        for (int i = 0; i < 100; i++) {
+            codel.enqueue(packet(100, Packet.ECN_ECT1));
+        }
+        int marked = 0;
+        for (int i = 0; i < 100; i++) {
+            if (codel.dequeue().ecn == Packet.ECN_CE) {
+                marked++;
+            }
+        }
+        Assert.assertEquals(0, codel.getLStepMarked());
+        Assert.assertEquals(marked, codel.getLMarked());
+        Assert.assertTrue(marked > 40 && marked < 95);
+
+        //classic packets get p'^2 : 11% to 25% dropped, ECT(0) packets are marked instead
+        for (int i = 0; i < 100; i++) {
+            codel.update(50);
+        }
+        for (int i = 0; i < 500; i++) {
+            codel.enqueue(packet(100, Packet.ECN_NOT_ECT));
+            codel.enqueue(packet(101, Packet.ECN_ECT0));
+        }
+        int delivered = 0;
+        int ce = 0;
+        Packet p;
+        while ((p = codel.dequeue()) != null) {
+            delivered++;
+            if (p.ecn == Packet.ECN_CE) {
+                Assert.assertEquals(101, p.size);
+                ce++;
+            }
+        }
+        Assert.assertEquals(1000, delivered + codel.getCDropped());
+        Assert.assertEquals(ce, codel.getCMarked());
+        Assert.assertTrue(codel.getCDropped() > 20 && codel.getCDropped() < 200);
+        Assert.assertTrue(ce > 20 && ce < 200);
+
+        //empty classic queue brings probability back to 0
+        for (int i = 0; i < 1000; i++) {
+            codel.update(0);
+        }
+        Assert.assertEquals(0.0, codel.getProbability(), 0.0);
+    }
+
+    @Test
+    public void testClassicProtection() {
+        DualQCodel codel = new DualQCodel(new SFQCodel(), 1024, 1000000000L, 10);
+        for (int i = 0; i < 100; i++) {
+            codel.enqueue(packet(100, Packet.ECN_ECT1));
+            codel.enqueue(packet(100, Packet.ECN_NOT_ECT));
+        }
+        int classic = 0;
+        for (int i = 0; i < 100; i++) {
+            if (codel.dequeue().ecn == Packet.ECN_NOT_ECT) {
+                classic++;
+            }
+        }
+        //classic gets 10% of the link while both queues are backlogged
+        Assert.assertEquals(10, classic);
+        codel.reset();
+        Assert.assertEquals(0, codel.size());
+    }
+}
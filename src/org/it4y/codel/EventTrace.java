@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary event trace written in a fixed size memory mapped ring file.
+ * Writing an event claims a slot with one atomic increment and stores the record
+ * with absolute puts, there is no allocation or locking. Oldest events are overwritten.
+ * Multiple threads can write events, the sequence in the header is stored after the record
+ * and only moves forward. With concurrent writers the most recent records of a live ring
+ * can still be in progress, a decoder reading after close() sees all records.
+ *
+ * File layout (big endian) :
+ *   header  : magic, version, record size, capacity (int) , sequence, base millis, base nanos (long)
+ *   records : time nanos (long), type (int), flow (int), value (long)
+ *
+ * Use EventTraceDecoder to convert the ring into per flow timelines.
+ */
+public class EventTrace {
+    //event types
+    public static final int ENQUEUE=1;       //value : packet size
+    public static final int DEQUEUE=2;       //value : sojourn time msec
+    public static final int DROP=3;          //value : drop reason << 32 | packet size
+    public static final int DROPPING_ON=4;   //value : codel count
+    public static final int DROPPING_OFF=5;  //value : codel count
+    public static final int DROP_NEXT=6;     //value : drop next time msec
+
+    static final int MAGIC=0x434f444c;
+    static final int VERSION=1;
+    static final int HEADER_SIZE=64;
+    static final int RECORD_SIZE=24;
+    static final int SEQUENCE_OFFSET=16;
+    static final int BASE_MILLIS_OFFSET=24;
+    static final int BASE_NANOS_OFFSET=32;
+    //largest power of 2 ring with a mapped size and record offsets that fit in an int
+    public static final int MAX_CAPACITY=1<<26;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+    //highest sequence stored in the header
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * @param file ring file, created or overwritten
+     * @param capacity number of events in the ring, rounded up to a power of 2, 1 to MAX_CAPACITY
+     * @throws IOException
+     */
+    public EventTrace(final File file, final int capacity) throws IOException {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("invalid capacity : "+capacity);
+        }
+        int size=1;
+        while (size < capacity) {
+            size=size<<1;
+        }
+        this.mask=size-1;
+        this.file=new RandomAccessFile(file,"rw");
+        this.file.setLength(0);
+        this.buffer=this.file.getChannel().map(FileChannel.MapMode.READ_WRITE,0,HEADER_SIZE+size*RECORD_SIZE);
+        this.buffer.putInt(0,MAGIC);
+        this.buffer.putInt(4,VERSION);
+        this.buffer.putInt(8,RECORD_SIZE);
+        this.buffer.putInt(12,size);
+        this.buffer.putLong(SEQUENCE_OFFSET,0);
+        this.buffer.putLong(BASE_MILLIS_OFFSET,System.currentTimeMillis());
+        this.buffer.putLong(BASE_NANOS_OFFSET,System.nanoTime());
+    }
+
+    /**
+     * encode drop reason and packet size as event value
+     */
+    public static long drop(final int reason, final int size) {
+        return ((long)reason<<32) | (size & 0xffffffffL);
+    }
+
+    public void event(final int type, final int flow, final long value) {
+        final long seq=this.sequence.getAndIncrement();
+        final int pos=HEADER_SIZE+(int)(seq & this.mask)*RECORD_SIZE;
+        this.buffer.putLong(pos,System.nanoTime());
+        this.buffer.putInt(pos+8,type);
+        this.buffer.putInt(pos+12,flow);
+        this.buffer.putLong(pos+16,value);
+        this.publish(seq+1);
+    }
+
+    /**
+     * raise the header sequence to at least seq. A writer overwriting a newer sequence with
+     * its own stale value sees published moved on and stores the newer value again
+     */
+    private void publish(final long seq) {
+        long last= this.published.get();
+        while (last < seq && !this.published.compareAndSet(last,seq)) {
+            last= this.published.get();
+        }
+        long value=Math.max(last,seq);
+        while (true) {
+            this.buffer.putLong(SEQUENCE_OFFSET,value);
+            final long current= this.published.get();
+            if (current == value) {
+                return;
+            }
+            value=current;
+        }
+    }
+
+    public long getSequence() {
+        return this.sequence.get();
+    }
+
+    public int getCapacity() {
+        return this.mask+1;
+    }
+
+    /**
+     * flush ring to disk and close the file
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.buffer.force();
+        this.file.close();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Offline decoder of an EventTrace ring file.
+ * usage: EventTraceDecoder <trace file>  prints a timeline per flow
+ */
+public class EventTraceDecoder {
+
+    public static class Event {
+        public final long time;
+        public final int type;
+        public final int flow;
+        public final long value;
+
+        Event(final long time, final int type, final int flow, final long value) {
+            this.time = time;
+            this.type = type;
+            this.flow = flow;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            switch (this.type) {
+                case EventTrace.ENQUEUE:
+                    return "enqueue size=" + this.value;
+                case EventTrace.DEQUEUE:
+                    return "dequeue sojourn=" + this.value + "ms";
+                case EventTrace.DROP:
+                    return "drop reason=" + (this.value >>> 32) + " size=" + (int) this.value;
+                case EventTrace.DROPPING_ON:
+                    return "dropping on count=" + this.value;
+                case EventTrace.DROPPING_OFF:
+                    return "dropping off count=" + this.value;
+                case EventTrace.DROP_NEXT:
+                    return "drop next=" + this.value;
+                default:
+                    return "unknown type=" + this.type + " value=" + this.value;
+            }
+        }
+    }
+
+    private final List<Event> events = new ArrayList<Event>();
+    private long baseMillis;
+    private long baseNanos;
+
+    /**
+     * read all events still available in the ring, oldest first
+     * @param file
+     * @throws IOException
+     */
+    public EventTraceDecoder(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            this.decode(ByteBuffer.wrap(data));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void decode(final ByteBuffer buffer) throws IOException {
+        if (buffer.getInt(0) != EventTrace.MAGIC) {
+            throw new IOException("not a trace file");
+        }
+        if (buffer.getInt(4) != EventTrace.VERSION || buffer.getInt(8) != EventTrace.RECORD_SIZE) {
+            throw new IOException("unsupported trace version " + buffer.getInt(4));
+        }
+        final int capacity = buffer.getInt(12);
+        final long sequence = buffer.getLong(EventTrace.SEQUENCE_OFFSET);
+        this.baseMillis = buffer.getLong(EventTrace.BASE_MILLIS_OFFSET);
+        this.baseNanos = buffer.getLong(EventTrace.BASE_NANOS_OFFSET);
+        for (long seq = Math.max(0, sequence - capacity); seq < sequence; seq++) {
+            final int pos = EventTrace.HEADER_SIZE + (int) (seq & (capacity - 1)) * EventTrace.RECORD_SIZE;
+            this.events.add(new Event(buffer.getLong(pos), buffer.getInt(pos + 8), buffer.getInt(pos + 12), buffer.getLong(pos + 16)));
+        }
+    }
+
+    public List<Event> getEvents() {
+        return this.events;
+    }
+
+    /**
+     * @return events grouped per flow, ordered by flow index
+     */
+    public Map<Integer, List<Event>> getTimelines() {
+        final Map<Integer, List<Event>> timelines = new TreeMap<Integer, List<Event>>();
+        for (Event e : this.events) {
+            List<Event> timeline = timelines.get(e.flow);
+            if (timeline == null) {
+                timeline = new ArrayList<Event>();
+                timelines.put(e.flow, timeline);
+            }
+            timeline.add(e);
+        }
+        return timelines;
+    }
+
+    /**
+     * @return wall clock time in msec of event
+     */
+    public long toMillis(final Event e) {
+        return this.baseMillis + (e.time - this.baseNanos) / 1000000L;
+    }
+
+    public void print(final PrintStream out) {
+        for (Map.Entry<Integer, List<Event>> entry : this.getTimelines().entrySet()) {
+            out.println("flow " + entry.getKey() + " : " + entry.getValue().size() + " events");
+            for (Event e : entry.getValue()) {
+                out.println("  " + this.toMillis(e) + " +" + ((e.time - this.baseNanos) / 1000L) + "us " + e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: EventTraceDecoder <trace file>");
+            System.exit(1);
+        }
+        new EventTraceDecoder(new File(args[0])).print(System.out);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+public class EventTraceTest {
+
+    @Test
+    public void testRingWrap() throws Exception {
+        File file = File.createTempFile("codel", ".trace");
+        file.deleteOnExit();
+        EventTrace trace = new EventTrace(file, 10);
+        Assert.assertEquals(16, trace.getCapacity());
+        for (int i = 0; i < 40; i++) {
+            trace.event(EventTrace.ENQUEUE, i % 2, i);
+        }
+        trace.close();
+
+        EventTraceDecoder decoder = new EventTraceDecoder(file);
+        List<EventTraceDecoder.Event> events = decoder.getEvents();
+        //only last 16 events are kept, oldest first
+        Assert.assertEquals(16, events.size());
+        for (int i = 0; i < 16; i++) {
+            Assert.assertEquals(24 + i, events.get(i).value);
+            Assert.assertTrue(i == 0 || events.get(i).time >= events.get(i - 1).time);
+        }
+        Map<Integer, List<EventTraceDecoder.Event>> timelines = decoder.getTimelines();
+        Assert.assertEquals(2, timelines.size());
+        Assert.assertEquals(8, timelines.get(0).size());
+        Assert.assertEquals(8, timelines.get(1).size());
+    }
+
+    @Test
+    public void testInvalidCapacity() throws Exception {
+        File file = File.createTempFile("codel", ".trace");
+        file.deleteOnExit();
+        int[] invalid = {0, -1, EventTrace.MAX_CAPACITY + 1, Integer.MAX_VALUE};
+        for (int capacity : invalid) {
+            try {
+                new EventTrace(file, capacity);
+                Assert.fail("capacity " + capacity);
+            } catch (IllegalArgumentException expected) {
+                //ring size or mapped size would overflow
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        File file = File.createTempFile("codel", ".trace");
+        file.deleteOnExit();
+        final EventTrace trace = new EventTrace(file, 1024);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int flow = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        trace.event(EventTrace.ENQUEUE, flow, i);
+                        if (i % 100 == 0) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        trace.close();
+
+        //header sequence is never left behind by a slower writer
+        Assert.assertEquals(40000, trace.getSequence());
+        List<EventTraceDecoder.Event> events = new EventTraceDecoder(file).getEvents();
+        Assert.assertEquals(1024, events.size());
+        for (EventTraceDecoder.Event e : events) {
+            Assert.assertEquals(EventTrace.ENQUEUE, e.type);
+        }
+    }
+
+    @Test
+    public void testSFQCodelTrace() throws Exception {
+        File file = File.createTempFile("codel", ".trace");
+        file.deleteOnExit();
+        EventTrace trace = new EventTrace(file, 1024);
+        SFQCodel codel = new SFQCodel();
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        codel.setTrace(trace);
+        for (int i = 0; i < 50; i++) {
+            codel.enqueue(new Packet(100));
+        }
+        codel.enqueue(new Packet(200));
+        //sojourn time above target for more then interval, codel must enter dropping state
+        Thread.sleep(120);
+        Assert.assertNotNull(codel.dequeue());
+        Thread.sleep(120);
+        Assert.assertNotNull(codel.dequeue());
+        codel.purgeFlow(200);
+        codel.setTrace(null);
+        trace.close();
+
+        Map<Integer, List<EventTraceDecoder.Event>> timelines = new EventTraceDecoder(file).getTimelines();
+        Assert.assertEquals(2, timelines.size());
+        int enqueued = 0;
+        int dequeued = 0;
+        int dropped = 0;
+        int droppingOn = 0;
+        for (EventTraceDecoder.Event e : timelines.get(100)) {
+            switch (e.type) {
+                case EventTrace.ENQUEUE:
+                    enqueued++;
+                    break;
+                case EventTrace.DEQUEUE:
+                    dequeued++;
+                    Assert.assertTrue(e.value >= 120);
+                    break;
+                case EventTrace.DROP:
+                    dropped++;
+                    Assert.assertEquals(SFQCodel.DROP_CODEL, e.value >>> 32);
+                    break;
+                case EventTrace.DROPPING_ON:
+                    droppingOn++;
+                    break;
+            }
+        }
+        Assert.assertEquals(50, enqueued);
+        Assert.assertEquals(2, dequeued);
+        Assert.assertEquals(1, dropped);
+        Assert.assertEquals(1, droppingOn);
+
+        List<EventTraceDecoder.Event> purged = timelines.get(200);
+        Assert.assertEquals(2, purged.size());
+        Assert.assertEquals(EventTrace.ENQUEUE, purged.get(0).type);
+        Assert.assertEquals(EventTrace.DROP, purged.get(1).type);
+        Assert.assertEquals(EventTrace.drop(SFQCodel.DROP_PURGE, 200), purged.get(1).value);
+    }
+}
@@ -26,12 +26,92 @@ package org.it4y.codel;
 
 /**
  * Created by luc on 8/22/14.
+ *
+ * Final, add, push and remove link flows with the final PacketQueue.next() and set the flow queue
+ * of the flow directly, the flow list calls of the scheduler have no interface or virtual hook calls.
  */
-public class FlowQueue extends LinkedQueue<PacketQueue> {
+public final class FlowQueue extends LinkedQueue<PacketQueue> {
+
+    @Override
+    public void add(final PacketQueue x) {
+        this.lock.lock();
+        try {
+            final PacketQueue last= this.tail;
+            if (last == null) {
+                this.head=x;
+            } else {
+                last.next(x);
+            }
+            this.tail=x;
+            x.flowQueue(this);
+            this.linked(1);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void push(final PacketQueue x) {
+        this.lock.lock();
+        try {
+            x.next(this.head);
+            if (this.tail == null) {
+                this.tail=x;
+            }
+            this.head=x;
+            x.flowQueue(this);
+            this.linked(1);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public PacketQueue remove() {
+        if (this.head == null) {
+            return null;
+        }
+        this.lock.lock();
+        try {
+            final PacketQueue x= this.head;
+            if (x == null) {
+                return null;
+            }
+            if ((this.head=x.next()) == null) {
+                this.tail=null;
+            }
+            x.next(null);
+            x.flowQueue(null);
+            this.unlinked(1);
+            return x;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    @Override
+    public void doneAdd(PacketQueue x) {
+        x.flowQueue(this);
+    }
+
+    @Override
+    public void doneRemove(PacketQueue x) {
+        x.flowQueue(null);
+    }
+
     @Override
-    public void doneAdd(PacketQueue x) {}
+    public void doneDetach(PacketQueue x, int count) {
+        while (x != null) {
+            x.flowQueue(null);
+            x = x.next();
+        }
+    }
 
     @Override
-    public void doneRemove(PacketQueue x) {}
+    public void doneAddAll(PacketQueue x, int count, long bytes) {
+        while (x != null) {
+            x.flowQueue(this);
+            x = x.next();
+        }
+    }
 
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * FIFO of packet descriptors linked by handle inside a PacketArena, the int handle
+ * counterpart of PacketQueue. Like the arena it is not thread safe.
+ */
+public class HandleQueue {
+    private final PacketArena arena;
+    private int head = PacketArena.NIL;
+    private int tail = PacketArena.NIL;
+    private int size;
+    private int backlog;
+
+    public HandleQueue(final PacketArena arena) {
+        this.arena = arena;
+    }
+
+    public boolean isEmpty() {
+        return this.head == PacketArena.NIL;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int getBacklog() {
+        return this.backlog;
+    }
+
+    /**
+     * @return first handle or NIL
+     */
+    public int first() {
+        return this.head;
+    }
+
+    public void add(final int h) {
+        this.arena.next(h, PacketArena.NIL);
+        if (this.tail == PacketArena.NIL) {
+            this.head = h;
+        } else {
+            this.arena.next(this.tail, h);
+        }
+        this.tail = h;
+        this.size++;
+        this.backlog = this.backlog + this.arena.size(h);
+    }
+
+    /**
+     * @return first handle, removed from the queue, or NIL if empty
+     */
+    public int remove() {
+        final int h = this.head;
+        if (h == PacketArena.NIL) {
+            return PacketArena.NIL;
+        }
+        if ((this.head = this.arena.next(h)) == PacketArena.NIL) {
+            this.tail = PacketArena.NIL;
+        }
+        this.arena.next(h, PacketArena.NIL);
+        this.size--;
+        this.backlog = this.backlog - this.arena.size(h);
+        return h;
+    }
+
+    /**
+     * detach the complete chain in one step, handles are still linked by next
+     * @return first handle of the chain or NIL
+     */
+    public int detach() {
+        final int h = this.head;
+        this.head = PacketArena.NIL;
+        this.tail = PacketArena.NIL;
+        this.size = 0;
+        this.backlog = 0;
+        return h;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * Called by HeavyHitters when a flow key goes above the byte threshold within the window.
+ * Called once per key per window, from SFQCodel.enqueue() after the packet is queued.
+ * The policy may act on the flow using setFlowWeight(), demoteFlow() or purgeFlow().
+ */
+public interface HeavyHitterPolicy {
+    /**
+     * @param codel queue the packet is queued on
+     * @param flow flow index
+     * @param key classifier value of the flow
+     * @param bytes estimated bytes of the key in the window
+     */
+    void heavyHitter(SFQCodel codel, int flow, int key, long bytes);
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.util.Arrays;
+
+/**
+ * Heavy hitter detection on enqueue without a counter per flow.
+ *
+ * Bytes per classifier key are counted in a count-min sketch (4 rows). The sliding window is made of two
+ * epochs : the estimate is the sum of the current and the previous epoch, so it covers between one and two windows.
+ * The top K keys are kept in a small candidate table (space saving style) : a key replaces the smallest
+ * candidate when its estimate is bigger.
+ *
+ * Estimates never undercount, a key may be overestimated when it collides with heavy keys in all rows.
+ * Not thread safe, same threading rules as SFQCodel.
+ */
+public class HeavyHitters {
+    private static final int DEPTH=4;
+    private static final int[] SEEDS={0x9E3779B1,0x85EBCA77,0xC2B2AE3D,0x27D4EB2F};
+
+    /**
+     * demote heavy hitter : flow loses its new flow priority and its remaining deficit
+     */
+    public static final HeavyHitterPolicy DEMOTE=new HeavyHitterPolicy() {
+        @Override
+        public void heavyHitter(SFQCodel codel, int flow, int key, long bytes) {
+            codel.demoteFlow(flow);
+        }
+    };
+
+    private final int width;
+    private final int mask;
+    private final long window;
+    private long[] current;
+    private long[] previous;
+    private long epoch_end=Long.MIN_VALUE;
+
+    private final int[] keys;
+    private final long[] bytes;
+    private final boolean[] reported;
+    private int count;
+
+    private HeavyHitterPolicy policy;
+    private long threshold;
+
+    /**
+     * @param width counters per row, rounded up to power of 2
+     * @param k number of top talkers tracked
+     * @param window window in msec
+     */
+    public HeavyHitters(final int width, final int k, final long window) {
+        int w=1;
+        while (w < width) {
+            w=w<<1;
+        }
+        this.width=w;
+        this.mask=w-1;
+        this.window=window;
+        this.current=new long[DEPTH*w];
+        this.previous=new long[DEPTH*w];
+        this.keys=new int[k];
+        this.bytes=new long[k];
+        this.reported=new boolean[k];
+    }
+
+    /**
+     * call policy when a key has more than threshold bytes in the window, null to disable
+     */
+    public void setPolicy(final HeavyHitterPolicy policy, final long threshold) {
+        this.policy=policy;
+        this.threshold=threshold;
+    }
+
+    private int slot(final int key, final int row) {
+        int h=key*SEEDS[row];
+        h=h^(h>>>16);
+        return row* this.width+(h & this.mask);
+    }
+
+    private void roll(final long now) {
+        if (now >= this.epoch_end+ this.window) {
+            //idle for more than a window, nothing to keep
+            Arrays.fill(this.previous,0);
+            this.epoch_end=now+ this.window;
+        } else {
+            final long[] tmp= this.previous;
+            this.previous= this.current;
+            this.current=tmp;
+            this.epoch_end= this.epoch_end+ this.window;
+        }
+        Arrays.fill(this.current,0);
+        int n=0;
+        for (int i=0;i< this.count;i++) {
+            final long estimate= this.estimate(this.keys[i]);
+            if (estimate > 0) {
+                this.keys[n]= this.keys[i];
+                this.bytes[n]=estimate;
+                this.reported[n]=false;
+                n++;
+            }
+        }
+        this.count=n;
+    }
+
+    /**
+     * account packet of key
+     * @param codel queue calling the policy
+     * @param key classifier value
+     * @param flow flow index
+     * @param size packet size
+     * @param now time in msec
+     */
+    public void update(final SFQCodel codel, final int key, final int flow, final int size, final long now) {
+        if (now >= this.epoch_end) {
+            this.roll(now);
+        }
+        long estimate=Long.MAX_VALUE;
+        for (int row=0;row<DEPTH;row++) {
+            final int i= this.slot(key,row);
+            this.current[i]= this.current[i]+size;
+            estimate=Math.min(estimate, this.current[i]+ this.previous[i]);
+        }
+        int slot=-1;
+        int min=0;
+        for (int i=0;i< this.count;i++) {
+            if (this.keys[i] == key) {
+                slot=i;
+                break;
+            }
+            if (this.bytes[i] < this.bytes[min]) {
+                min=i;
+            }
+        }
+        if (slot < 0) {
+            if (this.count < this.keys.length) {
+                slot= this.count++;
+            } else if (estimate > this.bytes[min]) {
+                slot=min;
+            } else {
+                return;
+            }
+            this.keys[slot]=key;
+            this.reported[slot]=false;
+        }
+        this.bytes[slot]=estimate;
+        if (this.policy != null && estimate >= this.threshold && !this.reported[slot]) {
+            this.reported[slot]=true;
+            this.policy.heavyHitter(codel,flow,key,estimate);
+        }
+    }
+
+    /**
+     * @return estimated bytes of key in the window
+     */
+    public long estimate(final int key) {
+        long estimate=Long.MAX_VALUE;
+        for (int row=0;row<DEPTH;row++) {
+            final int i= this.slot(key,row);
+            estimate=Math.min(estimate, this.current[i]+ this.previous[i]);
+        }
+        return estimate;
+    }
+
+    /**
+     * copy top talkers, biggest first
+     * @param keys classifier values
+     * @param bytes estimated bytes in the window, at least as long as keys
+     * @return number of top talkers copied
+     */
+    public int topTalkers(final int[] keys, final long[] bytes) {
+        if (bytes.length < keys.length) {
+            throw new IllegalArgumentException("bytes shorter than keys : "+bytes.length+" < "+keys.length);
+        }
+        if (keys.length == 0) {
+            return 0;
+        }
+        int n=0;
+        for (int i=0;i< this.count;i++) {
+            //insertion sort, K is small
+            int j;
+            if (n < keys.length) {
+                j=n++;
+            } else if (bytes[n-1] < this.bytes[i]) {
+                j=n-1;
+            } else {
+                continue;
+            }
+            while (j > 0 && bytes[j-1] < this.bytes[i]) {
+                keys[j]=keys[j-1];
+                bytes[j]=bytes[j-1];
+                j--;
+            }
+            keys[j]= this.keys[i];
+            bytes[j]= this.bytes[i];
+        }
+        return n;
+    }
+
+    public void reset() {
+        Arrays.fill(this.current,0);
+        Arrays.fill(this.previous,0);
+        this.count=0;
+        this.epoch_end=Long.MIN_VALUE;
+    }
+}
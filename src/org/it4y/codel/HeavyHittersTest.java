@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HeavyHittersTest {
+
+    @Test
+    public void testTopTalkers() {
+        HeavyHitters hh = new HeavyHitters(1024, 4, 1000);
+        //1000 mice of 100 bytes, 3 elephants
+        for (int round = 0; round < 10; round++) {
+            for (int key = 1000; key < 2000; key++) {
+                hh.update(null, key, 0, 10, 0);
+            }
+            hh.update(null, 1, 0, 10000, 0);
+            hh.update(null, 2, 0, 5000, 0);
+            hh.update(null, 3, 0, 2500, 0);
+        }
+        Assert.assertTrue(hh.estimate(1) >= 100000);
+        //count-min never undercounts
+        Assert.assertTrue(hh.estimate(1500) >= 100);
+
+        int[] keys = new int[3];
+        long[] bytes = new long[3];
+        Assert.assertEquals(3, hh.topTalkers(keys, bytes));
+        Assert.assertArrayEquals(new int[]{1, 2, 3}, keys);
+        Assert.assertTrue(bytes[0] >= 100000 && bytes[0] < 101000);
+        Assert.assertTrue(bytes[1] >= 50000 && bytes[1] < 51000);
+        Assert.assertTrue(bytes[2] >= 25000 && bytes[2] < 26000);
+
+        //no room for top talkers
+        Assert.assertEquals(0, hh.topTalkers(new int[0], new long[0]));
+        try {
+            hh.topTalkers(new int[3], new long[2]);
+            Assert.fail("bytes shorter than keys");
+        } catch (IllegalArgumentException expected) {
+            //rejected before any copy
+        }
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        HeavyHitters hh = new HeavyHitters(256, 4, 100);
+        hh.update(null, 7, 0, 1000, 0);
+        //next epoch, previous epoch still counts
+        hh.update(null, 7, 0, 500, 150);
+        Assert.assertEquals(1500, hh.estimate(7));
+        //first epoch leaves the window
+        hh.update(null, 7, 0, 200, 250);
+        Assert.assertEquals(700, hh.estimate(7));
+        //idle for more than a window
+        hh.update(null, 8, 0, 100, 1000);
+        Assert.assertEquals(0, hh.estimate(7));
+        int[] keys = new int[4];
+        long[] bytes = new long[4];
+        Assert.assertEquals(1, hh.topTalkers(keys, bytes));
+        Assert.assertEquals(8, keys[0]);
+        hh.reset();
+        Assert.assertEquals(0, hh.topTalkers(keys, bytes));
+    }
+
+    @Test
+    public void testDemotePolicy() {
+        SFQCodel codel = new SFQCodel();
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        HeavyHitters hh = new HeavyHitters(1024, 8, 1000);
+        final int[] reported = new int[2];
+        hh.setPolicy(new HeavyHitterPolicy() {
+            @Override
+            public void heavyHitter(SFQCodel codel, int flow, int key, long bytes) {
+                reported[0]++;
+                reported[1] = key;
+                HeavyHitters.DEMOTE.heavyHitter(codel, flow, key, bytes);
+            }
+        }, 5000);
+        codel.setHeavyHitters(hh);
+        Assert.assertSame(hh, codel.getHeavyHitters());
+        for (int i = 0; i < 10; i++) {
+            codel.enqueue(new Packet(1000));
+        }
+        codel.enqueue(new Packet(100));
+        //reported once per window
+        Assert.assertEquals(1, reported[0]);
+        Assert.assertEquals(1000, reported[1]);
+        //demoted elephant lost its new flow priority, the mouse goes first
+        Assert.assertEquals(100, codel.dequeue().size);
+        Assert.assertEquals(1000, codel.dequeue().size);
+    }
+}
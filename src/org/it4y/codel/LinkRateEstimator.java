@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * Estimate link rate from the dequeue rate. Only sample periods during which the queue
+ * stayed backlogged are used, otherwise the dequeue rate is the offered load and not the link rate.
+ * Samples are smoothed with an EWMA (1/8 weight for the new sample).
+ */
+public class LinkRateEstimator {
+    private final long period;
+    private long start=-1;
+    private long bytes;
+    private long rate;
+
+    /**
+     * @param period sample period in msec
+     */
+    public LinkRateEstimator(final long period) {
+        this.period=period;
+    }
+
+    /**
+     * account a dequeued packet
+     * @param size packet size
+     * @param now time in msec
+     * @param backlogged true if the queue still has packets after this dequeue
+     * @return true if the rate estimation changed
+     */
+    public boolean update(final int size, final long now, final boolean backlogged) {
+        if (this.start < 0) {
+            //start sampling from the first dequeue, this packet was sent before the period starts
+            this.start=now;
+            this.bytes=0;
+            return false;
+        }
+        this.bytes= this.bytes+size;
+        if (!backlogged) {
+            //link was idle, sample is invalid
+            this.start=-1;
+            return false;
+        }
+        final long delta=now- this.start;
+        if (delta < this.period) {
+            return false;
+        }
+        final long sample= this.bytes*1000L/delta;
+        if (this.rate == 0) {
+            this.rate=sample;
+        } else {
+            this.rate= this.rate+(sample- this.rate)/8;
+        }
+        this.start=now;
+        this.bytes=0;
+        return true;
+    }
+
+    /**
+     * @return estimated link rate in bytes/sec, 0 if unknown
+     */
+    public long getRate() {
+        return this.rate;
+    }
+
+    public void reset() {
+        this.start=-1;
+        this.bytes=0;
+        this.rate=0;
+    }
+}
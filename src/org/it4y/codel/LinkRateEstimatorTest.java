@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LinkRateEstimatorTest {
+
+    @Test
+    public void testEstimateBackloggedRate() {
+        LinkRateEstimator estimator = new LinkRateEstimator(100);
+        Assert.assertEquals(0, estimator.getRate());
+        //1000 bytes every msec = 1 Mbyte/sec
+        boolean updated = false;
+        for (long now = 0; now <= 100; now++) {
+            updated = estimator.update(1000, now, true);
+        }
+        Assert.assertTrue(updated);
+        Assert.assertEquals(1000000, estimator.getRate());
+
+        //rate halves, ewma moves smoothly towards new rate
+        long prev = estimator.getRate();
+        for (long now = 102; now <= 1000; now += 2) {
+            if (estimator.update(1000, now, true)) {
+                Assert.assertTrue(estimator.getRate() < prev);
+                prev = estimator.getRate();
+            }
+        }
+        Assert.assertTrue(estimator.getRate() < 700000);
+        Assert.assertTrue(estimator.getRate() > 500000);
+    }
+
+    @Test
+    public void testIdleLinkIgnored() {
+        LinkRateEstimator estimator = new LinkRateEstimator(100);
+        //queue runs empty after each packet, dequeue rate is not the link rate
+        for (long now = 0; now <= 1000; now++) {
+            Assert.assertFalse(estimator.update(1000, now, false));
+        }
+        Assert.assertEquals(0, estimator.getRate());
+    }
+
+    @Test
+    public void testAutoTuneSFQCodel() {
+        SFQCodel codel = new SFQCodel();
+        Assert.assertEquals(10, codel.getTarget());
+        Assert.assertEquals(100, codel.getInterval());
+        codel.setAutoTune(100);
+
+        //fast link : target is 5% of rtt
+        codel.tune(1000000000L);
+        Assert.assertEquals(5, codel.getTarget());
+        Assert.assertEquals(100, codel.getInterval());
+
+        //64 kbit/sec : 1500 byte mtu takes 187.5 msec, target must be 1.5 mtu time
+        codel.tune(8000L);
+        Assert.assertEquals(282, codel.getTarget());
+        Assert.assertEquals(564, codel.getInterval());
+
+        //disable restores configured values
+        codel.setAutoTune(0);
+        Assert.assertEquals(10, codel.getTarget());
+        Assert.assertEquals(100, codel.getInterval());
+        Assert.assertEquals(0, codel.getLinkRate());
+    }
+}
@@ -26,21 +26,28 @@ package org.it4y.codel;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by luc on 8/22/14.
+ *
+ * Generic list code calls next() through the Queueable interface and the done hooks virtually.
+ * PacketQueue and FlowQueue override the per element operations with typed link code, counters,
+ * stats and wakeups stay here in linked() and unlinked().
  */
 public abstract class LinkedQueue<T extends Queueable<T>> {
-    private volatile T head;
-    private T tail;
+    //package access for the typed link code of PacketQueue and FlowQueue, written with the lock
+    volatile T head;
+    T tail;
     private int size;
     private long waited;
     private long added;
     private long removed;
+    private QueueListener listener;
+    private long waitThreshold;
+    private QueueStats stats;
 
-    final Lock lock = new ReentrantLock();
+    final ReentrantLock lock = new ReentrantLock();
     final Condition notEmpty = this.lock.newCondition();
 
     public boolean isEmpty() {
@@ -52,8 +59,15 @@ public abstract class LinkedQueue<T extends Queueable<T>> {
             this.lock.lock();
             try {
                 if (this.head == null) {
+                    final long start= this.listener == null ? 0 : System.nanoTime();
                     this.notEmpty.await(time, unit);
                     this.waited++;
+                    if (this.listener != null) {
+                        this.waitDone(start);
+                    }
+                    if (this.stats != null) {
+                        this.publish();
+                    }
                 }
                 return this.remove();
             } finally {
@@ -67,10 +81,17 @@ public abstract class LinkedQueue<T extends Queueable<T>> {
         if (this.head==null) {
             this.lock.lock();
             try {
+                final long start= this.listener == null ? 0 : System.nanoTime();
                 while (this.head == null) {
                     this.notEmpty.await();
                     this.waited++;
                 }
+                if (this.listener != null) {
+                    this.waitDone(start);
+                }
+                if (this.stats != null) {
+                    this.publish();
+                }
                 return this.remove();
             } finally {
                 this.lock.unlock();
@@ -79,6 +100,61 @@ public abstract class LinkedQueue<T extends Queueable<T>> {
         return remove();
     }
 
+    private void waitDone(final long start) {
+        final long delta=System.nanoTime()-start;
+        if (delta >= this.waitThreshold) {
+            this.listener.takeWait(delta);
+        }
+    }
+
+    /**
+     * report Take() waits longer than threshold to listener, null to disable
+     * @param listener
+     * @param threshold minimum wait time in nsec
+     */
+    public void setListener(final QueueListener listener, final long threshold) {
+        this.waitThreshold=threshold;
+        this.listener=listener;
+    }
+
+    /**
+     * publish counters to stats on every change, so other threads can read them with QueueStats.read()
+     * @param stats QUEUE_COUNTERS stats or null to disable
+     */
+    public void setStats(final QueueStats stats) {
+        this.lock.lock();
+        try {
+            this.stats=stats;
+            if (stats != null) {
+                this.publish();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public QueueStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * must be called with the lock, writers are serialized by the lock.
+     * Package access so RingCodelPacketQueue can publish its ring counters
+     */
+    void publish() {
+        final QueueStats s= this.stats;
+        s.begin();
+        s.set(QueueStats.SIZE, this.size);
+        s.set(QueueStats.BACKLOG, this.chainBytes());
+        s.set(QueueStats.ADDED, this.added);
+        s.set(QueueStats.REMOVED, this.removed);
+        s.set(QueueStats.WAITED, this.waited);
+        s.end();
+    }
+
+    /**
+     * plain read, only exact for the thread owning the queue. Other threads should use setStats()
+     */
     public int size() {
         return this.size;
     }
@@ -98,30 +174,204 @@ public abstract class LinkedQueue<T extends Queueable<T>> {
         return this.head;
     }
 
+    public T last() {
+        return this.tail;
+    }
+
 
     public abstract void doneAdd(T x);
 
     public abstract void doneRemove(T x);
 
+    /**
+     * this method is called during the internal R/W lock of the queue
+     * @param x first element of the detached chain
+     * @param count number of elements in the chain
+     */
+    public abstract void doneDetach(T x, int count);
+
+    /**
+     * this method is called during the internal R/W lock of the queue
+     * @param x first element of the added chain
+     * @param count number of elements in the chain
+     * @param bytes bytes of the chain as given to addAll()
+     */
+    public abstract void doneAddAll(T x, int count, long bytes);
+
+    /**
+     * bytes queued, handed to the target queue by drainTo() and published as BACKLOG.
+     * Called during the internal R/W lock of the queue
+     */
+    protected long chainBytes() {
+        return 0;
+    }
+
+    /**
+     * count elements linked at the head or tail, publish and wake takers. Called with the lock
+     */
+    final void linked(final int count) {
+        this.size = this.size + count;
+        this.added = this.added + count;
+        if (this.stats != null) {
+            this.publish();
+        }
+        if (count == 1) {
+            this.notEmpty.signal();
+        } else {
+            this.notEmpty.signalAll();
+        }
+    }
+
+    /**
+     * count elements unlinked from the head and publish. Called with the lock
+     */
+    final void unlinked(final int count) {
+        this.size = this.size - count;
+        this.removed = this.removed + count;
+        if (this.stats != null) {
+            this.publish();
+        }
+    }
+
+    /**
+     * count an element replaced in place and publish. Called with the lock
+     */
+    final void replaced() {
+        this.added++;
+        this.removed++;
+        if (this.stats != null) {
+            this.publish();
+        }
+    }
+
     public void add(final T x) {
         this.lock.lock();
         try {
             if (this.tail == null) {
                 this.head = x;
-                this.tail = x;
             } else {
                 this.tail.next(x);
-                this.tail = x;
             }
-            this.size++;
-            this.added++;
+            this.tail = x;
             this.doneAdd(x);
-            this.notEmpty.signal();
+            this.linked(1);
       } finally {
             this.lock.unlock();
       }
     }
 
+    /**
+     * add element in front of the queue
+     */
+    public void push(final T x) {
+        this.lock.lock();
+        try {
+            x.next(this.head);
+            if (this.tail == null) {
+                this.tail = x;
+            }
+            this.head = x;
+            this.doneAdd(x);
+            this.linked(1);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * append a chain of elements linked with next() in one step
+     * @param first first element of the chain
+     * @param last last element of the chain, last.next() must be null
+     * @param count number of elements in the chain
+     * @param bytes bytes of the chain, must be exact for queues keeping a backlog
+     */
+    public void addAll(final T first, final T last, final int count, final long bytes) {
+        if (first == null) {
+            return;
+        }
+        this.lock.lock();
+        try {
+            if (this.tail == null) {
+                this.head = first;
+            } else {
+                this.tail.next(first);
+            }
+            this.tail = last;
+            this.doneAddAll(first, count, bytes);
+            this.linked(count);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * move all elements to the tail of target, one lock round trip on each queue.
+     * Locks are not held together so two queues draining into each other can not deadlock.
+     * @return number of elements moved
+     */
+    public int drainTo(final LinkedQueue<T> target) {
+        if (this.head == null) {
+            return 0;
+        }
+        final T first;
+        final T last;
+        final int count;
+        final long bytes;
+        this.lock.lock();
+        try {
+            first = this.head;
+            if (first == null) {
+                return 0;
+            }
+            last = this.tail;
+            count = this.size;
+            bytes = this.chainBytes();
+            this.head = null;
+            this.tail = null;
+            this.doneDetach(first, count);
+            this.unlinked(count);
+        } finally {
+            this.lock.unlock();
+        }
+        target.addAll(first, last, count, bytes);
+        return count;
+    }
+
+    /**
+     * remove up to max elements from the head into array, in one lock round trip
+     * @return number of elements stored in array starting at offset
+     */
+    public int drainTo(final T[] array, final int offset, final int max) {
+        if (this.head == null) {
+            return 0;
+        }
+        this.lock.lock();
+        try {
+            T x = this.head;
+            int count = 0;
+            while (x != null && count < max) {
+                final T next = x.next();
+                x.next(null);
+                array[offset + count] = x;
+                count++;
+                this.doneRemove(x);
+                x = next;
+            }
+            this.head = x;
+            if (x == null) {
+                this.tail = null;
+            }
+            this.unlinked(count);
+            return count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int drainTo(final T[] array) {
+        return this.drainTo(array, 0, array.length);
+    }
+
     public T remove() {
         if (head == null) {
             return null;
@@ -134,9 +384,8 @@ public abstract class LinkedQueue<T extends Queueable<T>> {
                     this.tail = null;
                 }
                 result.next(null);
-                this.size--;
-                this.removed++;
                 this.doneRemove(result);
+                this.unlinked(1);
                 return result;
             }
             return null;
@@ -145,17 +394,84 @@ public abstract class LinkedQueue<T extends Queueable<T>> {
         }
     }
 
-    public void clear() {
+    /**
+     * replace element old by x at the same position in the queue.
+     * @param prev element in front of old, null if old is expected at the head
+     * @param old element to replace
+     * @param x new element
+     * @return true if replaced, false if old is no longer at the expected position
+     */
+    public boolean replace(final T prev, final T old, final T x) {
         this.lock.lock();
         try {
-            while (this.head != null) {
-                this.remove();
+            if (this.head == old && old != null) {
+                this.head = x;
+            } else if (prev != null && prev.next() == old && old != null) {
+                prev.next(x);
+            } else {
+                return false;
             }
+            x.next(old.next());
+            if (this.tail == old) {
+                this.tail = x;
+            }
+            old.next(null);
+            this.doneRemove(old);
+            this.doneAdd(x);
+            this.replaced();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * detach the complete chain of elements in one step, the queue is empty afterwards.
+     * Elements of the chain are still linked using next(), caller must walk and unlink them.
+     * @return first element of the chain or null if queue was empty
+     */
+    public T detach() {
+        if (this.head == null) {
+            return null;
+        }
+        this.lock.lock();
+        try {
+            final T result = this.head;
+            if (result != null) {
+                final int count = this.size;
+                this.head = null;
+                this.tail = null;
+                this.doneDetach(result, count);
+                this.unlinked(count);
+            }
+            return result;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * drop all elements and reset counters. The chain is detached in one step,
+     * elements are unlinked after the lock is released
+     */
+    public void clear() {
+        T x;
+        this.lock.lock();
+        try {
+            x = this.detach();
             this.added =0;
             this.removed =0;
             this.waited =0;
+            if (this.stats != null) {
+                this.publish();
+            }
         } finally {
             this.lock.unlock();
         }
+        while (x != null) {
+            final T next = x.next();
+            x.next(null);
+            x = next;
+        }
     }
 }
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stress tests for the LinkedQueue fast paths (volatile head checked outside the lock).
+ * Threads run add/remove/Take/clear interleavings, after the threads are joined the
+ * queue invariants are checked : no element lost or delivered twice, size and counters
+ * match the linked chain, backlog matches the queued packets.
+ * These tests must keep passing for any lock elided or lock free rewrite of LinkedQueue.
+ */
+public class LinkedQueueStressTest {
+    private static final int THREADS = 4;
+    private static final int COUNT = 50000;
+
+    static class IdPacket extends Packet {
+        final int id;
+
+        IdPacket(int id) {
+            super(1 + id % 1500);
+            this.id = id;
+        }
+    }
+
+    /**
+     * records every removed, cleared or detached packet. A packet is returned to one thread only,
+     * doneDetach runs under the queue lock
+     */
+    static class TrackedQueue extends PacketQueue {
+        final int[] removed = new int[THREADS * COUNT];
+
+        @Override
+        public Packet remove() {
+            final Packet p = super.remove();
+            if (p != null) {
+                this.removed[((IdPacket) p).id]++;
+            }
+            return p;
+        }
+
+        @Override
+        public int drainTo(Packet[] array, int offset, int max) {
+            final int count = super.drainTo(array, offset, max);
+            for (int i = 0; i < count; i++) {
+                this.removed[((IdPacket) array[offset + i]).id]++;
+            }
+            return count;
+        }
+
+        @Override
+        public void doneDetach(Packet p, int count) {
+            super.doneDetach(p, count);
+            for (; p != null; p = p.next()) {
+                this.removed[((IdPacket) p).id]++;
+            }
+        }
+    }
+
+    private static void runAll(Runnable[] tasks) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final Runnable task = tasks[i];
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        task.run();
+                    } catch (Throwable t) {
+                        synchronized (error) {
+                            error[0] = t;
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(60000);
+            Assert.assertFalse("thread hangs, lost wakeup ?", t.isAlive());
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw new AssertionError(error[0]);
+            }
+        }
+    }
+
+    private static Runnable producer(final PacketQueue queue, final int offset) {
+        return new Runnable() {
+            public void run() {
+                for (int i = 0; i < COUNT; i++) {
+                    queue.add(new IdPacket(offset + i));
+                }
+            }
+        };
+    }
+
+    /**
+     * check counters, size and backlog against the linked chain of a quiet queue
+     */
+    private static int checkQueue(PacketQueue queue) {
+        int count = 0;
+        int backlog = 0;
+        Packet p = queue.first();
+        Packet last = null;
+        while (p != null) {
+            count++;
+            backlog = backlog + p.size;
+            last = p;
+            p = p.next();
+        }
+        Assert.assertSame(last, queue.last());
+        Assert.assertEquals(count, queue.size());
+        Assert.assertEquals(backlog, queue.getBacklog());
+        Assert.assertEquals(count, queue.getAdded() - queue.getRemoved());
+        Assert.assertEquals(count == 0, queue.isEmpty());
+        return count;
+    }
+
+    @Test
+    public void testConcurrentAddRemove() throws InterruptedException {
+        final TrackedQueue queue = new TrackedQueue();
+        final int total = THREADS * COUNT;
+        final int[] taken = new int[THREADS];
+        Runnable[] tasks = new Runnable[THREADS * 2];
+        for (int i = 0; i < THREADS; i++) {
+            final int n = i;
+            tasks[i] = producer(queue, i * COUNT);
+            //consumers spin on the remove() fast path
+            tasks[THREADS + i] = new Runnable() {
+                public void run() {
+                    while (queue.getRemoved() < total) {
+                        if (queue.remove() != null) {
+                            taken[n]++;
+                        }
+                    }
+                }
+            };
+        }
+        runAll(tasks);
+        int sum = 0;
+        for (int t : taken) {
+            sum += t;
+        }
+        Assert.assertEquals(total, sum);
+        for (int i = 0; i < total; i++) {
+            Assert.assertEquals("packet " + i, 1, queue.removed[i]);
+        }
+        Assert.assertEquals(0, checkQueue(queue));
+        Assert.assertEquals(total, queue.getAdded());
+    }
+
+    @Test
+    public void testConcurrentTake() throws InterruptedException {
+        final TrackedQueue queue = new TrackedQueue();
+        Runnable[] tasks = new Runnable[THREADS * 2];
+        for (int i = 0; i < THREADS; i++) {
+            tasks[i] = producer(queue, i * COUNT);
+            //every consumer takes exactly COUNT packets, a lost wakeup hangs the consumer
+            tasks[THREADS + i] = new Runnable() {
+                public void run() {
+                    int n = 0;
+                    try {
+                        while (n < COUNT) {
+                            if ((n & 1) == 0) {
+                                if (queue.Take() != null) {
+                                    n++;
+                                }
+                            } else if (queue.Take(1, TimeUnit.MILLISECONDS) != null) {
+                                n++;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        runAll(tasks);
+        for (int i = 0; i < THREADS * COUNT; i++) {
+            Assert.assertEquals("packet " + i, 1, queue.removed[i]);
+        }
+        Assert.assertEquals(0, checkQueue(queue));
+    }
+
+    @Test
+    public void testConcurrentStatsSnapshot() throws InterruptedException {
+        final PacketQueue queue = new PacketQueue();
+        final PacketQueue other = new PacketQueue();
+        final QueueStats stats = new QueueStats(QueueStats.QUEUE_COUNTERS);
+        queue.setStats(stats);
+        final int total = THREADS * COUNT;
+        final boolean[] done = new boolean[1];
+        Runnable[] tasks = new Runnable[THREADS + 3];
+        for (int i = 0; i < THREADS; i++) {
+            tasks[i] = new Runnable() {
+                public void run() {
+                    for (int n = 0; n < COUNT; n++) {
+                        queue.add(new Packet(100));
+                    }
+                }
+            };
+        }
+        tasks[THREADS] = new Runnable() {
+            public void run() {
+                Packet[] batch = new Packet[16];
+                while (queue.getRemoved() < total) {
+                    if (queue.remove() == null) {
+                        queue.drainTo(batch);
+                    }
+                }
+                done[0] = true;
+            }
+        };
+        tasks[THREADS + 1] = new Runnable() {
+            public void run() {
+                while (!done[0]) {
+                    queue.drainTo(other);
+                    other.clear();
+                    Thread.yield();
+                }
+            }
+        };
+        //monitor reads snapshots without the queue lock, counters must always match each other
+        tasks[THREADS + 2] = new Runnable() {
+            public void run() {
+                long[] snapshot = new long[QueueStats.QUEUE_COUNTERS];
+                long prev = 0;
+                while (!done[0]) {
+                    long seq = stats.read(snapshot);
+                    Assert.assertEquals(0, seq & 1);
+                    Assert.assertTrue(seq >= prev);
+                    prev = seq;
+                    Assert.assertEquals(snapshot[QueueStats.ADDED] - snapshot[QueueStats.REMOVED], snapshot[QueueStats.SIZE]);
+                    Assert.assertEquals(snapshot[QueueStats.SIZE] * 100, snapshot[QueueStats.BACKLOG]);
+                }
+            }
+        };
+        runAll(tasks);
+        long[] snapshot = new long[QueueStats.QUEUE_COUNTERS];
+        stats.read(snapshot);
+        Assert.assertEquals(0, checkQueue(queue));
+        Assert.assertEquals(0, snapshot[QueueStats.SIZE]);
+        Assert.assertEquals(total, snapshot[QueueStats.ADDED]);
+        Assert.assertEquals(total, snapshot[QueueStats.REMOVED]);
+    }
+
+    @Test
+    public void testConcurrentClearDetach() throws InterruptedException {
+        final TrackedQueue queue = new TrackedQueue();
+        final int[] queued = new int[THREADS * COUNT];
+        final boolean[] done = new boolean[1];
+        Runnable[] tasks = new Runnable[THREADS + 3];
+        for (int i = 0; i < THREADS; i++) {
+            tasks[i] = producer(queue, i * COUNT);
+        }
+        tasks[THREADS] = new Runnable() {
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    queue.clear();
+                    Thread.yield();
+                }
+            }
+        };
+        tasks[THREADS + 1] = new Runnable() {
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    Packet p = queue.detach();
+                    while (p != null) {
+                        Packet next = p.next();
+                        p.next(null);
+                        p = next;
+                    }
+                    Thread.yield();
+                }
+            }
+        };
+        //monitor reads plain fields without lock, values must stay in range
+        tasks[THREADS + 2] = new Runnable() {
+            public void run() {
+                for (int i = 0; i < 100000; i++) {
+                    int size = queue.size();
+                    Assert.assertTrue(size >= 0 && size <= THREADS * COUNT);
+                    Assert.assertTrue(queue.getBacklog() >= 0);
+                }
+            }
+        };
+        runAll(tasks);
+        //every packet is removed or still queued, exactly once
+        Packet p = queue.first();
+        while (p != null) {
+            queued[((IdPacket) p).id]++;
+            p = p.next();
+        }
+        for (int i = 0; i < THREADS * COUNT; i++) {
+            Assert.assertEquals("packet " + i, 1, queue.removed[i] + queued[i]);
+        }
+        checkQueue(queue);
+        queue.clear();
+        Assert.assertEquals(0, checkQueue(queue));
+    }
+
+    @Test
+    public void testConcurrentFlowQueueMove() throws InterruptedException {
+        //flows move between new and old flows list like the SFQCodel scheduler
+        final FlowQueue new_flows = new FlowQueue();
+        final FlowQueue old_flows = new FlowQueue();
+        final int flows = 64;
+        final PacketQueue[] queues = new PacketQueue[flows];
+        for (int i = 0; i < flows; i++) {
+            queues[i] = new PacketQueue();
+            new_flows.add(queues[i]);
+        }
+        Runnable[] tasks = new Runnable[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final boolean forward = (i & 1) == 0;
+            tasks[i] = new Runnable() {
+                public void run() {
+                    final FlowQueue from = forward ? new_flows : old_flows;
+                    final FlowQueue to = forward ? old_flows : new_flows;
+                    for (int n = 0; n < COUNT; n++) {
+                        PacketQueue q = from.remove();
+                        if (q != null) {
+                            to.add(q);
+                        }
+                    }
+                }
+            };
+        }
+        runAll(tasks);
+        Assert.assertEquals(flows, new_flows.size() + old_flows.size());
+        Assert.assertEquals(new_flows.getAdded() - new_flows.getRemoved(), new_flows.size());
+        Assert.assertEquals(old_flows.getAdded() - old_flows.getRemoved(), old_flows.size());
+        //every flow linked once and knows its flow queue
+        boolean[] seen = new boolean[flows];
+        for (FlowQueue fq : new FlowQueue[]{new_flows, old_flows}) {
+            PacketQueue q = fq.first();
+            while (q != null) {
+                Assert.assertSame(fq, q.flowQueue());
+                for (int i = 0; i < flows; i++) {
+                    if (queues[i] == q) {
+                        Assert.assertFalse(seen[i]);
+                        seen[i] = true;
+                    }
+                }
+                q = q.next();
+            }
+        }
+        for (boolean s : seen) {
+            Assert.assertTrue(s);
+        }
+    }
+}
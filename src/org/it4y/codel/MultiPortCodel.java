@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * One SFQCodel per egress port, all drawing from one SharedBufferPool.
+ * Admission uses the dynamic threshold of the pool, so idle ports do not strand memory and
+ * a busy port can use a large part of the pool while others are idle.
+ *
+ * Each port has the same threading rules as SFQCodel, the pool reserves admitted packets atomically so
+ * ports can be serviced by different threads. Pool accounting is per packet : enqueue() reserves the packet,
+ * the port gives back every packet it drops, including purge and reset through getPort(), and dequeue()
+ * gives back the packet it returns. So ring and multi consumer ports keep the pool exact.
+ * Packets of a port must be dequeued with dequeue(), not through getPort().
+ */
+public class MultiPortCodel {
+    private final SFQCodel[] ports;
+    private final SharedBufferPool pool;
+    private final long[] admitted;
+    private final long[] rejected;
+
+    /**
+     * @param portCount number of egress ports
+     * @param maxPackets packets shared by all ports
+     * @param maxBytes bytes shared by all ports
+     * @param alpha dynamic threshold factor in 1/8 units, 8 means alpha=1
+     */
+    public MultiPortCodel(final int portCount, final int maxPackets, final long maxBytes, final int alpha) {
+        this.pool = new SharedBufferPool(maxPackets, maxBytes, alpha);
+        this.ports = new SFQCodel[portCount];
+        this.admitted = new long[portCount];
+        this.rejected = new long[portCount];
+        for (int i = 0; i < portCount; i++) {
+            //pool limits the port, local overflow drop is only a safety net
+            this.ports[i] = new SFQCodel(maxPackets, 1024, 1500, 100, 10);
+            this.ports[i].setPool(this.pool);
+        }
+    }
+
+    /**
+     * @return SFQCodel of port, to set classifier and other options
+     */
+    public SFQCodel getPort(final int port) {
+        return this.ports[port];
+    }
+
+    public SharedBufferPool getPool() {
+        return this.pool;
+    }
+
+    /**
+     * queue packet on port, packet is dropped when port is above its dynamic threshold
+     * @return true if packet is admitted
+     */
+    public boolean enqueue(final int port, final Packet p) {
+        final SFQCodel codel = this.ports[port];
+        if (!this.pool.reserve(codel.size(), codel.backlog(), p.size)) {
+            this.rejected[port]++;
+            p.drop();
+            return false;
+        }
+        this.admitted[port]++;
+        //packet is reserved, packets codel drops or replaces are given back by the port
+        codel.enqueue(p);
+        return true;
+    }
+
+    /**
+     * dequeue packet from port, packets dropped by codel are returned to the pool too
+     */
+    public Packet dequeue(final int port) {
+        final Packet p = this.ports[port].dequeue();
+        if (p != null) {
+            this.pool.add(-1, -p.size);
+        }
+        return p;
+    }
+
+    /**
+     * drop all packets of a port
+     */
+    public void reset(final int port) {
+        this.ports[port].reset();
+    }
+
+    public int getPortCount() {
+        return this.ports.length;
+    }
+
+    public int getPortSize(final int port) {
+        return this.ports[port].size();
+    }
+
+    public int getPortBacklog(final int port) {
+        return this.ports[port].backlog();
+    }
+
+    public long getAdmitted(final int port) {
+        return this.admitted[port];
+    }
+
+    public long getRejected(final int port) {
+        return this.rejected[port];
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MultiPortCodelTest {
+
+    private static int fill(MultiPortCodel codel, int port, int count) {
+        int accepted = 0;
+        for (int i = 0; i < count; i++) {
+            if (codel.enqueue(port, new Packet(100))) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    @Test
+    public void testDynamicThreshold() {
+        //alpha=1 : single busy port gets half of the pool
+        MultiPortCodel codel = new MultiPortCodel(2, 1000, 1000000L, 8);
+        Assert.assertEquals(500, fill(codel, 0, 2000));
+        Assert.assertEquals(500, codel.getPortSize(0));
+        Assert.assertEquals(500, codel.getAdmitted(0));
+        Assert.assertEquals(1500, codel.getRejected(0));
+        Assert.assertEquals(500, codel.getPool().getPackets());
+        Assert.assertEquals(50000, codel.getPool().getBytes());
+
+        //second port gets a share of the remaining space
+        Assert.assertEquals(250, fill(codel, 1, 2000));
+        Assert.assertEquals(750, codel.getPool().getPackets());
+        Assert.assertEquals(250, codel.getPool().packetThreshold());
+
+        //dequeue returns memory to the pool
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull(codel.dequeue(0));
+        }
+        Assert.assertEquals(650, codel.getPool().getPackets());
+        Assert.assertEquals(65000, codel.getPool().getBytes());
+
+        codel.reset(0);
+        codel.reset(1);
+        Assert.assertEquals(0, codel.getPool().getPackets());
+        Assert.assertEquals(0, codel.getPool().getBytes());
+    }
+
+    @Test
+    public void testByteBudget() {
+        //alpha=2 : single port may use 2/3 of the pool, byte budget is the limit here
+        MultiPortCodel codel = new MultiPortCodel(4, 10000, 30000L, 16);
+        Assert.assertEquals(200, fill(codel, 3, 1000));
+        Assert.assertEquals(20000, codel.getPortBacklog(3));
+        Assert.assertEquals(0, codel.getPortSize(0));
+        codel.reset(3);
+        Assert.assertEquals(0, codel.getPool().getBytes());
+    }
+
+    @Test
+    public void testPerPacketAccounting() {
+        MultiPortCodel codel = new MultiPortCodel(2, 1000, 1000000L, 8);
+        codel.getPort(0).setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        Assert.assertEquals(100, fill(codel, 0, 100));
+        codel.enqueue(0, new Packet(200));
+        //purge and reset through the port give the dropped packets back
+        Assert.assertEquals(100, codel.getPort(0).purgeFlow(100));
+        Assert.assertEquals(1, codel.getPool().getPackets());
+        Assert.assertEquals(200, codel.getPool().getBytes());
+        codel.getPort(0).reset();
+        Assert.assertEquals(0, codel.getPool().getPackets());
+        Assert.assertEquals(0, codel.getPool().getBytes());
+    }
+
+    @Test
+    public void testRingPortProducerConsumer() throws InterruptedException {
+        //producer and consumer thread on one ring port : each packet is given back exactly once
+        final MultiPortCodel codel = new MultiPortCodel(1, 1000, 1000000L, 8);
+        codel.getPort(0).setRingSize(1024);
+        final int count = 100000;
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                while (!done.get() || codel.getPortSize(0) > 0) {
+                    if (codel.dequeue(0) == null) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            codel.enqueue(0, new Packet(100));
+            if ((i & 255) == 0) {
+                Thread.yield();
+            }
+        }
+        done.set(true);
+        consumer.join(60000);
+        Assert.assertFalse(consumer.isAlive());
+        Assert.assertEquals(0, codel.getPortSize(0));
+        Assert.assertEquals(0, codel.getPool().getPackets());
+        Assert.assertEquals(0, codel.getPool().getBytes());
+    }
+
+    @Test
+    public void testConcurrentReserve() throws InterruptedException {
+        //threads sharing the pool never admit more than its budget together
+        final SharedBufferPool pool = new SharedBufferPool(1000, 1000000L, 64);
+        final int[] admitted = new int[4];
+        Thread[] threads = new Thread[admitted.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        if (pool.reserve(0, 0, 100)) {
+                            admitted[id]++;
+                        }
+                        if ((i & 63) == 0) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        int total = 0;
+        for (int n : admitted) {
+            total += n;
+        }
+        Assert.assertEquals(1000, total);
+        Assert.assertEquals(1000, pool.getPackets());
+        Assert.assertEquals(100000, pool.getBytes());
+        Assert.assertFalse(pool.reserve(0, 0, 1));
+    }
+}
@@ -24,34 +24,65 @@
 
 package org.it4y.codel;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by luc on 8/22/14.
  */
 class Packet implements Queueable<Packet> {
+    /* ECN codepoints (RFC 3168), ECT(1) selects the L4S queue */
+    public static final int ECN_NOT_ECT=0;
+    public static final int ECN_ECT1=1;
+    public static final int ECN_ECT0=2;
+    public static final int ECN_CE=3;
 
     private Packet nextPacket;
     public long queueTime;
     public int size;
+    public int ecn;
+    /* earliest departure time in usec (System.nanoTime()/1000), 0 is send asap. Only used when pacing is enabled */
+    public long departureTime;
 
+    /**
+     * queueTime is set when the packet is queued, creating a packet does not read the clock
+     * @param size
+     */
     public Packet(int size) {
         nextPacket =null;
-        queueTime=System.currentTimeMillis();
         this.size=size;
     }
 
     public long getDeltaTime() {
         return System.currentTimeMillis()-queueTime;
     }
-    public Packet next() {
+    /**
+     * final, so calls on a Packet typed reference bind by class hierarchy analysis whatever packet classes are loaded
+     */
+    public final Packet next() {
         return nextPacket;
     }
 
     @Override
-    public void next(Packet x) {
+    public final void next(Packet x) {
         nextPacket =x;
     }
 
     public void drop() {
 
     }
+
+    /**
+     * copy packet bytes for capture, override when the packet has data
+     * @param dst buffer limited to the capture length
+     */
+    public void capture(ByteBuffer dst) {
+
+    }
+
+    /**
+     * set congestion experienced, override to rewrite the ECN bits of the real packet
+     */
+    public void mark() {
+        this.ecn=ECN_CE;
+    }
 }
\ No newline at end of file
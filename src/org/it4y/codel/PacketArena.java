@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * Fixed size store of packet descriptors (size, queue time, flow, buffer offset, next) kept in
+ * primitive arrays and addressed by int handles. Descriptors are linked by handle, not by reference,
+ * so the GC sees a constant number of objects whatever the number of queued packets.
+ *
+ * Free descriptors are kept in a free list linked through next. The arena is not thread safe,
+ * it is owned by the thread running the scheduler, see ArenaCodel.
+ */
+public class PacketArena {
+    public static final int NIL=-1;
+
+    private final int capacity;
+    private final int[] size;
+    private final long[] queueTime;
+    private final int[] flow;
+    private final int[] offset;
+    private final int[] next;
+    private final boolean[] used;
+    private int freeHead;
+    private int free;
+
+    /**
+     * @param capacity number of descriptors
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public PacketArena(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: "+capacity);
+        }
+        this.capacity=capacity;
+        this.size=new int[capacity];
+        this.queueTime=new long[capacity];
+        this.flow=new int[capacity];
+        this.offset=new int[capacity];
+        this.next=new int[capacity];
+        this.used=new boolean[capacity];
+        for (int i=0;i<capacity-1;i++) {
+            this.next[i]=i+1;
+        }
+        this.next[capacity-1]=NIL;
+        this.freeHead=0;
+        this.free=capacity;
+    }
+
+    /**
+     * allocate a descriptor
+     * @return handle or NIL if arena is full
+     */
+    public int allocate(final int size, final long queueTime, final int flow, final int offset) {
+        final int h= this.freeHead;
+        if (h == NIL) {
+            return NIL;
+        }
+        this.freeHead= this.next[h];
+        this.free--;
+        this.size[h]=size;
+        this.queueTime[h]=queueTime;
+        this.flow[h]=flow;
+        this.offset[h]=offset;
+        this.next[h]=NIL;
+        this.used[h]=true;
+        return h;
+    }
+
+    /**
+     * return descriptor to the free list
+     * @param h handle
+     * @throws IllegalStateException if the descriptor is not allocated, a double free would corrupt the free list
+     */
+    public void free(final int h) {
+        if (!this.used[h]) {
+            throw new IllegalStateException("handle not allocated: "+h);
+        }
+        this.used[h]=false;
+        this.next[h]= this.freeHead;
+        this.freeHead=h;
+        this.free++;
+    }
+
+    /**
+     * return a chain of descriptors linked by next to the free list
+     * @param h first handle of chain
+     * @return number of descriptors freed
+     */
+    public int freeChain(int h) {
+        int cnt=0;
+        while (h != NIL) {
+            final int n= this.next[h];
+            this.free(h);
+            h=n;
+            cnt++;
+        }
+        return cnt;
+    }
+
+    public int size(final int h) {
+        return this.size[h];
+    }
+
+    public long queueTime(final int h) {
+        return this.queueTime[h];
+    }
+
+    public void queueTime(final int h, final long time) {
+        this.queueTime[h]=time;
+    }
+
+    public int flow(final int h) {
+        return this.flow[h];
+    }
+
+    public int offset(final int h) {
+        return this.offset[h];
+    }
+
+    public int next(final int h) {
+        return this.next[h];
+    }
+
+    public void next(final int h, final int x) {
+        this.next[h]=x;
+    }
+
+    /**
+     * @return true if the descriptor is allocated
+     */
+    public boolean isAllocated(final int h) {
+        return this.used[h];
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public int getFree() {
+        return this.free;
+    }
+}
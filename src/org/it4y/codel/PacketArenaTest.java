@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PacketArenaTest {
+
+    @Test
+    public void testAllocateFree() {
+        PacketArena arena = new PacketArena(4);
+        Assert.assertEquals(4, arena.getFree());
+        int h1 = arena.allocate(100, 1L, 7, 0);
+        int h2 = arena.allocate(200, 2L, 8, 2048);
+        int h3 = arena.allocate(300, 3L, 9, 4096);
+        int h4 = arena.allocate(400, 4L, 10, 6144);
+        Assert.assertEquals(PacketArena.NIL, arena.allocate(500, 5L, 11, 0));
+        Assert.assertEquals(0, arena.getFree());
+        Assert.assertEquals(200, arena.size(h2));
+        Assert.assertEquals(2L, arena.queueTime(h2));
+        Assert.assertEquals(8, arena.flow(h2));
+        Assert.assertEquals(2048, arena.offset(h2));
+
+        arena.free(h3);
+        Assert.assertEquals(1, arena.getFree());
+        //freed descriptor is reused
+        Assert.assertEquals(h3, arena.allocate(500, 5L, 11, 0));
+        Assert.assertEquals(500, arena.size(h3));
+        arena.free(h1);
+        arena.free(h2);
+        arena.free(h3);
+        arena.free(h4);
+        Assert.assertEquals(4, arena.getFree());
+    }
+
+    @Test
+    public void testDoubleFree() {
+        PacketArena arena = new PacketArena(2);
+        int h = arena.allocate(100, 1L, 0, 0);
+        Assert.assertTrue(arena.isAllocated(h));
+        arena.free(h);
+        Assert.assertFalse(arena.isAllocated(h));
+        try {
+            arena.free(h);
+            Assert.fail("double free");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        //free list is intact
+        Assert.assertEquals(2, arena.getFree());
+        Assert.assertTrue(arena.allocate(1, 0, 0, 0) != arena.allocate(2, 0, 0, 0));
+        Assert.assertEquals(PacketArena.NIL, arena.allocate(3, 0, 0, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new PacketArena(0);
+    }
+
+    @Test
+    public void testHandleQueues() {
+        PacketArena arena = new PacketArena(1000);
+        HandleQueue q1 = new HandleQueue(arena);
+        HandleQueue q2 = new HandleQueue(arena);
+        Assert.assertTrue(q1.isEmpty());
+        Assert.assertEquals(PacketArena.NIL, q1.remove());
+        //interleave both queues in one arena
+        for (int i = 0; i < 500; i++) {
+            q1.add(arena.allocate(i, i, 1, 0));
+            q2.add(arena.allocate(i * 2, i, 2, 0));
+        }
+        Assert.assertEquals(0, arena.getFree());
+        Assert.assertEquals(500, q1.size());
+        Assert.assertEquals(500 * 499 / 2, q1.getBacklog());
+        Assert.assertEquals(500 * 499, q2.getBacklog());
+
+        //FIFO order per queue
+        for (int i = 0; i < 250; i++) {
+            int h = q1.remove();
+            Assert.assertEquals(i, arena.size(h));
+            Assert.assertEquals(1, arena.flow(h));
+            arena.free(h);
+        }
+        Assert.assertEquals(250, q1.size());
+        Assert.assertEquals(250, arena.getFree());
+
+        //detach and free complete chain
+        Assert.assertEquals(500, arena.freeChain(q2.detach()));
+        Assert.assertTrue(q2.isEmpty());
+        Assert.assertEquals(0, q2.getBacklog());
+        Assert.assertEquals(750, arena.getFree());
+
+        //queues must be usable after detach
+        int h = arena.allocate(10, 0, 2, 0);
+        q2.add(h);
+        Assert.assertEquals(h, q2.first());
+        Assert.assertEquals(h, q2.remove());
+        Assert.assertTrue(q2.isEmpty());
+        Assert.assertEquals(250, q1.size());
+        Assert.assertEquals(250, arena.size(q1.first()));
+    }
+}
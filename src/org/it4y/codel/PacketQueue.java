@@ -26,16 +26,21 @@ package org.it4y.codel;
 
 /**
  * Created by luc on 8/22/14.
+ *
+ * add, push, remove, drainTo and replace link packets with the final Packet.next() and keep the backlog
+ * with the final doneAdd/doneRemove, so the per packet paths have no interface or virtual hook calls.
+ * Subclasses tracking removed packets override the operations, not the hooks.
  */
 public class PacketQueue extends LinkedQueue<Packet> implements Queueable<PacketQueue> {
     private PacketQueue nextQueue;
+    private FlowQueue flowQueue;
     private int backlog;
 
     /**
      * this method is called during the internal R/W lock of the queue
      */
     @Override
-    public void doneAdd(Packet p) {
+    public final void doneAdd(Packet p) {
         this.backlog = this.backlog +p.size;
     }
 
@@ -43,20 +48,185 @@ public class PacketQueue extends LinkedQueue<Packet> implements Queueable<Packet
      * this method is called during the internal R/W lock of the queue
      */
     @Override
-    public void doneRemove(Packet p) {
+    public final void doneRemove(Packet p) {
         this.backlog = this.backlog -p.size;
     }
 
+    /**
+     * this method is called during the internal R/W lock of the queue
+     */
+    @Override
+    public void doneDetach(Packet p, int count) {
+        this.backlog = 0;
+    }
+
+    /**
+     * this method is called during the internal R/W lock of the queue
+     */
+    @Override
+    public void doneAddAll(Packet p, int count, long bytes) {
+        this.backlog = this.backlog + (int) bytes;
+    }
+
+    @Override
+    protected long chainBytes() {
+        return this.backlog;
+    }
+
+    @Override
+    public void add(final Packet p) {
+        this.lock.lock();
+        try {
+            final Packet last= this.tail;
+            if (last == null) {
+                this.head=p;
+            } else {
+                last.next(p);
+            }
+            this.tail=p;
+            this.doneAdd(p);
+            this.linked(1);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void push(final Packet p) {
+        this.lock.lock();
+        try {
+            p.next(this.head);
+            if (this.tail == null) {
+                this.tail=p;
+            }
+            this.head=p;
+            this.doneAdd(p);
+            this.linked(1);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Packet remove() {
+        if (this.head == null) {
+            return null;
+        }
+        this.lock.lock();
+        try {
+            final Packet p= this.head;
+            if (p == null) {
+                return null;
+            }
+            if ((this.head=p.next()) == null) {
+                this.tail=null;
+            }
+            p.next(null);
+            this.doneRemove(p);
+            this.unlinked(1);
+            return p;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(final Packet[] array, final int offset, final int max) {
+        if (this.head == null) {
+            return 0;
+        }
+        this.lock.lock();
+        try {
+            Packet p= this.head;
+            int count=0;
+            while (p != null && count < max) {
+                final Packet next=p.next();
+                p.next(null);
+                array[offset+count]=p;
+                count++;
+                this.doneRemove(p);
+                p=next;
+            }
+            this.head=p;
+            if (p == null) {
+                this.tail=null;
+            }
+            this.unlinked(count);
+            return count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(final Packet prev, final Packet old, final Packet x) {
+        this.lock.lock();
+        try {
+            if (this.head == old && old != null) {
+                this.head=x;
+            } else if (prev != null && prev.next() == old && old != null) {
+                prev.next(x);
+            } else {
+                return false;
+            }
+            x.next(old.next());
+            if (this.tail == old) {
+                this.tail=x;
+            }
+            old.next(null);
+            this.doneRemove(old);
+            this.doneAdd(x);
+            this.replaced();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * append a chain of packets linked with next(), backlog is the sum of the packet sizes
+     */
+    public void addAll(final Packet first, final Packet last, final int count) {
+        long bytes = 0;
+        for (Packet p = first; p != null; p = p.next()) {
+            bytes = bytes + p.size;
+        }
+        this.addAll(first, last, count, bytes);
+    }
+
+    /**
+     * queue packet, a linked queue is unbounded and always accepts the packet
+     * @return false if the packet is not queued
+     */
+    public boolean offer(final Packet p) {
+        this.add(p);
+        return true;
+    }
+
+    /**
+     * final, so calls on a PacketQueue typed reference bind by class hierarchy analysis
+     */
     @Override
-    public PacketQueue next() {
+    public final PacketQueue next() {
         return this.nextQueue;
     }
 
     @Override
-    public void next(PacketQueue x) {
+    public final void next(PacketQueue x) {
         this.nextQueue=x;
     }
 
+    /**
+     * @return flow queue this queue is linked in, null if not scheduled
+     */
+    public FlowQueue flowQueue() {
+        return this.flowQueue;
+    }
+
+    void flowQueue(FlowQueue x) {
+        this.flowQueue=x;
+    }
+
     public int getBacklog() {
         return this.backlog;
     }
@@ -114,12 +114,13 @@ public class PacketQueueTest {
         queue.clear();
 
         class Monitor implements Runnable {
-            private final PacketQueue queue;
+            private final QueueStats stats = new QueueStats(QueueStats.QUEUE_COUNTERS);
+            private final long[] snapshot = new long[QueueStats.QUEUE_COUNTERS];
             private long prevAdded;
             private long prevRemoved;
             private long prevWaited;
             Monitor(PacketQueue queue) {
-                this.queue = queue;
+                queue.setStats(this.stats);
             }
 
             public void run() {
@@ -130,15 +131,17 @@ public class PacketQueueTest {
                     do {
                         Thread.sleep(1000);
                         cnt++;
-                        long a=queue.getAdded();
-                        long r=queue.getRemoved();
-                        long w=queue.getWaited();
-                        System.out.println(cnt+" Queued: " + (a-prevAdded) + " DeQueued: " + (r-prevRemoved) + " TOTAL: "+((a-prevAdded)+(r-prevRemoved))+" size: " + queue.size() + " waiting:" + (w-prevWaited) + " = " + ((w-prevWaited) * 100.0 / (r-prevRemoved)) + " %");
+                        //coherent counters without locking the queue
+                        stats.read(snapshot);
+                        long a=snapshot[QueueStats.ADDED];
+                        long r=snapshot[QueueStats.REMOVED];
+                        long w=snapshot[QueueStats.WAITED];
+                        System.out.println(cnt+" Queued: " + (a-prevAdded) + " DeQueued: " + (r-prevRemoved) + " TOTAL: "+((a-prevAdded)+(r-prevRemoved))+" size: " + snapshot[QueueStats.SIZE] + " waiting:" + (w-prevWaited) + " = " + ((w-prevWaited) * 100.0 / (r-prevRemoved)) + " %");
                         prevAdded=a;
                         prevRemoved=r;
                         prevWaited=w;
 
-                    } while (queue.getRemoved() < count);
+                    } while (prevRemoved < count);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
@@ -272,4 +275,222 @@ public class PacketQueueTest {
         Assert.assertTrue(queue.isEmpty());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testDetachPacketQueue() {
+        PacketQueue queue = new PacketQueue();
+        Assert.assertNull(queue.detach());
+        queue.add(new Packet(10));
+        queue.add(new Packet(20));
+        queue.add(new Packet(30));
+        Assert.assertEquals(60,queue.getBacklog());
+
+        Packet x = queue.detach();
+        Assert.assertNotNull(x);
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(0,queue.getBacklog());
+        Assert.assertEquals(3, queue.getRemoved());
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.remove());
+        //chain is still linked
+        Assert.assertEquals(10, x.size);
+        Assert.assertEquals(20, x.next().size);
+        Assert.assertEquals(30, x.next().next().size);
+        Assert.assertNull(x.next().next().next());
+
+        //queue must be usable after detach
+        queue.add(new Packet(40));
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(40,queue.getBacklog());
+        Assert.assertEquals(40, queue.remove().size);
+    }
+
+    @Test
+    public void testTakeWaitListener() throws InterruptedException {
+        PacketQueue queue = new PacketQueue();
+        final long[] waits = new long[2];
+        queue.setListener(new QueueListener.Adapter() {
+            @Override
+            public void takeWait(long nanos) {
+                waits[0]++;
+                waits[1] = nanos;
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(5));
+        //no wait when packet is queued
+        queue.add(new Packet(10));
+        Assert.assertNotNull(queue.Take(10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, waits[0]);
+        //timeout on empty queue is reported
+        Assert.assertNull(queue.Take(20, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, waits[0]);
+        Assert.assertTrue(waits[1] >= TimeUnit.MILLISECONDS.toNanos(5));
+        //short waits are below threshold
+        Assert.assertNull(queue.Take(1, TimeUnit.MICROSECONDS));
+        Assert.assertEquals(1, waits[0]);
+    }
+
+    @Test
+    public void testAddAllDrainTo() {
+        //build chain 10,20,30 outside any queue
+        Packet a = new Packet(10);
+        Packet b = new Packet(20);
+        Packet c = new Packet(30);
+        a.next(b);
+        b.next(c);
+        PacketQueue queue = new PacketQueue();
+        queue.add(new Packet(5));
+        queue.addAll(a, c, 3, 60);
+        Assert.assertEquals(4, queue.size());
+        Assert.assertEquals(65, queue.getBacklog());
+        Assert.assertEquals(4, queue.getAdded());
+        Assert.assertSame(c, queue.last());
+
+        //splice complete queue into other queue
+        PacketQueue target = new PacketQueue();
+        target.add(new Packet(1));
+        Assert.assertEquals(4, queue.drainTo(target));
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.getBacklog());
+        Assert.assertEquals(4, queue.getRemoved());
+        Assert.assertEquals(5, target.size());
+        Assert.assertEquals(66, target.getBacklog());
+        Assert.assertSame(c, target.last());
+        Assert.assertEquals(0, queue.drainTo(target));
+
+        //drain to array in chunks
+        Packet[] batch = new Packet[3];
+        Assert.assertEquals(3, target.drainTo(batch));
+        Assert.assertEquals(1, batch[0].size);
+        Assert.assertEquals(5, batch[1].size);
+        Assert.assertSame(a, batch[2]);
+        Assert.assertNull(batch[2].next());
+        Assert.assertEquals(2, target.size());
+        Assert.assertEquals(50, target.getBacklog());
+        Assert.assertEquals(2, target.drainTo(batch, 1, 2));
+        Assert.assertSame(b, batch[1]);
+        Assert.assertSame(c, batch[2]);
+        Assert.assertTrue(target.isEmpty());
+        Assert.assertNull(target.last());
+        Assert.assertEquals(0, target.getBacklog());
+        Assert.assertEquals(0, target.drainTo(batch));
+
+        //queue must be usable afterwards, byte count computed from the chain
+        a.next(b);
+        target.addAll(a, b, 2);
+        Assert.assertEquals(30, target.getBacklog());
+        Assert.assertSame(a, target.remove());
+        Assert.assertSame(b, target.remove());
+        Assert.assertNull(target.remove());
+    }
+
+    @Test
+    public void testClearUnlinks() {
+        PacketQueue queue = new PacketQueue();
+        Packet a = new Packet(10);
+        Packet b = new Packet(20);
+        queue.add(a);
+        queue.add(b);
+        queue.clear();
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(0, queue.getBacklog());
+        Assert.assertEquals(0, queue.getAdded());
+        Assert.assertEquals(0, queue.getRemoved());
+        Assert.assertNull(a.next());
+
+        //flow queue links are cleared by drainTo and set by the target
+        FlowQueue flows = new FlowQueue();
+        FlowQueue other = new FlowQueue();
+        PacketQueue f1 = new PacketQueue();
+        PacketQueue f2 = new PacketQueue();
+        flows.add(f1);
+        flows.add(f2);
+        Assert.assertEquals(2, flows.drainTo(other));
+        Assert.assertSame(other, f1.flowQueue());
+        Assert.assertSame(other, f2.flowQueue());
+        other.clear();
+        Assert.assertNull(f1.flowQueue());
+        Assert.assertNull(f1.next());
+    }
+
+    @Test
+    public void testPushReplace() {
+        PacketQueue queue = new PacketQueue();
+        Packet a = new Packet(10);
+        Packet b = new Packet(20);
+        Packet c = new Packet(30);
+        queue.add(a);
+        queue.push(b);
+        Assert.assertSame(b, queue.first());
+        Assert.assertSame(a, queue.last());
+        Assert.assertEquals(30, queue.getBacklog());
+        //replace at the tail, keeps size and moves last
+        Assert.assertTrue(queue.replace(b, a, c));
+        Assert.assertFalse(queue.replace(b, a, new Packet(40)));
+        Assert.assertSame(c, queue.last());
+        Assert.assertNull(a.next());
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(50, queue.getBacklog());
+        Assert.assertEquals(3, queue.getAdded());
+        Assert.assertEquals(1, queue.getRemoved());
+        Assert.assertSame(b, queue.remove());
+        Assert.assertSame(c, queue.remove());
+        Assert.assertNull(queue.last());
+        Assert.assertEquals(0, queue.getBacklog());
+
+        //flow queue links are set by add and push, cleared by remove
+        FlowQueue flows = new FlowQueue();
+        PacketQueue f1 = new PacketQueue();
+        PacketQueue f2 = new PacketQueue();
+        flows.add(f1);
+        flows.push(f2);
+        Assert.assertSame(flows, f1.flowQueue());
+        Assert.assertSame(flows, f2.flowQueue());
+        Assert.assertSame(f2, flows.remove());
+        Assert.assertNull(f2.flowQueue());
+        Assert.assertNull(f2.next());
+        Assert.assertSame(f1, flows.remove());
+        Assert.assertNull(flows.last());
+        Assert.assertEquals(0, flows.size());
+    }
+
+    @Test
+    public void testStatsSnapshot() {
+        PacketQueue queue = new PacketQueue();
+        queue.add(new Packet(10));
+        //current counters are published when stats are set
+        QueueStats stats = new QueueStats(QueueStats.QUEUE_COUNTERS);
+        queue.setStats(stats);
+        Assert.assertSame(stats, queue.getStats());
+        long[] snapshot = new long[QueueStats.QUEUE_COUNTERS];
+        Assert.assertEquals(2, stats.read(snapshot));
+        Assert.assertEquals(1, snapshot[QueueStats.SIZE]);
+        Assert.assertEquals(10, snapshot[QueueStats.BACKLOG]);
+        Assert.assertEquals(1, snapshot[QueueStats.ADDED]);
+
+        queue.add(new Packet(20));
+        queue.remove();
+        Assert.assertEquals(6, stats.read(snapshot));
+        Assert.assertEquals(1, snapshot[QueueStats.SIZE]);
+        Assert.assertEquals(20, snapshot[QueueStats.BACKLOG]);
+        Assert.assertEquals(2, snapshot[QueueStats.ADDED]);
+        Assert.assertEquals(1, snapshot[QueueStats.REMOVED]);
+        Assert.assertEquals(0, snapshot[QueueStats.WAITED]);
+
+        queue.detach();
+        stats.read(snapshot);
+        Assert.assertEquals(0, snapshot[QueueStats.SIZE]);
+        Assert.assertEquals(0, snapshot[QueueStats.BACKLOG]);
+        Assert.assertEquals(2, snapshot[QueueStats.REMOVED]);
+
+        //shorter array only gets the first counters
+        long[] small = new long[2];
+        stats.read(small);
+        Assert.assertEquals(0, small[QueueStats.SIZE]);
+
+        //disabled stats are not updated
+        queue.setStats(null);
+        queue.add(new Packet(30));
+        stats.read(snapshot);
+        Assert.assertEquals(0, snapshot[QueueStats.SIZE]);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Capture sink writing dequeued and dropped packets to a pcapng stream (LINKTYPE_RAW, usec timestamps).
+ * Each enhanced packet block has a comment with flow index, sojourn time and drop reason.
+ *
+ * The scheduler thread only copies the packet into a preallocated ring slot, a background writer
+ * collects the published slots and writes them in batches with one gathering write.
+ * When the ring is full the packet is not captured and counted as lost.
+ * capture() must always be called from the same thread (single producer).
+ */
+public class PcapCapture implements Runnable {
+    static final int SHB_TYPE=0x0A0D0D0A;
+    static final int IDB_TYPE=0x00000001;
+    static final int EPB_TYPE=0x00000006;
+    static final int BYTE_ORDER_MAGIC=0x1A2B3C4D;
+    static final int LINKTYPE_RAW=101;
+    static final int EPB_HEADER=28;
+    static final int BATCH=64;
+
+    private static final String[] REASONS={"sent","codel","overflow","purge","ack","stall"};
+
+    private final GatheringByteChannel channel;
+    private final int mask;
+    private final int snaplen;
+    private final ByteBuffer[] headers;
+    private final ByteBuffer[] data;
+    private final ByteBuffer[] trailers;
+    private final int[] flow;
+    private final long[] sojourn;
+    private final int[] reason;
+    private final int[] length;
+    private final long[] time;
+    private final AtomicLong head=new AtomicLong();
+    private final AtomicLong tail=new AtomicLong();
+    private final ByteBuffer[] batch=new ByteBuffer[BATCH*3];
+    private volatile boolean running;
+    private Thread writer;
+    private long lost;
+    private IOException error;
+
+    /**
+     * @param channel pcapng output, file header is written immediately
+     * @param slots ring size, rounded up to a power of 2
+     * @param snaplen maximum bytes captured per packet
+     * @throws IOException
+     */
+    public PcapCapture(final GatheringByteChannel channel, final int slots, final int snaplen) throws IOException {
+        int size=1;
+        while (size < slots) {
+            size=size<<1;
+        }
+        this.channel=channel;
+        this.mask=size-1;
+        this.snaplen=snaplen;
+        this.headers=new ByteBuffer[size];
+        this.data=new ByteBuffer[size];
+        this.trailers=new ByteBuffer[size];
+        this.flow=new int[size];
+        this.sojourn=new long[size];
+        this.reason=new int[size];
+        this.length=new int[size];
+        this.time=new long[size];
+        for (int i=0;i<size;i++) {
+            this.headers[i]=ByteBuffer.allocate(EPB_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            this.data[i]=ByteBuffer.allocate((snaplen+3) & ~3);
+            //padding, comment option, end of options, block length
+            this.trailers[i]=ByteBuffer.allocate(3+4+64+4+4).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        this.writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        final ByteBuffer b=ByteBuffer.allocate(28+32).order(ByteOrder.LITTLE_ENDIAN);
+        //section header block
+        b.putInt(SHB_TYPE).putInt(28).putInt(BYTE_ORDER_MAGIC);
+        b.putShort((short)1).putShort((short)0).putLong(-1L).putInt(28);
+        //interface description block with if_tsresol=6 (usec)
+        b.putInt(IDB_TYPE).putInt(32).putShort((short)LINKTYPE_RAW).putShort((short)0).putInt(this.snaplen);
+        b.putShort((short)9).putShort((short)1).put((byte)6).put((byte)0).put((byte)0).put((byte)0);
+        b.putInt(0).putInt(32);
+        b.flip();
+        while (b.hasRemaining()) {
+            this.channel.write(b);
+        }
+    }
+
+    /**
+     * copy packet into the ring, called from the scheduler thread
+     * @param p packet, p.capture() copies the packet bytes
+     * @param flow flow index
+     * @param sojourn sojourn time in msec
+     * @param reason SFQCodel.DROP_xxx or 0 for a dequeued packet
+     * @return false if ring is full and packet is not captured
+     */
+    public boolean capture(final Packet p, final int flow, final long sojourn, final int reason) {
+        final long h= this.head.get();
+        if (h- this.tail.get() > this.mask) {
+            this.lost++;
+            return false;
+        }
+        final int i=(int)h & this.mask;
+        final ByteBuffer d= this.data[i];
+        d.clear();
+        d.limit(Math.min(this.snaplen,p.size));
+        p.capture(d);
+        this.flow[i]=flow;
+        this.sojourn[i]=sojourn;
+        this.reason[i]=reason;
+        this.length[i]=p.size;
+        this.time[i]=System.currentTimeMillis()*1000L;
+        //publish slot to writer
+        this.head.lazySet(h+1);
+        return true;
+    }
+
+    /**
+     * @return packets not captured because the ring was full
+     */
+    public long getLost() {
+        return this.lost;
+    }
+
+    /**
+     * start background writer thread
+     */
+    public void start() {
+        this.running=true;
+        this.writer=new Thread(this,"pcap-capture");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * stop writer after all captured packets are written
+     * @throws IOException write error of the writer
+     */
+    public void close() throws IOException {
+        this.running=false;
+        if (this.writer != null) {
+            LockSupport.unpark(this.writer);
+            try {
+                this.writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.writer=null;
+        }
+        if (this.error == null) {
+            try {
+                while (this.flush() > 0) {
+                    //write remaining slots
+                }
+            } catch (IOException e) {
+                this.error=e;
+            }
+        }
+        this.channel.close();
+        if (this.error != null) {
+            throw this.error;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (this.running) {
+                if (this.flush() == 0) {
+                    LockSupport.parkNanos(1000000L);
+                }
+            }
+        } catch (IOException e) {
+            this.error=e;
+        }
+    }
+
+    /**
+     * write published slots, at most BATCH per gathering write
+     * @return number of packets written
+     * @throws IOException
+     */
+    int flush() throws IOException {
+        final long t= this.tail.get();
+        final int count=(int)Math.min(BATCH, this.head.get()-t);
+        if (count == 0) {
+            return 0;
+        }
+        int n=0;
+        long bytes=0;
+        for (int c=0;c<count;c++) {
+            final int i=(int)(t+c) & this.mask;
+            final ByteBuffer d= this.data[i];
+            final int caplen=d.position();
+            d.flip();
+            final byte[] comment=("flow="+ this.flow[i]+" sojourn="+ this.sojourn[i]+"ms drop="+reason(this.reason[i])).getBytes("US-ASCII");
+            final int commentLen=Math.min(comment.length,64);
+            final int pad=(4-(caplen & 3)) & 3;
+            final int optLen=4+((commentLen+3) & ~3)+4;
+            final int blockLen=EPB_HEADER+caplen+pad+optLen+4;
+            final ByteBuffer h= this.headers[i];
+            h.clear();
+            h.putInt(EPB_TYPE).putInt(blockLen).putInt(0);
+            h.putInt((int)(this.time[i]>>>32)).putInt((int) this.time[i]);
+            h.putInt(caplen).putInt(this.length[i]);
+            h.flip();
+            final ByteBuffer tr= this.trailers[i];
+            tr.clear();
+            for (int j=0;j<pad;j++) {
+                tr.put((byte)0);
+            }
+            tr.putShort((short)1).putShort((short)commentLen).put(comment,0,commentLen);
+            for (int j=commentLen;j<((commentLen+3) & ~3);j++) {
+                tr.put((byte)0);
+            }
+            tr.putInt(0).putInt(blockLen);
+            tr.flip();
+            this.batch[n++]=h;
+            this.batch[n++]=d;
+            this.batch[n++]=tr;
+            bytes=bytes+blockLen;
+        }
+        while (bytes > 0) {
+            bytes=bytes- this.channel.write(this.batch,0,n);
+        }
+        //release slots to scheduler thread
+        this.tail.lazySet(t+count);
+        return count;
+    }
+
+    static String reason(final int reason) {
+        return reason >= 0 && reason < REASONS.length ? REASONS[reason] : Integer.toString(reason);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class PcapCaptureTest {
+
+    static class DataPacket extends Packet {
+        final byte value;
+
+        DataPacket(int size, int value) {
+            super(size);
+            this.value = (byte) value;
+        }
+
+        @Override
+        public void capture(ByteBuffer dst) {
+            while (dst.hasRemaining()) {
+                dst.put(this.value);
+            }
+        }
+    }
+
+    private static ByteBuffer read(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) raf.length()];
+        raf.readFully(bytes);
+        raf.close();
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void testCaptureDequeueAndDrop() throws Exception {
+        File file = File.createTempFile("codel", ".pcapng");
+        file.deleteOnExit();
+        PcapCapture capture = new PcapCapture(new FileOutputStream(file).getChannel(), 16, 64);
+        capture.start();
+        SFQCodel codel = new SFQCodel(4, 1024, 1500, 100, 10);
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return 1;
+            }
+        });
+        codel.setCapture(capture, capture);
+        for (int i = 0; i < 4; i++) {
+            codel.enqueue(new DataPacket(10 + i, i));
+        }
+        //4th packet triggers overflow drop of the first packet
+        while (codel.dequeue() != null) {
+            //drain
+        }
+        codel.enqueue(new DataPacket(100, 9));
+        codel.purgeFlow(1);
+        capture.close();
+        Assert.assertEquals(0, capture.getLost());
+
+        ByteBuffer b = read(file);
+        Assert.assertEquals(PcapCapture.SHB_TYPE, b.getInt(0));
+        Assert.assertEquals(PcapCapture.BYTE_ORDER_MAGIC, b.getInt(8));
+        Assert.assertEquals(PcapCapture.IDB_TYPE, b.getInt(28));
+        Assert.assertEquals(PcapCapture.LINKTYPE_RAW, b.getShort(36));
+        Assert.assertEquals(64, b.getInt(40));
+
+        int[] caplen = new int[5];
+        int[] first = new int[5];
+        String[] comments = new String[5];
+        int n = 0;
+        int pos = 60;
+        while (pos < b.limit()) {
+            Assert.assertEquals(PcapCapture.EPB_TYPE, b.getInt(pos));
+            int len = b.getInt(pos + 4);
+            Assert.assertEquals(len, b.getInt(pos + len - 4));
+            caplen[n] = b.getInt(pos + 20);
+            int origlen = b.getInt(pos + 24);
+            Assert.assertEquals(Math.min(64, origlen), caplen[n]);
+            first[n] = b.get(pos + 28);
+            int opt = pos + 28 + ((caplen[n] + 3) & ~3);
+            Assert.assertEquals(1, b.getShort(opt));
+            byte[] comment = new byte[b.getShort(opt + 2)];
+            for (int i = 0; i < comment.length; i++) {
+                comment[i] = b.get(opt + 4 + i);
+            }
+            comments[n++] = new String(comment, "US-ASCII");
+            pos += len;
+        }
+        Assert.assertEquals(5, n);
+        //dropped first packet, sent the rest in order, purged last packet
+        Assert.assertArrayEquals(new int[]{0, 1, 2, 3, 9}, first);
+        Assert.assertEquals(10, caplen[0]);
+        Assert.assertTrue(comments[0], comments[0].startsWith("flow=1 sojourn="));
+        Assert.assertTrue(comments[0], comments[0].endsWith("drop=overflow"));
+        Assert.assertTrue(comments[1], comments[1].endsWith("drop=sent"));
+        Assert.assertEquals(11, caplen[1]);
+        Assert.assertEquals(13, caplen[3]);
+        Assert.assertEquals(64, caplen[4]);
+        Assert.assertTrue(comments[4], comments[4].endsWith("drop=purge"));
+    }
+
+    @Test
+    public void testRingFlowsCaptureOnConsumer() throws Exception {
+        File file = File.createTempFile("codel", ".pcapng");
+        file.deleteOnExit();
+        //writer not started, captured slots are counted by flush()
+        PcapCapture capture = new PcapCapture(new FileOutputStream(file).getChannel(), 16, 64);
+        SFQCodel codel = new SFQCodel(16, 1024, 1500, 100, 10);
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return 1;
+            }
+        });
+        codel.setRingSize(2);
+        codel.setCapture(capture, capture);
+        AdmissionResult result = new AdmissionResult();
+        codel.offer(new DataPacket(10, 0), result);
+        codel.offer(new DataPacket(10, 1), result);
+        //ring full : dropped by the producer, counted but not captured
+        Assert.assertEquals(AdmissionResult.DROPPED_OVERFLOW, codel.offer(new DataPacket(10, 2), result));
+        Assert.assertEquals(1, codel.getFlowDropped(1));
+        Assert.assertEquals(0, capture.flush());
+        //the consumer captures
+        Assert.assertNotNull(codel.dequeue());
+        Assert.assertNotNull(codel.dequeue());
+        Assert.assertEquals(2, capture.flush());
+        Assert.assertEquals(1, codel.getFlowDropped(1));
+        capture.close();
+    }
+
+    @Test
+    public void testRingFull() throws Exception {
+        File file = File.createTempFile("codel", ".pcapng");
+        file.deleteOnExit();
+        //writer not started, ring fills up
+        PcapCapture capture = new PcapCapture(new FileOutputStream(file).getChannel(), 4, 1500);
+        for (int i = 0; i < 6; i++) {
+            capture.capture(new Packet(100), 0, 0, 0);
+        }
+        Assert.assertEquals(2, capture.getLost());
+        Assert.assertEquals(4, capture.flush());
+        Assert.assertTrue(capture.capture(new Packet(100), 0, 0, SFQCodel.DROP_CODEL));
+        capture.close();
+        //Packet has no data, caplen 0 : headers + 4 blocks with 28 byte "drop=sent" comment + 1 block with 29 byte "drop=codel" comment
+        Assert.assertEquals(60 + 4 * 68 + 72, read(file).limit());
+    }
+}
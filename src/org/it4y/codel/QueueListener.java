@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * Receives queue events for monitoring. Arguments are primitives so no event object is
+ * created, when no listener is set the cost is a null check.
+ *
+ * A Java Flight Recorder bridge implements this interface and commits a jdk.jfr.Event per callback,
+ * the bridge lives outside this project because jdk.jfr needs JDK 11.
+ * Callbacks are done from the enqueue/dequeue/Take thread, implementations must be fast and must not
+ * call back into the queue.
+ */
+public interface QueueListener {
+
+    /**
+     * end of a codel drop episode of a flow
+     * @param flow flow index
+     * @param count codel count at end of episode
+     * @param sojourn sojourn time in msec that started the episode
+     * @param drops packets dropped during the episode, including packets purged when the episode is ended by purgeFlow() or reset()
+     * @param duration episode duration in msec
+     */
+    void dropEpisode(int flow, int count, long sojourn, int drops, long duration);
+
+    /**
+     * packet dropped because the queue is full
+     * @param flow flow index of the dropped packet (fattest flow)
+     * @param size size of dropped packet
+     * @param backlog remaining backlog of the flow
+     */
+    void overflowDrop(int flow, int size, int backlog);
+
+    /**
+     * flow moved from new flows to old flows list
+     * @param flow flow index
+     * @param size packets queued in the flow
+     */
+    void newToOld(int flow, int size);
+
+    /**
+     * Take() waited longer than the configured threshold
+     * @param nanos wait time in nsec
+     */
+    void takeWait(long nanos);
+
+    /**
+     * periodic queue state
+     * @param packets queued packets
+     * @param bytes queued bytes
+     * @param flows scheduled flows
+     * @param newFlows flows in new flows list
+     */
+    void backlog(int packets, int bytes, int flows, int newFlows);
+
+    /**
+     * end of a consumer stall episode, see SFQCodel.setStallWatchdog()
+     * @param duration msec from the last dequeue before the stall until the consumer resumed
+     * @param drops packets shed during the stall
+     * @param packets packets queued when the consumer resumed
+     */
+    void stall(long duration, int drops, int packets);
+
+    /**
+     * empty implementation, override only the events needed
+     */
+    public static class Adapter implements QueueListener {
+        public void dropEpisode(int flow, int count, long sojourn, int drops, long duration) {}
+        public void overflowDrop(int flow, int size, int backlog) {}
+        public void newToOld(int flow, int size) {}
+        public void takeWait(long nanos) {}
+        public void backlog(int packets, int bytes, int flows, int newFlows) {}
+        public void stall(long duration, int drops, int packets) {}
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Coherent set of queue counters, published by the queue and read from any thread without taking the queue locks.
+ *
+ * This is a seqlock : the sequence is odd while the writer updates the counters, a reader retries until it reads
+ * the same even sequence before and after copying the counters. All writer stores are ordered stores (lazySet),
+ * which are plain stores on x86, so a writer never waits for a reader. Writers must be serialized by the queue.
+ *
+ * LinkedQueue publishes SIZE, BACKLOG, ADDED, REMOVED and WAITED, SFQCodel publishes SIZE, BACKLOG, FLOWS and NEW_FLOWS.
+ */
+public class QueueStats {
+    public static final int SIZE=0;
+    public static final int BACKLOG=1;
+    public static final int ADDED=2;
+    public static final int REMOVED=3;
+    public static final int WAITED=4;
+    public static final int FLOWS=2;
+    public static final int NEW_FLOWS=3;
+
+    public static final int QUEUE_COUNTERS=5;
+    public static final int SCHEDULER_COUNTERS=4;
+
+    //index 0 is the sequence
+    private final AtomicLongArray values;
+    private final int count;
+    //only used by the writer
+    private long seq;
+
+    /**
+     * @param count number of counters, QUEUE_COUNTERS or SCHEDULER_COUNTERS
+     */
+    public QueueStats(final int count) {
+        this.count=count;
+        this.values=new AtomicLongArray(count+1);
+    }
+
+    /**
+     * start update, sequence becomes odd
+     */
+    public void begin() {
+        this.seq++;
+        this.values.lazySet(0, this.seq);
+    }
+
+    /**
+     * store counter, only valid between begin() and end()
+     */
+    public void set(final int idx, final long value) {
+        this.values.lazySet(idx+1,value);
+    }
+
+    /**
+     * end update, sequence becomes even
+     */
+    public void end() {
+        this.seq++;
+        this.values.lazySet(0, this.seq);
+    }
+
+    /**
+     * copy a coherent set of counters, spins while the writer is updating
+     * @param into receives min(into.length,getCount()) counters
+     * @return sequence of the snapshot, increases by 2 on every update
+     */
+    public long read(final long[] into) {
+        final int n=Math.min(into.length, this.count);
+        for (;;) {
+            final long start= this.values.get(0);
+            if ((start & 1) == 0) {
+                for (int i=0;i<n;i++) {
+                    into[i]= this.values.get(i+1);
+                }
+                if (this.values.get(0) == start) {
+                    return start;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * CodelPacketQueue keeping its packets in a SpscPacketQueue ring instead of the linked list,
+ * used by SFQCodel.setRingSize(). The flow itself is still linked in the flow lists.
+ * Packets queued in a ring can not be replaced, so the ack filter does not thin acks of these flows.
+ *
+ * add/offer/addAll/last are producer methods, all other methods belong to the consumer. Packets pushed back
+ * by the consumer with push() are kept in the linked queue of the flow and are dequeued before the ring.
+ * Counters are published to QueueStats by the consumer, setStats() must be called by the consumer.
+ */
+public class RingCodelPacketQueue extends CodelPacketQueue {
+    private static final AtomicIntegerFieldUpdater<RingCodelPacketQueue> ACTIVE=AtomicIntegerFieldUpdater.newUpdater(RingCodelPacketQueue.class,"active");
+    final SpscPacketQueue ring;
+    //1 while the flow is linked in the flow lists or held by the timer wheel
+    private volatile int active;
+    //offered packets dropped by the producer, dropped is only written by the consumer
+    volatile int producer_dropped;
+
+    /**
+     * @param index index of the flow
+     * @param capacity maximum number of packets of this flow
+     */
+    public RingCodelPacketQueue(final int index, final int capacity) {
+        super(index);
+        this.ring=new SpscPacketQueue(capacity);
+    }
+
+    /**
+     * producer : mark the flow scheduled after queueing a packet. Atomic swap, so either the producer links
+     * the flow or the consumer deactivating it sees the packet
+     * @return true if the caller must link the flow
+     */
+    boolean activate() {
+        return ACTIVE.getAndSet(this,1) == 0;
+    }
+
+    /**
+     * consumer : flow is unlinked from the flow lists, check isEmpty() afterwards
+     */
+    void deactivate() {
+        this.active=0;
+    }
+
+    @Override
+    public int getDropped() {
+        return this.dropped+ this.producer_dropped;
+    }
+
+    @Override
+    public boolean offer(final Packet p) {
+        return this.ring.offer(p);
+    }
+
+    @Override
+    public void add(final Packet p) {
+        this.ring.add(p);
+    }
+
+    /**
+     * producer : queue a chain of packets linked with next()
+     * @throws IllegalStateException if the ring can not hold count packets, no packet is queued
+     */
+    @Override
+    public void addAll(final Packet first, final Packet last, final int count, final long bytes) {
+        //only the consumer frees slots, so the free space can only grow
+        if (this.ring.getCapacity()- this.ring.size() < count) {
+            throw new IllegalStateException("queue full");
+        }
+        Packet p=first;
+        while (p != null) {
+            final Packet next=p.next();
+            p.next(null);
+            this.ring.offer(p);
+            p=next;
+        }
+    }
+
+    @Override
+    public Packet remove() {
+        if (!super.isEmpty()) {
+            return super.remove();
+        }
+        final Packet p= this.ring.remove();
+        if (p != null && this.getStats() != null) {
+            this.publish();
+        }
+        return p;
+    }
+
+    @Override
+    public int drainTo(final Packet[] array, final int offset, final int max) {
+        final int n=super.drainTo(array,offset,max);
+        final int r= this.ring.drainTo(array,offset+n,max-n);
+        if (r > 0 && this.getStats() != null) {
+            this.publish();
+        }
+        return n+r;
+    }
+
+    /**
+     * consumer : move all packets to the tail of target
+     * @return number of packets moved
+     */
+    @Override
+    public int drainTo(final LinkedQueue<Packet> target) {
+        final Packet first= this.detach();
+        if (first == null) {
+            return 0;
+        }
+        int count=0;
+        long bytes=0;
+        Packet last=first;
+        for (Packet p=first;p != null;p=p.next()) {
+            count++;
+            bytes=bytes+p.size;
+            last=p;
+        }
+        target.addAll(first,last,count,bytes);
+        return count;
+    }
+
+    @Override
+    public Packet detach() {
+        final Packet last=super.last();
+        final Packet first=super.detach();
+        final Packet rest= this.ring.detach();
+        if (rest != null && this.getStats() != null) {
+            this.publish();
+        }
+        if (first == null) {
+            return rest;
+        }
+        last.next(rest);
+        return first;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        this.ring.clear();
+        if (this.getStats() != null) {
+            this.publish();
+        }
+    }
+
+    @Override
+    public Packet Take() throws InterruptedException {
+        if (!super.isEmpty()) {
+            return this.remove();
+        }
+        final Packet p= this.ring.Take();
+        if (this.getStats() != null) {
+            this.publish();
+        }
+        return p;
+    }
+
+    @Override
+    public Packet Take(final long time, final TimeUnit unit) throws InterruptedException {
+        if (!super.isEmpty()) {
+            return this.remove();
+        }
+        final Packet p= this.ring.Take(time,unit);
+        if (p != null && this.getStats() != null) {
+            this.publish();
+        }
+        return p;
+    }
+
+    /**
+     * consumer : i-th packet from the head, not removed
+     * @return packet or null if less than i+1 packets are queued
+     */
+    Packet get(final int i) {
+        final int pushed=super.size();
+        if (i >= pushed) {
+            return this.ring.get(i-pushed);
+        }
+        Packet p=super.first();
+        for (int j=0;j<i;j++) {
+            p=p.next();
+        }
+        return p;
+    }
+
+    @Override
+    public boolean replace(final Packet prev, final Packet old, final Packet x) {
+        return false;
+    }
+
+    /**
+     * ring and pushed back packets, published by the consumer
+     */
+    @Override
+    void publish() {
+        final QueueStats s= this.getStats();
+        s.begin();
+        s.set(QueueStats.SIZE, this.size());
+        s.set(QueueStats.BACKLOG, this.getBacklog());
+        s.set(QueueStats.ADDED, this.getAdded());
+        s.set(QueueStats.REMOVED, this.getRemoved());
+        s.set(QueueStats.WAITED, this.getWaited());
+        s.end();
+    }
+
+    @Override
+    public Packet first() {
+        final Packet p=super.first();
+        return p != null ? p : this.ring.first();
+    }
+
+    /**
+     * producer : last packet of the ring, packets pushed back by the consumer are not seen
+     */
+    @Override
+    public Packet last() {
+        return this.ring.last();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return super.isEmpty() && this.ring.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return super.size()+ this.ring.size();
+    }
+
+    @Override
+    public int getBacklog() {
+        return super.getBacklog()+ this.ring.getBacklog();
+    }
+
+    @Override
+    public long getAdded() {
+        return super.getAdded()+ this.ring.getAdded();
+    }
+
+    @Override
+    public long getRemoved() {
+        return super.getRemoved()+ this.ring.getRemoved();
+    }
+
+    @Override
+    public long getWaited() {
+        return super.getWaited()+ this.ring.getWaited();
+    }
+}
@@ -16,14 +16,44 @@
 
 package org.it4y.codel;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by luc on 8/16/14.
  */
 public class SFQCodel implements Classify {
-    private static final int SQRT_top=1023;
-    private static final int[] SQRT = new int[SQRT_top+1];
-    {
+    //drop reasons
+    public static final int DROP_CODEL=1;
+    public static final int DROP_OVERFLOW=2;
+    public static final int DROP_PURGE=3;
+    public static final int DROP_ACK=4;
+    public static final int DROP_STALL=5;
+
+    //enqueue modes while the consumer is stalled
+    public static final int STALL_REJECT=1;
+    public static final int STALL_HEAD_DROP=2;
+
+    //snapshot file format
+    private static final int SNAPSHOT_MAGIC=0x43515353;
+    private static final int SNAPSHOT_VERSION=1;
+    private static final int SNAPSHOT_HEADER=32;
+    private static final int SNAPSHOT_FLOW=48;
+    private static final int SNAPSHOT_PACKET=16;
+
+    //package access, ArenaCodel uses the same control law
+    static final int SQRT_top=1023;
+    static final int[] SQRT = new int[SQRT_top+1];
+    static {
         /* we calculate srt(x) for values of 1..100 for codel inverse sqrt calculation.
          * we cap on 100 so values above 1023 will have same values but that should not give a problem.
          */
@@ -37,39 +67,160 @@ public class SFQCodel implements Classify {
     private final int maxQueueSize;
     private final int flow_cnt;
     private final int quantum;
-    private final long interval;
-    private final long target;
+    private final long base_interval;
+    private final long base_target;
+    private long interval;
+    private long target;
 
     private int qlen;
     private int backlog;
     private int maxsize;
     private CodelPacketQueue[] flows;
     private int backlogs[];
+    //allocated flows, the flow arrays are freed with the last flow
+    private int flows_used;
     private FlowQueue new_flows;
     private FlowQueue old_flows;
     private Classify classifier;
+    private WeightedClassify weighted;
+    private AckFilter ackFilter;
+    private EventTrace trace;
+    private LinkRateEstimator rateEstimator;
+    private QueueListener listener;
+    private HeavyHitters heavyHitters;
+    private PcapCapture dequeueCapture;
+    private PcapCapture dropCapture;
+    private TimerWheel wheel;
+    private QueueStats stats;
+    //pool the admitted packets are reserved in by MultiPortCodel or SFQCodelManager, dropped packets are given back
+    private SharedBufferPool pool;
+    //packets per flow ring, 0 for linked flows
+    private int ring_size;
+    //ring flows : packets queued by the producer and dequeued or dropped by the consumer, each written by one side
+    private volatile int ring_in;
+    private volatile long ring_in_bytes;
+    private volatile int ring_out;
+    private volatile long ring_out_bytes;
+    //consumer stall watchdog, times in msec. With ring flows producer and consumer run in parallel :
+    //last_dequeue is written by the consumer, last_idle, stall_start, stall_drops and stall_count by the producer.
+    //The producer starts an episode by setting stalled, only the consumer clears it and reports the episode.
+    //With multiple consumers last_idle is written by all producers, the episode state with the list lock
+    private long stall_timeout;
+    private int stall_mode;
+    private volatile long last_dequeue;
+    private volatile long last_idle;
+    private final AtomicBoolean stalled=new AtomicBoolean();
+    private long stall_start;
+    private volatile int stall_drops;
+    private volatile long stall_count;
+    //multiple consumers : flow list lock, packets and codel state of a flow are guarded by the flow lock.
+    //A thread holding a flow lock may take the list lock, not the other way around
+    private ReentrantLock sched;
+    //multiple consumers : queue counters, updated with the lock of the flow the packets belong to
+    private AtomicInteger shared_qlen;
+    private AtomicLong shared_backlog;
+    private long sample_period;
+    private long next_sample;
+    private long rtt;
 
     public SFQCodel() {
+        this(1024*10,1024,1500,100,10);
+    }
+
+    /**
+     * @param maxQueueSize maximum number of packets queued
+     * @param flow_cnt number of flows
+     * @param quantum DRR quantum in bytes, should be MTU or lower
+     * @param interval codel interval in msec
+     * @param target codel target in msec
+     */
+    public SFQCodel(final int maxQueueSize, final int flow_cnt, final int quantum, final long interval, final long target) {
         //init linked lists
         this.new_flows =new FlowQueue();
         this.old_flows =new FlowQueue();
-        this.maxQueueSize=1024*10;
-        this.flow_cnt=1024;
-        this.quantum=1500;//thould be MTU or lower
-        this.interval=100;
-        this.target=10;
+        this.maxQueueSize=maxQueueSize;
+        this.flow_cnt=flow_cnt;
+        this.quantum=quantum;
+        this.base_interval=interval;
+        this.base_target=target;
+        this.interval=interval;
+        this.target=target;
         this.qlen = 0;
         this.classifier=this;
         this.init();
     }
 
+    /**
+     * flow structures are allocated on first use by flow(), an idle queue only costs this object and its flow lists
+     */
     public void init() {
-        this.flows =new CodelPacketQueue[this.flow_cnt];
-        this.backlogs =new int[this.flow_cnt];
-        //init flows structures
-        for (int i=0;i< this.flow_cnt;i++) {
-            this.flows[i]=new CodelPacketQueue();
+        this.flows=null;
+        this.backlogs=null;
+        this.flows_used=0;
+    }
+
+    /**
+     * get flow, allocate the flow structures when used for the first time
+     * @param idx index of the flow
+     */
+    private CodelPacketQueue flow(final int idx) {
+        if (this.flows == null) {
+            this.flows=new CodelPacketQueue[this.flow_cnt];
+            this.backlogs=new int[this.flow_cnt];
+        }
+        CodelPacketQueue flow= this.flows[idx];
+        if (flow == null) {
+            flow= this.ring_size > 0 ? new RingCodelPacketQueue(idx, this.ring_size) : new CodelPacketQueue(idx);
+            this.flows[idx]=flow;
+            this.flows_used++;
+        }
+        return flow;
+    }
+
+    /**
+     * free an unlinked empty flow unless it has pacing, weight or rate settings or codel state which is
+     * still used on reentry (16 intervals, see codel_dequeue). Its drop counter is lost, it restarts when the
+     * flow becomes active anyway. Ring flows are shared with the producer and flows of a multi consumer
+     * queue can be waited on, these are never freed.
+     * @param now time in msec
+     * @param now_us time in usec, only used when pacing
+     */
+    private void free(final CodelPacketQueue flow, final long now, final long now_us) {
+        if (this.ring_size > 0 || this.sched != null || flow.maxRate != 0 || flow.time_next_packet > now_us
+                || (this.weighted == null && flow.weight != 1) || flow.codel_var_dropping
+                || (flow.codel_var_count != 0 && now-flow.codel_var_drop_next < 16* this.interval)) {
+            return;
+        }
+        this.flows[flow.index]=null;
+        this.flows_used--;
+        if (this.flows_used == 0) {
+            this.init();
+        }
+    }
+
+    /**
+     * unlink the flows of an empty queue and free the idle ones. Used by SFQCodelManager for tenants which are
+     * idle for a while, dequeue() never frees flows so a busy queue does not allocate.
+     * @param now time in msec
+     */
+    void compact(final long now) {
+        if (this.qlen != 0 || this.ring_size > 0 || this.sched != null) {
+            return;
         }
+        final long now_us= this.wheel == null ? 0 : System.nanoTime()/1000;
+        while (!this.new_flows.isEmpty()) {
+            this.free((CodelPacketQueue) this.new_flows.remove(),now,now_us);
+        }
+        while (!this.old_flows.isEmpty()) {
+            this.free((CodelPacketQueue) this.old_flows.remove(),now,now_us);
+        }
+    }
+
+    /**
+     * @return number of allocated flows
+     */
+    int getFlowsAllocated() {
+        return this.flows_used;
     }
 
     public int hash(final Object d) {
@@ -85,37 +236,168 @@ public class SFQCodel implements Classify {
     }
 
     /**
-     * Drop packet and keep count of flow and queue statistics
+     * Drop packet and keep count of flow statistics, packet must be removed using dequeue_packet()
      * @param flow
      * @param p
+     * @param reason DROP_xxx reason
      */
-    public void do_drop(final CodelPacketQueue flow, final Packet p) {
-        this.qlen--;
+    public void do_drop(final CodelPacketQueue flow, final Packet p, final int reason) {
         flow.dropped++;
+        flow.episode_dropped++;
+        if (this.trace != null) {
+            this.trace.event(EventTrace.DROP,flow.index,EventTrace.drop(reason,p.size));
+        }
+        if (this.dropCapture != null) {
+            //capture has a single producer, drops are done with the flow lock only
+            this.lock();
+            try {
+                this.dropCapture.capture(p,flow.index,System.currentTimeMillis()-p.queueTime,reason);
+            } finally {
+                this.unlock();
+            }
+        }
+        if (this.pool != null) {
+            this.pool.add(-1,-p.size);
+        }
+        p.drop();
+    }
+
+    /**
+     * drop the offered packet on enqueue. Ring flows : the producer runs in parallel with the consumer, so it
+     * only counts the drop in producer_dropped. Flow drop counters and the drop capture are left to the consumer
+     */
+    private void drop_offered(final CodelPacketQueue flow, final Packet p, final int reason) {
+        if (this.ring_size == 0) {
+            this.do_drop(flow,p,reason);
+            return;
+        }
+        ((RingCodelPacketQueue) flow).producer_dropped++;
+        if (this.trace != null) {
+            this.trace.event(EventTrace.DROP,flow.index,EventTrace.drop(reason,p.size));
+        }
+        if (this.pool != null) {
+            this.pool.add(-1,-p.size);
+        }
         p.drop();
     }
 
     /**
-     * Drop packet from flow with biggest backlog , as queue is full
+     * remove first packet of flow and keep count of queue statistics
+     * @param flow
+     * @return packet or null if flow is empty
+     */
+    private Packet dequeue_packet(final CodelPacketQueue flow) {
+        final Packet p=flow.remove();
+        if (p != null) {
+            if (this.ring_size > 0) {
+                this.ring_out= this.ring_out+1;
+                this.ring_out_bytes= this.ring_out_bytes+p.size;
+                return p;
+            }
+            this.account(flow.index,-1,-p.size);
+            if (p == flow.ack_last) {
+                flow.ack_last=null;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Drop a detached chain of packets in one batch and keep count of flow and queue statistics
+     * @param flow
+     * @param p first packet of the chain
+     * @param reason DROP_xxx reason
+     * @return number of packets dropped
+     */
+    private int do_drop_chain(final CodelPacketQueue flow, Packet p, final int reason) {
+        int count=0;
+        int bytes=0;
+        while (p != null) {
+            final Packet next=p.next();
+            p.next(null);
+            count++;
+            bytes=bytes+p.size;
+            if (this.trace != null) {
+                this.trace.event(EventTrace.DROP,flow.index,EventTrace.drop(reason,p.size));
+            }
+            if (this.dropCapture != null) {
+                this.dropCapture.capture(p,flow.index,System.currentTimeMillis()-p.queueTime,reason);
+            }
+            p.drop();
+            p=next;
+        }
+        if (this.pool != null) {
+            this.pool.add(-count,-bytes);
+        }
+        flow.dropped=flow.dropped+count;
+        flow.episode_dropped=flow.episode_dropped+count;
+        if (this.ring_size > 0) {
+            this.ring_out= this.ring_out+count;
+            this.ring_out_bytes= this.ring_out_bytes+bytes;
+            return count;
+        }
+        this.account(flow.index,-count,-bytes);
+        return count;
+    }
+
+    /**
+     * update queue counters for packets added to or removed from linked flow idx.
+     * Multiple consumers : called with the flow lock
+     */
+    private void account(final int idx, final int packets, final int bytes) {
+        this.backlogs[idx]= this.backlogs[idx]+bytes;
+        if (this.sched != null) {
+            this.shared_qlen.addAndGet(packets);
+            this.shared_backlog.addAndGet(bytes);
+            return;
+        }
+        this.qlen= this.qlen+packets;
+        this.backlog= this.backlog+bytes;
+    }
+
+    /**
+     * Drop packet from flow with biggest backlog , as queue is full.
+     * Multiple consumers : the head packet is dropped with the flow lock, also when the flow is leased.
+     * Must not be called with a flow lock.
+     * Not used with ring flows, the producer can not take packets out of a ring.
      * @return index of flow which has been dropped
+     * @throws IllegalStateException with ring flows
      */
     public int drop() {
      int idx=0;
      int maxbacklog=-1;
+     if (this.ring_size > 0) {
+         throw new IllegalStateException("ring flows drop the offered packet");
+     }
+     if (this.flows == null) {
+         return idx;
+     }
      //find flow with biggest backlog
      for (int i=0;i< this.flow_cnt;i++) {
-            if (this.backlogs[i]> maxbacklog) {
-                maxbacklog= this.backlogs[i];
-                idx=i;
-            }
+         if (this.backlogs[i]> maxbacklog) {
+             maxbacklog= this.backlogs[i];
+             idx=i;
+         }
      }
 
-     final CodelPacketQueue flow = this.flows[idx];
-     Packet p=flow.remove();
-        this.backlogs[idx]= this.backlogs[idx]-p.size;
-        this.do_drop(flow,p);
-     p=null;
-     //TODO some statistics
+     final CodelPacketQueue flow = this.flow(idx);
+     if (this.sched != null) {
+         flow.lock.lock();
+     }
+     try {
+         final Packet p= this.dequeue_packet(flow);
+         if (p != null) {
+             flow.congestion=CodelPacketQueue.CONGESTION_DROPPING;
+             this.do_drop(flow,p,DROP_OVERFLOW);
+             if (this.listener != null) {
+                 this.listener.overflowDrop(idx,p.size,this.backlogs[idx]);
+             }
+         }
+     } finally {
+         if (this.sched != null) {
+             flow.lock.unlock();
+         }
+     }
      return idx;
     }
 
@@ -124,37 +406,328 @@ public class SFQCodel implements Classify {
      * @param p
      */
     public void enqueue(final Packet p) {
-        final int idx= this.classifier.classifyPacket(p) % flow_cnt;
-        //System.out.println("idx: "+idx+" size: "+p.size+" qlen: "+qlen);
-        final CodelPacketQueue flow = this.flows[idx];
-        final boolean wasEmpty=flow.isEmpty();
-        p.queueTime=System.currentTimeMillis();
-        flow.add(p);
-        this.qlen++;
-        this.backlog=this.backlog()+p.size;
-        this.backlogs[idx] = this.backlogs[idx] + p.size;
-        if (wasEmpty) {
+        this.enqueue(p,System.currentTimeMillis());
+    }
+
+    /**
+     * queue packet using a clock read by the caller, so one clock read can be shared by many queues
+     * @param p
+     * @param now time in msec
+     */
+    public void enqueue(final Packet p, final long now) {
+        this.offer(p,now,null);
+    }
+
+    /**
+     * non blocking enqueue which reports admission of the packet, so producers can slow down before loss
+     * @param p
+     * @param result filled with admission status and flow state, may be null
+     * @return AdmissionResult status
+     */
+    public int offer(final Packet p, final AdmissionResult result) {
+        return this.offer(p,System.currentTimeMillis(),result);
+    }
+
+    /**
+     * @param p
+     * @param now time in msec
+     * @param result filled with admission status and flow state, may be null
+     * @return AdmissionResult status
+     */
+    public int offer(final Packet p, final long now, final AdmissionResult result) {
+        if (this.sched != null) {
+            return this.offer_shared(p,now,result);
+        }
+        try {
+            return this.offer0(p,now,result);
+        } finally {
+            //ring flows : only the consumer publishes, stats have a single writer
+            if (this.stats != null && this.ring_size == 0) {
+                this.publish();
+            }
+        }
+    }
+
+    //scheduler lock is only taken with multiple consumers
+    private void lock() {
+        if (this.sched != null) {
+            this.sched.lock();
+        }
+    }
+
+    private void unlock() {
+        if (this.sched != null) {
+            this.sched.unlock();
+        }
+    }
+
+    private int offer0(final Packet p, final long now, final AdmissionResult result) {
+        //built in classifier is a direct call, the interface call site only sees custom classifiers
+        final int key= this.classifier == this ? this.classifyPacket(p) : this.classifier.classifyPacket(p);
+        final int idx=key % flow_cnt;
+        final CodelPacketQueue flow = this.flow(idx);
+        p.queueTime=now;
+        if (this.stall_timeout > 0) {
+            if (this.size() == 0) {
+                //nothing to dequeue, consumer is not behind
+                this.last_idle=now;
+            } else if (this.stalled.get() || now-Math.max(this.last_dequeue, this.last_idle) >= this.stall_timeout) {
+                final int status= this.shed(flow,p,now);
+                if (status != AdmissionResult.ACCEPTED) {
+                    return this.admission(flow,status,result);
+                }
+            }
+        }
+        if (this.ring_size > 0) {
+            return this.offer_ring((RingCodelPacketQueue) flow,key,p,result);
+        }
+        if (this.enqueue_packet(flow,p)) {
+            return this.admission(flow,AdmissionResult.ACCEPTED,result);
+        }
+        //flow not linked in new_flows or old_flows, throttled flows are linked again by the timer wheel
+        if (flow.flowQueue() == null && !flow.throttled) {
+            if (this.weighted != null) {
+                flow.weight=Math.max(1, this.weighted.weightPacket(p));
+            }
             this.new_flows.add(flow);
-            flow.deficit= this.quantum;
+            flow.deficit= this.quantum*flow.weight;
             flow.dropped = 0;
         }
+        if (this.heavyHitters != null) {
+            this.heavyHitters.update(this,key,idx,p.size,p.queueTime);
+        }
         //in case the number of packet queued max size
         if (this.qlen < this.maxQueueSize) {
-            return;
+            return this.admission(flow,AdmissionResult.ACCEPTED,result);
         }
         //drop packet from biggest queue
-        System.out.println("dropping overflow");
-        this.drop();
+        return this.admission(flow,this.drop() == idx ? AdmissionResult.DROPPED_OVERFLOW : AdmissionResult.ACCEPTED,result);
+    }
+
+    /**
+     * multiple consumers : the packet is queued with the lock of its flow, the list lock is only taken to link
+     * the flow and for queue wide state (stall episode, heavy hitters, capture, stats). The overflow drop is
+     * done after the flow lock is released, the fattest flow can be another one.
+     */
+    private int offer_shared(final Packet p, final long now, final AdmissionResult result) {
+        final int key= this.classifier == this ? this.classifyPacket(p) : this.classifier.classifyPacket(p);
+        final CodelPacketQueue flow= this.flows[key % flow_cnt];
+        p.queueTime=now;
+        int status=AdmissionResult.ACCEPTED;
+        boolean queued=false;
+        flow.lock.lock();
+        try {
+            if (this.stall_timeout > 0) {
+                if (this.size() == 0) {
+                    //written by all producers, the last one wins
+                    this.last_idle=now;
+                } else if (this.stalled.get() || now-Math.max(this.last_dequeue, this.last_idle) >= this.stall_timeout) {
+                    //stall episode state has a single writer
+                    this.sched.lock();
+                    try {
+                        status= this.shed(flow,p,now);
+                    } finally {
+                        this.sched.unlock();
+                    }
+                }
+            }
+            if (status == AdmissionResult.ACCEPTED && !this.enqueue_packet(flow,p)) {
+                queued=true;
+                if (!flow.scheduled) {
+                    if (this.weighted != null) {
+                        flow.weight=Math.max(1, this.weighted.weightPacket(p));
+                    }
+                    flow.deficit= this.quantum*flow.weight;
+                    flow.dropped = 0;
+                    flow.scheduled=true;
+                    this.sched.lock();
+                    try {
+                        this.new_flows.add(flow);
+                    } finally {
+                        this.sched.unlock();
+                    }
+                }
+                if (this.heavyHitters != null) {
+                    //the policy may act on this flow, its lock is held
+                    this.sched.lock();
+                    try {
+                        this.heavyHitters.update(this,key,flow.index,p.size,p.queueTime);
+                    } finally {
+                        this.sched.unlock();
+                    }
+                }
+            }
+        } finally {
+            flow.lock.unlock();
+        }
+        if (queued && this.size() >= this.maxQueueSize && this.drop() == flow.index) {
+            status=AdmissionResult.DROPPED_OVERFLOW;
+        }
+        if (this.stats != null) {
+            this.publish();
+        }
+        return this.admission(flow,status,result);
+    }
+
+    /**
+     * add packet to a linked flow, a redundant pure ack queued in the flow is replaced by p.
+     * Multiple consumers : called with the flow lock, a consumer can not dequeue ack_last meanwhile
+     * @return true if p replaced a queued ack, queue length did not change
+     */
+    private boolean enqueue_packet(final CodelPacketQueue flow, final Packet p) {
+        final int idx=flow.index;
+        if (this.ackFilter != null && this.ackFilter.isPureAck(p)) {
+            final Packet old=flow.ack_last;
+            if (old != null && this.ackFilter.isRedundant(old,p) && flow.replace(flow.ack_prev,old,p)) {
+                //new ack takes the place and queue time of the redundant one, queue length does not change
+                p.queueTime=old.queueTime;
+                flow.ack_last=p;
+                this.account(idx,0,p.size-old.size);
+                if (this.trace != null) {
+                    this.trace.event(EventTrace.ENQUEUE,idx,p.size);
+                }
+                this.do_drop(flow,old,DROP_ACK);
+                return true;
+            }
+            flow.ack_prev=flow.last();
+            flow.ack_last=p;
+        }
+        flow.add(p);
+        this.account(idx,1,p.size);
+        if (this.trace != null) {
+            this.trace.event(EventTrace.ENQUEUE,idx,p.size);
+        }
+        return false;
+    }
+
+    /**
+     * ring flows : the producer only appends to the ring of the flow and never touches queued packets or
+     * the consumer counters. When the queue or the ring of the flow is full the offered packet is dropped.
+     */
+    private int offer_ring(final RingCodelPacketQueue flow, final int key, final Packet p, final AdmissionResult result) {
+        final int idx=flow.index;
+        if (this.ring_in- this.ring_out >= this.maxQueueSize || !flow.offer(p)) {
+            flow.congestion=CodelPacketQueue.CONGESTION_DROPPING;
+            this.drop_offered(flow,p,DROP_OVERFLOW);
+            if (this.listener != null) {
+                this.listener.overflowDrop(idx,p.size,flow.getBacklog());
+            }
+            return this.admission(flow,AdmissionResult.DROPPED_OVERFLOW,result);
+        }
+        this.ring_in= this.ring_in+1;
+        this.ring_in_bytes= this.ring_in_bytes+p.size;
+        if (this.trace != null) {
+            this.trace.event(EventTrace.ENQUEUE,idx,p.size);
+        }
+        //the consumer unlinks empty flows, flow is linked again by the side which activates it
+        if (flow.activate()) {
+            if (this.weighted != null) {
+                flow.weight=Math.max(1, this.weighted.weightPacket(p));
+            }
+            flow.deficit= this.quantum*flow.weight;
+            flow.dropped = 0;
+            flow.producer_dropped = 0;
+            this.new_flows.add(flow);
+        }
+        if (this.heavyHitters != null) {
+            this.heavyHitters.update(this,key,idx,p.size,p.queueTime);
+        }
+        return this.admission(flow,AdmissionResult.ACCEPTED,result);
+    }
+
+    /**
+     * ring flows : consumer unlinked flow, the producer may have queued a packet while the flow was still active
+     */
+    private void deactivate(final RingCodelPacketQueue flow) {
+        flow.deactivate();
+        if (!flow.isEmpty() && flow.activate()) {
+            this.old_flows.add(flow);
+        }
+    }
+
+    /**
+     * consumer made no dequeue progress for stall_timeout msec, shed load in O(1) instead of
+     * filling the queue and scanning for the fattest flow on every enqueue
+     * @return ACCEPTED to queue the packet, DROPPED_STALL if the packet is dropped
+     */
+    private int shed(final CodelPacketQueue flow, final Packet p, final long now) {
+        if (!this.stalled.get()) {
+            //episode state is written before stalled is set, the consumer reads it after seeing stalled
+            this.stall_start=Math.max(this.last_dequeue, this.last_idle);
+            this.stall_drops=0;
+            this.stall_count++;
+            this.stalled.set(true);
+        }
+        if (this.stall_mode == STALL_HEAD_DROP) {
+            if (this.size()+1 < this.maxQueueSize) {
+                return AdmissionResult.ACCEPTED;
+            }
+            //make room by dropping the oldest packet of the same flow
+            final Packet head= this.dequeue_packet(flow);
+            if (head != null) {
+                flow.congestion=CodelPacketQueue.CONGESTION_DROPPING;
+                this.stall_drops++;
+                this.do_drop(flow,head,DROP_STALL);
+                return AdmissionResult.ACCEPTED;
+            }
+        }
+        this.stall_drops++;
+        this.drop_offered(flow,p,DROP_STALL);
+        return AdmissionResult.DROPPED_STALL;
+    }
+
+    /**
+     * consumer dequeued at time now, ends a stall episode. Only the consumer clears stalled, so an episode
+     * is reported once. Episode state is read before stalled is cleared, the producer does not change it
+     * until it sets stalled again
+     */
+    private void progress(final long now) {
+        this.last_dequeue=now;
+        if (this.stalled.get()) {
+            final long start= this.stall_start;
+            final int drops= this.stall_drops;
+            if (this.stalled.compareAndSet(true,false) && this.listener != null) {
+                this.listener.stall(now-start,drops, this.size());
+            }
+        }
+    }
+
+    /**
+     * @param dropped DROPPED_xxx if a packet was dropped, ACCEPTED otherwise
+     */
+    private int admission(final CodelPacketQueue flow, final int dropped, final AdmissionResult result) {
+        final int status;
+        if (dropped != AdmissionResult.ACCEPTED) {
+            status=dropped;
+        } else if (flow.congestion != CodelPacketQueue.CONGESTION_NONE || this.size() >= this.maxQueueSize-(this.maxQueueSize>>3)) {
+            status=AdmissionResult.ACCEPTED_CONGESTED;
+        } else {
+            status=AdmissionResult.ACCEPTED;
+        }
+        if (result != null) {
+            result.status=status;
+            result.flow=flow.index;
+            result.sojourn=flow.codel_var_ldelay;
+            result.backlog= this.ring_size > 0 ? flow.getBacklog() : this.backlogs[flow.index];
+            result.packets=flow.size();
+        }
+        return status;
     }
 
     /**
      * get flow which can be used for dequeuing. give higher priority to new_flows when exisiting.
      * always select the same flow until empty our deficite < 0
+     * When pacing, flows which may not send yet are moved to the timer wheel.
+     * @param now time in usec, only used when pacing
      * @return
      */
-    private CodelPacketQueue getFlow() {
+    private CodelPacketQueue getFlow(final long now) {
         CodelPacketQueue flow = null;
         FlowQueue head;
+        if (this.wheel != null && this.wheel.size() > 0) {
+            //throttled flows which may send again are added at the end of old flows
+            this.wheel.advance(now, this.old_flows);
+        }
         //find a flow for dequeuing
         //First check new_flows. if available , dequeue until empty or deficit < 0 (has dequeued more than quantum butes)
         //in case flow is coming from new_flows & isEmpty move it to old_flows
@@ -171,12 +744,28 @@ public class SFQCodel implements Classify {
             //get flow with removing from queue;
             flow = (CodelPacketQueue) head.first();
             if (flow.deficit <= 0) {
-                flow.deficit += this.quantum;
+                flow.deficit += this.quantum*flow.weight;
                 //remove from queue and add to end of old
                 this.old_flows.add(head.remove());
-            } else if (flow.isEmpty() && head == this.new_flows) {
-                //Add empty new flows to old_flows to prevent starvation
-                this.old_flows.add(head.remove());
+                if (this.listener != null && head == this.new_flows) {
+                    this.listener.newToOld(flow.index,flow.size());
+                }
+            } else if (flow.isEmpty()) {
+                if (head == this.new_flows) {
+                    //Add empty new flows to old_flows to prevent starvation
+                    this.old_flows.add(head.remove());
+                    if (this.listener != null) {
+                        this.listener.newToOld(flow.index,0);
+                    }
+                } else {
+                    //empty old flows are no longer scheduled (purged flows)
+                    head.remove();
+                    if (this.ring_size > 0) {
+                        this.deactivate((RingCodelPacketQueue) flow);
+                    }
+                }
+            } else if (this.wheel != null && this.throttle(flow,head,now)) {
+                //flow moved to timer wheel
             } else {
                 //found valid flow to investigate
                 return flow;
@@ -184,6 +773,22 @@ public class SFQCodel implements Classify {
         }
     }
 
+    /**
+     * hold flow in timer wheel if its head packet may not be sent yet (like linux fq)
+     * @return true if flow is throttled
+     */
+    private boolean throttle(final CodelPacketQueue flow, final FlowQueue head, final long now) {
+        final long time_to_send=Math.max(flow.time_next_packet,flow.first().departureTime);
+        if (time_to_send <= now) {
+            return false;
+        }
+        head.remove();
+        flow.throttled=true;
+        flow.paced_until=System.currentTimeMillis()+(time_to_send-now+999)/1000;
+        this.wheel.schedule(flow,time_to_send);
+        return true;
+    }
+
     /**
      * check if packet of flow x must be dropped according to codel algorithm
      * @param flow
@@ -201,7 +806,7 @@ public class SFQCodel implements Classify {
         if (p.size> this.maxsize) {
             this.maxsize =p.size;
         }
-        flow.codel_var_ldelay=now-p.queueTime;
+        flow.codel_var_ldelay=now-Math.max(p.queueTime,flow.paced_until);
 
         //if time below target or queue.size() < max packet
         if (flow.codel_var_ldelay< this.target || flow.getBacklog() <= this.maxsize) {
@@ -237,98 +842,1204 @@ public class SFQCodel implements Classify {
      * @return
      */
     public Packet dequeue() {
+        return this.dequeue(System.currentTimeMillis());
+    }
+
+    /**
+     * Dequeue packet using a clock read by the caller
+     * @param now time in msec
+     * @return
+     */
+    public Packet dequeue(final long now) {
+        if (this.sched != null) {
+            return this.dequeue_shared(null,now);
+        }
+        if (this.stall_timeout > 0) {
+            this.progress(now);
+        }
         final CodelPacketQueue flow;
-        Boolean drop;
         //no flows, return no packet
-        if ((flow= this.getFlow())==null)
+        final long now_us= this.wheel == null ? 0 : System.nanoTime()/1000;
+        if ((flow= this.getFlow(now_us))==null) {
+            if (this.stats != null) {
+                this.publish();
+            }
             return null;
-
-        //Dequeue a packet from queue
-        Packet p=flow.remove();
-        if (p==null) {
-            flow.codel_var_dropping = false;
-            return p;
         }
-        qlen--;
-        backlog=backlog-p.size;
-        final long now=System.currentTimeMillis();
-        drop= this.shouldDrop(flow,p,now);
-        /* each flow (queue) can be in 2 states
-         *   dropping = false : packet queue was below sojourn time
-         *   dropping = true  : packet queue time is >= sojourn time
-         */
-        if (flow.codel_var_dropping) {
-            if (!drop) {
-                //packet queue time < sojourn time , leave dropping state
-                flow.codel_var_dropping=false;
-            } else if (now >= flow.codel_var_drop_next) {
-                /*
-                 * it time to drop packet as where in dropping state and queue time has been high for interval time
-                 * we keep dropping until queue is empty or 1 packet has low sojourn time
-                 * this will drop big
-                 */
-                while(flow.codel_var_dropping && now>flow.codel_var_drop_next) {
-                    flow.codel_var_count++;
-                    this.do_drop(flow,p); //do_drop will handle drop statics
-                    p=flow.remove();
-                    if (p==null || !this.shouldDrop(flow,p,now)) {
-                        //break the drop loop, we have a good packet
-                        flow.codel_var_dropping=false;
-                    } else {
-                        //calculate next drop interval
-                        flow.codel_var_drop_next= this.control_law(flow,now);
-                    }
-                }
-            }
-        } else if (drop) {
-            this.do_drop(flow,p);
-            p=flow.remove();
-            drop= this.shouldDrop(flow,p,now);
-            flow.codel_var_dropping=true;
-            final int delta=flow.codel_var_count-flow.codel_var_lastcount;
-            if (delta>1 && (now -flow.codel_var_drop_next)<16* this.interval) {
-                flow.codel_var_count=delta;
-            } else {
-                flow.codel_var_count=1;
-            }
-            flow.codel_var_lastcount=flow.codel_var_count;
-            flow.codel_var_drop_next= this.control_law(flow,now);
+        final Packet p= this.codel_dequeue(flow,now,now_us);
+        this.dequeued(flow,p,now);
+        if (this.stats != null) {
+            this.publish();
         }
         return p;
- 	}
+    }
 
     /**
-     * reset this queue , silently dropping all packets
+     * multiple consumers : take the head flow out of the flow lists, the lessee is the only consumer
+     * dequeuing from the flow until it gives the flow back. Producers keep queueing in a leased flow.
+     * @return leased flow or null
      */
-    public void reset() {
-         long start=System.nanoTime();
-         int cnt=qlen;
-         Packet p;
-         while((p= this.dequeue()) != null) {
-             //TODO: SHOULD we count this ?
-             p.drop();
-         }
-        //all empty flows are now in old_flows, remove them
-        while(!old_flows.isEmpty()) {
-            old_flows.remove();
+    private CodelPacketQueue lease(final long now_us) {
+        this.sched.lock();
+        try {
+            if (this.wheel != null && this.wheel.size() > 0) {
+                //throttled flows which may send again are added at the end of old flows
+                this.wheel.advance(now_us, this.old_flows);
+            }
+            final FlowQueue list= this.new_flows.isEmpty() ? this.old_flows : this.new_flows;
+            final CodelPacketQueue flow=(CodelPacketQueue) list.remove();
+            if (flow != null) {
+                flow.lease_list=list;
+            }
+            return flow;
+        } finally {
+            this.sched.unlock();
         }
-        System.out.println("reset time: "+((System.nanoTime()-start)/1000L)+"uSec for "+cnt+" packets");
-    }
-
-    public int size() {
-        return qlen;
     }
 
-    public int backlog(){
-        return backlog;
-    }
-
-    public boolean isEmpty() {
-        return qlen <=0;
-    }
-
-    public void setClassifier(Classify classifier) {
-        this.classifier=classifier;
+    /**
+     * multiple consumers : DRR rules of getFlow() for a leased flow, called with the flow lock.
+     * A flow which is not served goes back to the flow lists, to the timer wheel or becomes idle : the lease
+     * ends, another consumer can lease the flow as soon as the flow lock is released.
+     * @return true if a packet of the flow may be dequeued, false if the lease ended
+     */
+    private boolean admit(final CodelPacketQueue flow, final long now_us) {
+        final boolean from_new=flow.lease_list == this.new_flows;
+        if (flow.deficit <= 0) {
+            flow.deficit += this.quantum*flow.weight;
+            this.relink(flow);
+            if (this.listener != null && from_new) {
+                this.listener.newToOld(flow.index,flow.size());
+            }
+            return false;
+        }
+        if (flow.isEmpty()) {
+            if (from_new) {
+                //Add empty new flows to old_flows to prevent starvation
+                this.relink(flow);
+                if (this.listener != null) {
+                    this.listener.newToOld(flow.index,0);
+                }
+            } else {
+                //empty old flows are no longer scheduled, the next packet links the flow again
+                flow.lease_list=null;
+                flow.scheduled=false;
+            }
+            return false;
+        }
+        if (this.wheel != null) {
+            final long time_to_send=Math.max(flow.time_next_packet,flow.first().departureTime);
+            if (time_to_send > now_us) {
+                flow.lease_list=null;
+                flow.throttled=true;
+                flow.paced_until=System.currentTimeMillis()+(time_to_send-now_us+999)/1000;
+                this.sched.lock();
+                try {
+                    this.wheel.schedule(flow,time_to_send);
+                } finally {
+                    this.sched.unlock();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //end the lease of a flow, it is added at the end of old flows. Called with the flow lock
+    private void relink(final CodelPacketQueue flow) {
+        flow.lease_list=null;
+        this.sched.lock();
+        try {
+            this.old_flows.add(flow);
+        } finally {
+            this.sched.unlock();
+        }
+    }
+
+    /**
+     * end the lease of a served flow, it goes back at the head of the list it came from so
+     * a single consumer sees the same DRR order as without leasing
+     */
+    private void giveBack(final CodelPacketQueue flow) {
+        //another consumer can lease the flow as soon as it is linked
+        final FlowQueue list=flow.lease_list;
+        flow.lease_list=null;
+        this.sched.lock();
+        try {
+            list.push(flow);
+        } finally {
+            this.sched.unlock();
+        }
+    }
+
+    /**
+     * multiple consumers : dequeue one packet. A Consumer keeps its flow leased after the packet,
+     * otherwise the flow is given back before the packet is returned.
+     * @param consumer Consumer or null
+     */
+    private Packet dequeue_shared(final Consumer consumer, final long now) {
+        if (this.stall_timeout > 0) {
+            this.progress(now);
+        }
+        final long now_us= this.wheel == null ? 0 : System.nanoTime()/1000;
+        CodelPacketQueue flow= consumer == null ? null : consumer.flow;
+        for (;;) {
+            if (flow == null && (flow= this.lease(now_us)) == null) {
+                if (consumer != null) {
+                    consumer.flow=null;
+                }
+                return null;
+            }
+            //the lease is decided with the flow lock, a flow given up can be leased by another consumer at once
+            final boolean leased;
+            Packet p=null;
+            flow.lock.lock();
+            try {
+                leased=this.admit(flow,now_us);
+                if (leased) {
+                    p= this.codel_dequeue(flow,now,now_us);
+                }
+            } finally {
+                flow.lock.unlock();
+            }
+            if (!leased) {
+                flow=null;
+                continue;
+            }
+            if (p == null) {
+                //codel dropped the remaining packets, the next admit ends the lease
+                continue;
+            }
+            if (consumer != null) {
+                consumer.flow=flow;
+            } else {
+                this.giveBack(flow);
+            }
+            this.dequeued_shared(flow,p,now);
+            return p;
+        }
+    }
+
+    /**
+     * multiple consumers : batch dequeue, a leased flow is drained for its remaining DRR deficit
+     * so the list lock is taken twice per flow and not per packet.
+     * A Consumer only gives a flow back on its next call, its batch stops where the lease would end.
+     * @param consumer Consumer keeping the last flow leased or null
+     */
+    private int dequeue_shared(final Consumer consumer, final Packet[] packets, final int offset, final int max) {
+        final long now=System.currentTimeMillis();
+        if (this.stall_timeout > 0) {
+            this.progress(now);
+        }
+        final long now_us= this.wheel == null ? 0 : System.nanoTime()/1000;
+        CodelPacketQueue flow= consumer == null ? null : consumer.flow;
+        int cnt=0;
+        while (cnt < max) {
+            if (flow == null && (flow= this.lease(now_us)) == null) {
+                break;
+            }
+            if (consumer != null && cnt > 0 && (flow.deficit <= 0 || flow.isEmpty() || this.wheel != null)) {
+                //packets of the flow are not processed yet
+                break;
+            }
+            final boolean leased;
+            Packet p=null;
+            flow.lock.lock();
+            try {
+                leased=this.admit(flow,now_us);
+                if (leased) {
+                    p= this.codel_dequeue(flow,now,now_us);
+                }
+            } finally {
+                flow.lock.unlock();
+            }
+            if (!leased) {
+                flow=null;
+            } else if (p != null) {
+                packets[offset+cnt]=p;
+                cnt++;
+                this.dequeued_shared(flow,p,now);
+            }
+        }
+        if (consumer != null) {
+            consumer.flow=flow;
+        } else if (flow != null) {
+            this.giveBack(flow);
+        }
+        return cnt;
+    }
+
+    //queue wide statistics of a dequeued packet, rate estimator, capture and listener are used with the list lock
+    private void dequeued_shared(final CodelPacketQueue flow, final Packet p, final long now) {
+        if (this.rateEstimator == null && this.dequeueCapture == null && this.listener == null && this.stats == null) {
+            return;
+        }
+        this.sched.lock();
+        try {
+            this.dequeued(flow,p,now);
+            if (this.stats != null) {
+                this.publish();
+            }
+        } finally {
+            this.sched.unlock();
+        }
+    }
+
+    /**
+     * dequeue a packet of flow applying codel
+     * @param flow flow selected by getFlow()
+     * @param now time in msec
+     * @param now_us time in usec, only used when pacing
+     * @return packet or null if all packets are dropped
+     */
+    private Packet codel_dequeue(final CodelPacketQueue flow, final long now, final long now_us) {
+        boolean drop;
+        //Dequeue a packet from queue
+        Packet p= this.dequeue_packet(flow);
+        if (p==null) {
+            if (flow.codel_var_dropping) {
+                this.dropping_off(flow,now);
+            }
+            if (flow.congestion != CodelPacketQueue.CONGESTION_NONE) {
+                flow.congestion=CodelPacketQueue.CONGESTION_NONE;
+            }
+            return p;
+        }
+        drop= this.shouldDrop(flow,p,now);
+        /* each flow (queue) can be in 2 states
+         *   dropping = false : packet queue was below sojourn time
+         *   dropping = true  : packet queue time is >= sojourn time
+         */
+        if (flow.codel_var_dropping) {
+            if (!drop) {
+                //packet queue time < sojourn time , leave dropping state
+                this.dropping_off(flow,now);
+            } else if (now >= flow.codel_var_drop_next) {
+                /*
+                 * it time to drop packet as where in dropping state and queue time has been high for interval time
+                 * we keep dropping until queue is empty or 1 packet has low sojourn time
+                 * this will drop big
+                 */
+                while(flow.codel_var_dropping && now>flow.codel_var_drop_next) {
+                    flow.codel_var_count++;
+                    this.do_drop(flow,p,DROP_CODEL); //do_drop will handle drop statics
+                    p= this.dequeue_packet(flow);
+                    if (p==null || !this.shouldDrop(flow,p,now)) {
+                        //break the drop loop, we have a good packet
+                        this.dropping_off(flow,now);
+                    } else {
+                        //calculate next drop interval
+                        flow.codel_var_drop_next= this.control_law(flow,now);
+                        if (this.trace != null) {
+                            this.trace.event(EventTrace.DROP_NEXT,flow.index,flow.codel_var_drop_next);
+                        }
+                    }
+                }
+            }
+        } else if (drop) {
+            flow.episode_start=now;
+            flow.episode_sojourn=flow.codel_var_ldelay;
+            flow.episode_dropped=0;
+            this.do_drop(flow,p,DROP_CODEL);
+            p= this.dequeue_packet(flow);
+            drop= this.shouldDrop(flow,p,now);
+            flow.codel_var_dropping=true;
+            final int delta=flow.codel_var_count-flow.codel_var_lastcount;
+            if (delta>1 && (now -flow.codel_var_drop_next)<16* this.interval) {
+                flow.codel_var_count=delta;
+            } else {
+                flow.codel_var_count=1;
+            }
+            flow.codel_var_lastcount=flow.codel_var_count;
+            flow.codel_var_drop_next= this.control_law(flow,now);
+            if (this.trace != null) {
+                this.trace.event(EventTrace.DROPPING_ON,flow.index,flow.codel_var_count);
+                this.trace.event(EventTrace.DROP_NEXT,flow.index,flow.codel_var_drop_next);
+            }
+        }
+        //congestion signal polled by producers, volatile store only when it changes
+        final int congestion=flow.codel_var_dropping ? CodelPacketQueue.CONGESTION_DROPPING :
+                p != null && flow.codel_var_ldelay >= this.target ? CodelPacketQueue.CONGESTION_TARGET : CodelPacketQueue.CONGESTION_NONE;
+        if (flow.congestion != congestion) {
+            flow.congestion=congestion;
+        }
+        if (p != null) {
+            flow.deficit=flow.deficit-p.size;
+            if (flow.maxRate > 0 && this.wheel != null) {
+                //next packet of this flow may leave after the transmit time at pacing rate, capped to 1 sec
+                flow.time_next_packet=now_us+Math.min(1000000L,p.size*1000000L/flow.maxRate);
+            }
+            if (this.trace != null) {
+                this.trace.event(EventTrace.DEQUEUE,flow.index,now-p.queueTime);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * account a dequeued packet in the queue wide statistics
+     */
+    private void dequeued(final CodelPacketQueue flow, final Packet p, final long now) {
+        if (p != null) {
+            if (this.rateEstimator != null && this.rateEstimator.update(p.size,now,this.size() > 0)) {
+                this.tune(this.rateEstimator.getRate());
+            }
+            if (this.dequeueCapture != null) {
+                this.dequeueCapture.capture(p,flow.index,now-p.queueTime,0);
+            }
+        }
+        if (this.listener != null && now >= this.next_sample) {
+            this.next_sample=now+ this.sample_period;
+            this.listener.backlog(this.size(),this.backlog(),this.getFlowSize(),this.new_flows.size());
+        }
+ 	}
+
+    /**
+     * flow leaves codel dropping state, end of drop episode
+     */
+    private void dropping_off(final CodelPacketQueue flow, final long now) {
+        flow.codel_var_dropping=false;
+        if (this.trace != null) {
+            this.trace.event(EventTrace.DROPPING_OFF,flow.index,flow.codel_var_count);
+        }
+        if (this.listener != null) {
+            this.listener.dropEpisode(flow.index,flow.codel_var_count,flow.episode_sojourn,flow.episode_dropped,now-flow.episode_start);
+        }
+    }
+
+    /**
+     * derive codel target and interval from link rate and rtt (like CAKE) :
+     *   target   = max(rtt/20, 1.5 * mtu serialization time)
+     *   interval = max(rtt + target - rtt/20, 2 * target)
+     * @param rate link rate in bytes/sec
+     */
+    void tune(final long rate) {
+        if (rate <= 0) {
+            return;
+        }
+        final long mtu= this.maxsize > 0 ? this.maxsize : this.quantum;
+        final long base=Math.max(1L, this.rtt/20);
+        //1.5 mtu time in msec, rounded up
+        final long mtu_time=(mtu*1500L+rate-1)/rate;
+        this.target=Math.max(base,mtu_time);
+        this.interval=Math.max(this.rtt+ this.target-base,2* this.target);
+    }
+
+    /**
+     * Dequeue a batch of packets, stops when max packets are dequeued or no more flows are scheduled.
+     *
+     * @param packets array receiving the packets
+     * @param offset first index to use in packets
+     * @param max maximum number of packets to dequeue
+     * @return number of packets dequeued
+     */
+    public int dequeue(final Packet[] packets, final int offset, final int max) {
+        if (this.sched != null) {
+            return this.dequeue_shared(null,packets,offset,max);
+        }
+        int cnt=0;
+        while (cnt < max) {
+            final Packet p= this.dequeue();
+            if (p == null) {
+                //null could also mean all packets of a flow are dropped, stop when no flows are left
+                if (this.getFlowSize() == 0) {
+                    break;
+                }
+                continue;
+            }
+            packets[offset+cnt]=p;
+            cnt++;
+        }
+        return cnt;
+    }
+
+    /**
+     * allow enqueue() and dequeue() from multiple threads, must be set before the queue is used.
+     * Packets and codel state of a flow are guarded by the lock of the flow, the flow lists have their own
+     * lock which is only held to link, lease and give back flows. A consumer leases the head flow and is the
+     * only consumer of the flow until it gives the flow back, so packets of a flow are never reordered.
+     * Producers queue in a leased flow with its flow lock, overflow drops take the head packet of the fattest
+     * flow also when it is leased. reset and purgeFlow do not wait for leases.
+     * dequeue() gives the flow back after each packet, a Consumer (newConsumer()) keeps it for its DRR deficit.
+     * All flows are allocated and never freed. The QueueListener and HeavyHitterPolicy must be thread safe and
+     * are called with a flow lock : they may only act on the flow they are called for.
+     * @param enable
+     */
+    public void setMultiConsumer(final boolean enable) {
+        if (enable && this.ring_size > 0) {
+            throw new IllegalStateException("ring flows have a single consumer");
+        }
+        if (enable == (this.sched != null)) {
+            return;
+        }
+        if (!enable) {
+            this.qlen= this.shared_qlen.get();
+            this.backlog=(int) this.shared_backlog.get();
+            this.sched=null;
+            this.shared_qlen=null;
+            this.shared_backlog=null;
+            return;
+        }
+        //flows are shared by producers and consumers, allocating them on use would need the list lock
+        for (int i=0;i< this.flow_cnt;i++) {
+            final CodelPacketQueue flow= this.flow(i);
+            flow.scheduled=flow.flowQueue() != null || flow.throttled;
+        }
+        this.shared_qlen=new AtomicInteger(this.qlen);
+        this.shared_backlog=new AtomicLong(this.backlog);
+        this.sched=new ReentrantLock();
+    }
+
+    /**
+     * @return consumer keeping the flow it leased for its DRR deficit, see Consumer
+     * @throws IllegalStateException if multiple consumers are not enabled
+     */
+    public Consumer newConsumer() {
+        if (this.sched == null) {
+            throw new IllegalStateException("multiple consumers not enabled");
+        }
+        return new Consumer();
+    }
+
+    /**
+     * consumer thread of a queue with multiple consumers. The flow leased by the consumer stays leased between
+     * its dequeue calls while it has DRR deficit left (flow affinity), no other consumer gets packets of the flow
+     * meanwhile. A consumer which is done with a packet before it dequeues again so processes the packets of
+     * each flow in order with the other consumers. New flows wait until the consumers give their flows back.
+     * A Consumer is used by one thread, release() gives the flow back when the thread stops dequeuing.
+     */
+    public final class Consumer {
+        private CodelPacketQueue flow;
+
+        private Consumer() {
+        }
+
+        public Packet dequeue() {
+            return this.dequeue(System.currentTimeMillis());
+        }
+
+        /**
+         * @param now time in msec
+         * @return packet or null
+         */
+        public Packet dequeue(final long now) {
+            return SFQCodel.this.dequeue_shared(this,now);
+        }
+
+        /**
+         * @return number of packets dequeued
+         */
+        public int dequeue(final Packet[] packets, final int offset, final int max) {
+            return SFQCodel.this.dequeue_shared(this,packets,offset,max);
+        }
+
+        /**
+         * give back the leased flow
+         */
+        public void release() {
+            if (this.flow != null) {
+                SFQCodel.this.giveBack(this.flow);
+                this.flow=null;
+            }
+        }
+    }
+
+    /**
+     * reset this queue , silently dropping all packets.
+     * each flow chain is detached in one step so cost is O(flows) + the drop of each packet.
+     * With ring flows only the consumer thread may reset.
+     */
+    public void reset() {
+        try {
+            this.reset0();
+        } finally {
+            if (this.stats != null) {
+                this.publish();
+            }
+        }
+    }
+
+    private void reset0() {
+        for (int i=0;this.flows != null && i< this.flow_cnt;i++) {
+            if (this.flows[i] != null) {
+                this.purge(this.flows[i],true);
+            }
+        }
+        if (this.sched != null) {
+            //flows stay scheduled, consumers unlink the empty ones
+            if (this.wheel != null) {
+                this.sched.lock();
+                try {
+                    this.wheel.flush(this.old_flows);
+                } finally {
+                    this.sched.unlock();
+                }
+            }
+            return;
+        }
+        if (this.ring_size > 0) {
+            //the producer may link flows meanwhile, flows are unlinked one by one
+            if (this.wheel != null) {
+                this.wheel.flush(this.old_flows);
+            }
+            this.unlink(this.new_flows);
+            this.unlink(this.old_flows);
+            return;
+        }
+        if (this.wheel != null) {
+            this.wheel.flush(null);
+        }
+        this.new_flows.clear();
+        this.old_flows.clear();
+        this.qlen=0;
+        this.backlog=0;
+        //codel state is reset, flows without settings are freed
+        final long now=System.currentTimeMillis();
+        final long now_us= this.wheel == null ? 0 : System.nanoTime()/1000;
+        for (int i=0;this.flows != null && i< this.flow_cnt;i++) {
+            if (this.flows[i] != null) {
+                this.free(this.flows[i],now,now_us);
+            }
+        }
+    }
+
+    /**
+     * reset codel and ack filter state of a purged flow, an open drop episode is reported first
+     */
+    private void flow_init(final CodelPacketQueue flow) {
+        if (flow.codel_var_dropping) {
+            this.dropping_off(flow,System.currentTimeMillis());
+        }
+        flow.codel_vars_init();
+        flow.ack_last=null;
+        flow.ack_prev=null;
+    }
+
+    private void unlink(final FlowQueue list) {
+        for (int n=list.size();n > 0;n--) {
+            this.deactivate((RingCodelPacketQueue) list.remove());
+        }
+    }
+
+    /**
+     * silently drop all packets of a single flow, the packet chain is detached in one step.
+     * The flow stays scheduled and is removed from the flow lists on next dequeue.
+     * With ring flows only the consumer thread may purge.
+     * @param idx index of the flow
+     * @return number of packets dropped
+     */
+    public int purgeFlow(final int idx) {
+        if (this.flows == null || this.flows[idx] == null) {
+            return 0;
+        }
+        try {
+            return this.purge(this.flows[idx],false);
+        } finally {
+            if (this.stats != null) {
+                this.publish();
+            }
+        }
+    }
+
+    /**
+     * drop all packets of flow and reset its codel state, multiple consumers : with the flow lock
+     * @param init reset codel state also when the flow is empty
+     */
+    private int purge(final CodelPacketQueue flow, final boolean init) {
+        if (this.sched != null) {
+            flow.lock.lock();
+        }
+        try {
+            final Packet p=flow.detach();
+            if (p == null) {
+                if (init) {
+                    this.flow_init(flow);
+                }
+                return 0;
+            }
+            final int count= this.do_drop_chain(flow,p,DROP_PURGE);
+            this.flow_init(flow);
+            return count;
+        } finally {
+            if (this.sched != null) {
+                flow.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * write per flow control state (codel vars, deficit) and flow list order to a memory mapped file.
+     * Optionally the descriptors (size, queue time) of all queued packets are saved too, payload is not.
+     * With ring flows only the consumer thread may checkpoint.
+     * The snapshot is written to file.tmp and renamed over file when complete, a failed
+     * checkpoint keeps the previous snapshot.
+     * @param file snapshot file, created or replaced
+     * @param packets include packet descriptors
+     * @throws IOException
+     */
+    public void checkpoint(final File file, final boolean packets) throws IOException {
+        //with ring flows the producer keeps queueing, only the packets and flows counted here are saved
+        final int[] counts=new int[this.flow_cnt];
+        int packetCount=0;
+        if (packets) {
+            for (int i=0;i< this.flow_cnt;i++) {
+                counts[i]= this.getFlowQueueSize(i);
+                packetCount=packetCount+counts[i];
+            }
+        }
+        final int newCount= this.new_flows.size();
+        final int oldCount= this.old_flows.size();
+        final long length=SNAPSHOT_HEADER+(long) this.flow_cnt*SNAPSHOT_FLOW+4L*(newCount+oldCount)+(long)packetCount*SNAPSHOT_PACKET;
+        final File tmp=new File(file.getPath()+".tmp");
+        final RandomAccessFile raf=new RandomAccessFile(tmp,"rw");
+        boolean done=false;
+        try {
+            //left over of a failed checkpoint, the mapped file must start zero filled
+            raf.setLength(0);
+            final MappedByteBuffer buffer=raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,length);
+            buffer.putInt(SNAPSHOT_MAGIC);
+            buffer.putInt(SNAPSHOT_VERSION);
+            buffer.putInt(this.flow_cnt);
+            buffer.putInt(newCount);
+            buffer.putInt(oldCount);
+            buffer.putInt(packetCount);
+            buffer.putLong(System.currentTimeMillis());
+            final CodelPacketQueue[] flows= this.flows;
+            for (int i=0;i< this.flow_cnt;i++) {
+                final CodelPacketQueue flow=flows != null ? flows[i] : null;
+                if (flow == null) {
+                    //flows are allocated by the producer, an unused flow is saved as a zero record : its initial state
+                    buffer.position(buffer.position()+SNAPSHOT_FLOW);
+                    continue;
+                }
+                buffer.putInt(flow.deficit);
+                buffer.putInt(flow.getDropped());
+                buffer.putInt(flow.codel_var_count);
+                buffer.putInt(flow.codel_var_lastcount);
+                buffer.putInt(flow.codel_var_dropping ? 1 : 0);
+                buffer.putInt(flow.codel_var_rec_inv_sqrt);
+                buffer.putLong(flow.codel_var_first_above_time);
+                buffer.putLong(flow.codel_var_drop_next);
+                buffer.putLong(flow.codel_var_ldelay);
+            }
+            //flow lists in scheduling order
+            PacketQueue q;
+            int n=0;
+            for (q= this.new_flows.first();n < newCount;q=q.next()) {
+                buffer.putInt(((CodelPacketQueue)q).index);
+                n++;
+            }
+            n=0;
+            for (q= this.old_flows.first();n < oldCount;q=q.next()) {
+                buffer.putInt(((CodelPacketQueue)q).index);
+                n++;
+            }
+            if (packets) {
+                for (int i=0;i< this.flow_cnt;i++) {
+                    if (counts[i] == 0) {
+                        continue;
+                    }
+                    final CodelPacketQueue flow=flows[i];
+                    if (flow instanceof RingCodelPacketQueue) {
+                        for (int j=0;j<counts[i];j++) {
+                            this.checkpoint(buffer,i,((RingCodelPacketQueue) flow).get(j));
+                        }
+                    } else {
+                        for (Packet p=flow.first();p != null;p=p.next()) {
+                            this.checkpoint(buffer,i,p);
+                        }
+                    }
+                }
+            }
+            buffer.force();
+            done=true;
+        } finally {
+            raf.close();
+            if (!done) {
+                tmp.delete();
+            }
+        }
+        Files.move(tmp.toPath(),file.toPath(),StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void checkpoint(final MappedByteBuffer buffer, final int idx, final Packet p) {
+        buffer.putInt(idx);
+        buffer.putInt(p.size);
+        buffer.putLong(p.queueTime);
+    }
+
+    /**
+     * restore flow control state and queued packet descriptors saved by checkpoint().
+     * Queue must be empty and configured with the same number of flows.
+     * @param file snapshot file
+     * @return number of packets restored
+     * @throws IOException
+     */
+    public int restore(final File file) throws IOException {
+        return this.restore(file,System.currentTimeMillis());
+    }
+
+    /**
+     * restore using a clock read by the caller. Queue times and codel times are moved forward by the time
+     * passed since the checkpoint, so the downtime does not count as sojourn time.
+     * The snapshot is checked before the queue is changed.
+     * @param file snapshot file
+     * @param now time in msec
+     * @return number of packets restored
+     * @throws IOException if the snapshot is not valid for this queue
+     */
+    public int restore(final File file, final long now) throws IOException {
+        if (!this.isEmpty() || this.getFlowSize() != 0) {
+            throw new IllegalStateException("queue must be empty to restore");
+        }
+        if (this.pool != null) {
+            throw new IllegalStateException("restored packets are not reserved in the pool");
+        }
+        if (this.sched != null) {
+            throw new IllegalStateException("restore before setMultiConsumer");
+        }
+        final RandomAccessFile raf=new RandomAccessFile(file,"r");
+        try {
+            final MappedByteBuffer buffer=raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,raf.length());
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("not a snapshot file");
+            }
+            if (buffer.getInt() != this.flow_cnt) {
+                throw new IOException("snapshot flow count mismatch");
+            }
+            final int newCount=buffer.getInt();
+            final int oldCount=buffer.getInt();
+            final int packetCount=buffer.getInt();
+            final long downtime=Math.max(0,now-buffer.getLong());
+            if (newCount < 0 || oldCount < 0 || newCount+oldCount > this.flow_cnt || packetCount < 0
+                    || buffer.capacity() < SNAPSHOT_HEADER+(long) this.flow_cnt*SNAPSHOT_FLOW+4L*(newCount+oldCount)+(long)packetCount*SNAPSHOT_PACKET) {
+                throw new IOException("snapshot truncated or corrupt");
+            }
+            this.validate(buffer,newCount+oldCount,packetCount);
+            for (int i=0;i< this.flow_cnt;i++) {
+                final int start=buffer.position();
+                if (isZero(buffer,start,SNAPSHOT_FLOW)) {
+                    //unused flow, allocated when a packet or a flow list uses it
+                    buffer.position(start+SNAPSHOT_FLOW);
+                    continue;
+                }
+                final CodelPacketQueue flow= this.flow(i);
+                flow.deficit=buffer.getInt();
+                flow.dropped=buffer.getInt();
+                flow.codel_var_count=buffer.getInt();
+                flow.codel_var_lastcount=buffer.getInt();
+                flow.codel_var_dropping=buffer.getInt() != 0;
+                flow.codel_var_rec_inv_sqrt=buffer.getInt();
+                flow.codel_var_first_above_time=rebase(buffer.getLong(),downtime);
+                flow.codel_var_drop_next=rebase(buffer.getLong(),downtime);
+                flow.codel_var_ldelay=buffer.getLong();
+                //an open drop episode is reported from the restore on
+                flow.episode_start=now;
+                flow.episode_sojourn=flow.codel_var_ldelay;
+                flow.episode_dropped=0;
+            }
+            for (int i=0;i<newCount;i++) {
+                this.restore(this.new_flows, this.flow(buffer.getInt()));
+            }
+            for (int i=0;i<oldCount;i++) {
+                this.restore(this.old_flows, this.flow(buffer.getInt()));
+            }
+            for (int i=0;i<packetCount;i++) {
+                final int idx=buffer.getInt();
+                final Packet p=new Packet(buffer.getInt());
+                p.queueTime=buffer.getLong()+downtime;
+                final CodelPacketQueue flow= this.flow(idx);
+                flow.add(p);
+                if (this.ring_size > 0) {
+                    this.ring_in= this.ring_in+1;
+                    this.ring_in_bytes= this.ring_in_bytes+p.size;
+                    if (((RingCodelPacketQueue) flow).activate()) {
+                        this.new_flows.add(flow);
+                    }
+                    continue;
+                }
+                this.qlen++;
+                this.backlog=this.backlog+p.size;
+                this.backlogs[idx]= this.backlogs[idx]+p.size;
+                if (flow.flowQueue() == null) {
+                    this.new_flows.add(flow);
+                }
+            }
+            if (this.stats != null) {
+                this.publish();
+            }
+            return packetCount;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * check flow indexes of the flow lists and packets, a flow is linked only once
+     */
+    private void validate(final MappedByteBuffer buffer, final int flowCount, final int packetCount) throws IOException {
+        final int lists=SNAPSHOT_HEADER+ this.flow_cnt*SNAPSHOT_FLOW;
+        final boolean[] linked=new boolean[this.flow_cnt];
+        for (int i=0;i<flowCount;i++) {
+            final int idx=buffer.getInt(lists+4*i);
+            if (idx < 0 || idx >= this.flow_cnt || linked[idx]) {
+                throw new IOException("snapshot flow list corrupt : "+idx);
+            }
+            linked[idx]=true;
+        }
+        final int packets=lists+4*flowCount;
+        for (int i=0;i<packetCount;i++) {
+            final int idx=buffer.getInt(packets+i*SNAPSHOT_PACKET);
+            if (idx < 0 || idx >= this.flow_cnt || buffer.getInt(packets+i*SNAPSHOT_PACKET+4) < 0) {
+                throw new IOException("snapshot packet corrupt : "+i);
+            }
+        }
+    }
+
+    //codel time saved by checkpoint moved by downtime, 0 is not set
+    private static long rebase(final long time, final long downtime) {
+        return time == 0 ? 0 : time+downtime;
+    }
+
+    private static boolean isZero(final MappedByteBuffer buffer, final int offset, final int length) {
+        for (int i=0;i<length;i+=8) {
+            if (buffer.getLong(offset+i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //link flow saved in a flow list, ring flows are active while linked
+    private void restore(final FlowQueue list, final CodelPacketQueue flow) {
+        if (this.ring_size > 0) {
+            ((RingCodelPacketQueue) flow).activate();
+        }
+        list.add(flow);
+    }
+
+    /**
+     * plain read, only exact for the thread using the queue. Other threads should use setStats()
+     */
+    public int size() {
+        if (this.sched != null) {
+            return this.shared_qlen.get();
+        }
+        return this.ring_size > 0 ? this.ring_in- this.ring_out : this.qlen;
+    }
+
+    public int backlog(){
+        if (this.sched != null) {
+            return (int) this.shared_backlog.get();
+        }
+        return this.ring_size > 0 ? (int) (this.ring_in_bytes- this.ring_out_bytes) : this.backlog;
+    }
+
+    public boolean isEmpty() {
+        return this.size() <=0;
+    }
+
+    /**
+     * set packet classifier, in case of a WeightedClassify the weight of the class is
+     * applied to the flow each time it becomes active.
+     * The classifier is called through one interface call site for all SFQCodel instances, the JIT stops inlining
+     * it when more than two classifier classes are used in the same JVM. Prefer one final classifier class
+     * over an anonymous class per queue.
+     * @param classifier
+     */
+    public void setClassifier(Classify classifier) {
+        this.classifier=classifier;
+        this.weighted=classifier instanceof WeightedClassify ? (WeightedClassify)classifier : null;
+    }
+
+    /**
+     * set weight of a flow, flow gets weight times quantum bytes each DRR round.
+     * A WeightedClassify overrides this when the flow becomes active.
+     * @param idx index of the flow
+     * @param weight >= 1
+     */
+    public void setFlowWeight(final int idx, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be >= 1 : "+weight);
+        }
+        this.flow(idx).weight=weight;
+    }
+
+    public int getFlowWeight(final int idx) {
+        return this.flows == null || this.flows[idx] == null ? 1 : this.flows[idx].weight;
+    }
+
+    /**
+     * flow loses its remaining deficit, on next schedule it moves to the end of old flows.
+     * Used to take away the new flow priority of heavy hitters.
+     * @param idx index of the flow
+     */
+    public void demoteFlow(final int idx) {
+        final CodelPacketQueue flow= this.flow(idx);
+        if (this.sched != null) {
+            flow.lock.lock();
+        }
+        try {
+            if (flow.deficit > 0) {
+                flow.deficit=0;
+            }
+        } finally {
+            if (this.sched != null) {
+                flow.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * enable pacing : flows are held back until the departure time of their head packet and
+     * until the transmit time of the previous packet at the flow max rate has passed.
+     * @param granularity timer wheel tick in usec, 0 disables pacing and releases held flows
+     */
+    public void setPacing(final long granularity) {
+        if (this.wheel != null) {
+            this.wheel.flush(this.old_flows);
+        }
+        this.wheel=granularity > 0 ? new TimerWheel(granularity,System.nanoTime()/1000) : null;
+    }
+
+    /**
+     * set pacing rate of a flow
+     * @param idx index of the flow
+     * @param rate bytes/sec, 0 for no rate limit
+     */
+    public void setFlowMaxRate(final int idx, final long rate) {
+        this.flow(idx).maxRate=rate;
+    }
+
+    public long getFlowMaxRate(final int idx) {
+        return this.flows == null || this.flows[idx] == null ? 0 : this.flows[idx].maxRate;
+    }
+
+    /**
+     * when dequeue() returns null while packets are queued, all backlogged flows are held by the pacer.
+     * @return time in usec (System.nanoTime()/1000) the first held flow may send, Long.MAX_VALUE if no flow is held
+     */
+    public long nextWakeup() {
+        return this.wheel == null ? Long.MAX_VALUE : this.wheel.nextExpire();
+    }
+
+    /**
+     * track top talkers on enqueue, null to disable
+     * @param heavyHitters
+     */
+    public void setHeavyHitters(HeavyHitters heavyHitters) {
+        this.heavyHitters=heavyHitters;
+    }
+
+    public HeavyHitters getHeavyHitters() {
+        return this.heavyHitters;
+    }
+
+    /**
+     * filter redundant pure tcp acks on enqueue, null to disable
+     * @param ackFilter
+     */
+    public void setAckFilter(AckFilter ackFilter) {
+        this.ackFilter=ackFilter;
+    }
+
+    /**
+     * estimate link rate from dequeue rate and derive codel target/interval from it.
+     * @param rtt expected round trip time in msec, 0 disables auto tuning and restores configured target/interval
+     */
+    public void setAutoTune(final long rtt) {
+        if (rtt <= 0) {
+            this.rateEstimator=null;
+            this.target= this.base_target;
+            this.interval= this.base_interval;
+            return;
+        }
+        this.rtt=rtt;
+        if (this.rateEstimator == null) {
+            this.rateEstimator=new LinkRateEstimator(this.base_interval);
+        }
+    }
+
+    /**
+     * @return estimated link rate in bytes/sec, 0 if unknown or not auto tuning
+     */
+    public long getLinkRate() {
+        return this.rateEstimator == null ? 0 : this.rateEstimator.getRate();
+    }
+
+    public long getTarget() {
+        return this.target;
+    }
+
+    public long getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * report queue events to listener, null to disable
+     * @param listener
+     * @param period period in msec of backlog events
+     */
+    public void setListener(final QueueListener listener, final long period) {
+        this.listener=listener;
+        this.sample_period=period;
+        this.next_sample=0;
+    }
+
+    /**
+     * capture dequeued and dropped packets, null to disable. Both may be the same sink.
+     * A capture has a single producer : with ring flows only the consumer captures, packets dropped
+     * by the producer on enqueue (overflow, stall) are counted but not captured.
+     * @param dequeueCapture sink for dequeued packets
+     * @param dropCapture sink for dropped packets
+     */
+    public void setCapture(PcapCapture dequeueCapture, PcapCapture dropCapture) {
+        this.dequeueCapture=dequeueCapture;
+        this.dropCapture=dropCapture;
+    }
+
+    /**
+     * watchdog on the consumer : when packets are queued and dequeue made no progress for timeout msec,
+     * enqueue stops growing the queue until the consumer dequeues again.
+     * STALL_REJECT drops every offered packet, STALL_HEAD_DROP keeps queueing and drops the oldest
+     * packet of the same flow when the queue is full. Shed packets are dropped with DROP_STALL,
+     * offer() returns AdmissionResult.DROPPED_STALL for dropped packets and each episode is reported
+     * to QueueListener.stall(). STALL_HEAD_DROP can not be used with ring flows, the producer can not
+     * take packets out of a ring.
+     * @param timeout stall time in msec, 0 to disable
+     * @param mode STALL_REJECT or STALL_HEAD_DROP
+     */
+    public void setStallWatchdog(final long timeout, final int mode) {
+        if (mode != STALL_REJECT && mode != STALL_HEAD_DROP) {
+            throw new IllegalArgumentException("invalid stall mode : "+mode);
+        }
+        if (timeout > 0 && mode == STALL_HEAD_DROP && this.ring_size > 0) {
+            throw new IllegalStateException("ring flows only support STALL_REJECT");
+        }
+        this.stall_mode=mode;
+        this.stall_timeout=timeout;
+        this.stalled.set(false);
+    }
+
+    /**
+     * @return true if enqueue is shedding load because the consumer is stalled
+     */
+    public boolean isStalled() {
+        return this.stalled.get();
+    }
+
+    /**
+     * @return number of stall episodes
+     */
+    public long getStallCount() {
+        return this.stall_count;
+    }
+
+    /**
+     * keep the packets of each flow in a bounded single producer/single consumer ring (SpscPacketQueue)
+     * instead of a linked queue, so queueing a packet takes no lock and does not write Packet.next().
+     * A packet arriving at a full ring or a full queue is dropped (DROP_OVERFLOW), queued packets are never
+     * dropped by the producer. The ack filter does not replace acks in a ring.
+     * One producer thread may call enqueue/offer while one consumer thread calls dequeue. reset, purgeFlow
+     * and checkpoint belong to the consumer, restore must be done before the producer starts. QueueStats are
+     * published by the consumer. The producer runs the HeavyHitterPolicy, which may not purge flows.
+     * Must be set before the queue is used, not supported with multiple consumers or STALL_HEAD_DROP.
+     * @param size packets per flow, rounded up to a power of 2. 0 selects linked flows
+     */
+    public void setRingSize(final int size) {
+        if (this.flows != null) {
+            throw new IllegalStateException("queue already in use");
+        }
+        if (size > 0 && this.sched != null) {
+            throw new IllegalStateException("ring flows have a single consumer");
+        }
+        if (size > 0 && this.stall_timeout > 0 && this.stall_mode == STALL_HEAD_DROP) {
+            throw new IllegalStateException("ring flows only support STALL_REJECT");
+        }
+        this.ring_size=size;
+    }
+
+    public int getRingSize() {
+        return this.ring_size;
+    }
+
+    /**
+     * packets are reserved in pool by the caller before they are queued, every packet this queue drops
+     * (overflow, codel, stall, ack filter, purge and reset) is given back to the pool when it is dropped.
+     * Packets returned by dequeue are given back by the caller.
+     */
+    void setPool(final SharedBufferPool pool) {
+        this.pool=pool;
+    }
+
+    /**
+     * publish queue length, backlog and flow counts to stats after each enqueue, dequeue and purge,
+     * so monitoring threads can read a coherent snapshot with QueueStats.read() without locking the queue.
+     * Must be set before the queue is used.
+     * @param stats SCHEDULER_COUNTERS stats or null to disable
+     */
+    public void setStats(final QueueStats stats) {
+        this.stats=stats;
+        if (stats != null) {
+            this.publish();
+        }
+    }
+
+    public QueueStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * single consumer : called by the queue thread, multiple consumers : writers are serialized by the list lock
+     */
+    private void publish() {
+        this.lock();
+        try {
+            final QueueStats s= this.stats;
+            s.begin();
+            s.set(QueueStats.SIZE, this.size());
+            s.set(QueueStats.BACKLOG, this.backlog());
+            s.set(QueueStats.FLOWS, this.new_flows.size()+ this.old_flows.size());
+            s.set(QueueStats.NEW_FLOWS, this.new_flows.size());
+            s.end();
+        } finally {
+            this.unlock();
+        }
+    }
+
+    /**
+     * record enqueue/dequeue/drop and codel state events in trace, null to disable
+     * @param trace
+     */
+    public void setTrace(EventTrace trace) {
+        this.trace=trace;
+    }
+
+    /**
+     * congestion signal of a flow, can be polled by producers from any thread without locking.
+     * @param idx index of the flow, see AdmissionResult.flow
+     * @return CodelPacketQueue.CONGESTION_xxx
+     */
+    public int getCongestion(final int idx) {
+        final CodelPacketQueue[] flows= this.flows;
+        if (flows == null || flows[idx] == null) {
+            return CodelPacketQueue.CONGESTION_NONE;
+        }
+        return flows[idx].congestion;
+    }
+
+    /**
+     * @return packets dropped from flow idx since it became active
+     */
+    public int getFlowDropped(final int idx) {
+        return this.flows == null || this.flows[idx] == null ? 0 : this.flows[idx].getDropped();
+    }
+
+    /**
+     * @return packets queued in flow idx
+     */
+    public int getFlowQueueSize(final int idx) {
+        return this.flows == null || this.flows[idx] == null ? 0 : this.flows[idx].size();
     }
 
     public int getFlowSize() {
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Verify the steady state enqueue/dequeue/drop path does not allocate, using the
+ * per thread allocation counter of the hotspot ThreadMXBean.
+ */
+public class SFQCodelAllocationTest {
+    private static final int ROUNDS = 200;
+
+    private final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long thread = Thread.currentThread().getId();
+
+    private long allocated() {
+        return this.bean.getThreadAllocatedBytes(this.thread);
+    }
+
+    /**
+     * @return bytes allocated by the measurement itself
+     */
+    private long overhead() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            final long start = this.allocated();
+            min = Math.min(min, this.allocated() - start);
+        }
+        return min;
+    }
+
+    private static Packet[] packets(int count) {
+        Packet[] packets = new Packet[count];
+        for (int i = 0; i < count; i++) {
+            packets[i] = new Packet(64 + (i % 1400));
+        }
+        return packets;
+    }
+
+    private static int cycle(SFQCodel codel, Packet[] packets) {
+        for (int i = 0; i < packets.length; i++) {
+            codel.enqueue(packets[i]);
+        }
+        int cnt = 0;
+        while (codel.dequeue() != null) {
+            cnt++;
+        }
+        return cnt;
+    }
+
+    @Test
+    public void testEnqueueDequeueAllocationFree() {
+        Assert.assertTrue(this.bean.isThreadAllocatedMemorySupported());
+        this.bean.setThreadAllocatedMemoryEnabled(true);
+        SFQCodel codel = new SFQCodel();
+        Packet[] packets = packets(1000);
+        //warm up, let JIT compile the hot path
+        for (int i = 0; i < ROUNDS * 10; i++) {
+            cycle(codel, packets);
+        }
+        final long overhead = this.overhead();
+        final long start = this.allocated();
+        long cnt = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            cnt = cnt + cycle(codel, packets);
+        }
+        final long bytes = this.allocated() - start - overhead;
+        Assert.assertEquals(ROUNDS * 1000L, cnt);
+        Assert.assertEquals("bytes allocated for " + cnt + " packets", 0, bytes);
+    }
+
+    @Test
+    public void testOverflowDropAllocationFree() {
+        this.bean.setThreadAllocatedMemoryEnabled(true);
+        SFQCodel codel = new SFQCodel();
+        //more packets then queue size, each extra packet triggers an overflow drop
+        Packet[] packets = packets(11000);
+        for (int i = 0; i < 100; i++) {
+            cycle(codel, packets);
+        }
+        final long overhead = this.overhead();
+        final long start = this.allocated();
+        for (int i = 0; i < 20; i++) {
+            cycle(codel, packets);
+        }
+        final long bytes = this.allocated() - start - overhead;
+        Assert.assertTrue(codel.isEmpty());
+        Assert.assertEquals(0, codel.backlog());
+        Assert.assertEquals("bytes allocated", 0, bytes);
+    }
+}
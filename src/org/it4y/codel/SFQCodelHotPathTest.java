@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Micro benchmark of the enqueue/dequeue hot path with polluted type profiles : several Packet, LinkedQueue
+ * and Classify classes are used before the measurement, like in a JVM running several queue types.
+ * PacketQueue and FlowQueue link with typed final next() calls, so these calls and the built in classifier
+ * must stay inlined.
+ *
+ * Timing is printed, not asserted. Check inlining with
+ *   -XX:+UnlockDiagnosticVMOptions -XX:+PrintCompilation -XX:+PrintInlining
+ * Packet::next, PacketQueue::doneAdd/doneRemove, LinkedQueue::linked/unlinked and SFQCodel::classifyPacket
+ * must be reported as "inline" or "accessor", Queueable::next must not show up.
+ */
+public class SFQCodelHotPathTest {
+    private static final int PACKETS = 256;
+    private static final int ROUNDS = 2000;
+
+    static class MarkedPacket extends Packet {
+        MarkedPacket(int size) {
+            super(size);
+        }
+    }
+
+    static class OtherPacket extends Packet {
+        OtherPacket(int size) {
+            super(size);
+        }
+    }
+
+    /**
+     * run other queue, packet and classifier classes through the shared code
+     */
+    private static void pollute() {
+        final Classify[] classifiers = {
+                new Classify() {
+                    public int classifyPacket(Packet p) {
+                        return p.size;
+                    }
+                },
+                new Classify() {
+                    public int classifyPacket(Packet p) {
+                        return p.size * 31;
+                    }
+                },
+                new Classify() {
+                    public int classifyPacket(Packet p) {
+                        return p.size >> 2;
+                    }
+                }
+        };
+        final PacketQueue[] queues = {new PacketQueue(), new CodelPacketQueue(0), new RingCodelPacketQueue(1, 64)};
+        final FlowQueue flows = new FlowQueue();
+        for (int round = 0; round < 200; round++) {
+            for (Classify classify : classifiers) {
+                SFQCodel codel = new SFQCodel(1024, 64, 1500, 100, 10);
+                codel.setClassifier(classify);
+                for (int i = 0; i < 32; i++) {
+                    codel.enqueue((i & 1) == 0 ? new MarkedPacket(64 + i) : new OtherPacket(64 + i));
+                }
+                while (codel.dequeue() != null) {
+                    //drain
+                }
+            }
+            for (PacketQueue queue : queues) {
+                for (int i = 0; i < 32; i++) {
+                    queue.add(new OtherPacket(i));
+                }
+                while (queue.remove() != null) {
+                    //drain
+                }
+                flows.add(queue);
+            }
+            while (flows.remove() != null) {
+                //drain
+            }
+        }
+    }
+
+    private static long run(SFQCodel codel, Packet[] packets) {
+        long sum = 0;
+        for (int i = 0; i < packets.length; i++) {
+            codel.enqueue(packets[i], 0);
+        }
+        Packet p;
+        while ((p = codel.dequeue(0)) != null) {
+            sum = sum + p.size;
+        }
+        return sum;
+    }
+
+    @Test
+    public void testPerformanceHotPath() {
+        pollute();
+        final SFQCodel codel = new SFQCodel(PACKETS * 2, 1024, 1500, 100, 10);
+        final Packet[] packets = new Packet[PACKETS];
+        long expected = 0;
+        for (int i = 0; i < PACKETS; i++) {
+            packets[i] = new Packet(64 + (i * 7) % 1400);
+            expected = expected + packets[i].size;
+        }
+        //warm up
+        for (int i = 0; i < ROUNDS; i++) {
+            Assert.assertEquals(expected, run(codel, packets));
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            Assert.assertEquals(expected, run(codel, packets));
+        }
+        final long time = System.nanoTime() - start;
+        System.out.println("enqueue+dequeue : " + ((double) time / ((long) ROUNDS * PACKETS)) + " nsec per packet");
+        Assert.assertTrue(codel.isEmpty());
+        Assert.assertEquals(0, codel.backlog());
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * Hosts one SFQCodel per tenant (subscriber) for many thousands of tenants.
+ *
+ * Tenants are created on their first packet and allocate their flow structures lazily, an idle tenant
+ * costs a few hundred bytes. When a tenant is idle for 16 codel intervals dequeue() frees its flows again,
+ * only flows with pacing, weight or rate settings are kept. All tenants share one SharedBufferPool for memory accounting and one clock read
+ * per enqueue/dequeue call. The scheduler is a DRR round robin over the active tenants only,
+ * so its cost depends on the number of backlogged tenants and not on the number of tenants.
+ *
+ * enqueue() and dequeue() must be called from the same thread, the active tenant list is not shared.
+ * Packets are reserved in the pool atomically, so the pool can be shared with other managers or
+ * MultiPortCodel instances serviced by other threads. Pool accounting is per packet : enqueue() reserves
+ * the packet, a tenant gives back every packet it drops, including purge and reset through getTenant(),
+ * and dequeue() gives back the packet it returns.
+ */
+public class SFQCodelManager {
+    //idle time before the flows of a tenant are freed, same as the codel reentry window
+    private static final int IDLE_INTERVALS=16;
+
+    private final SFQCodel[] tenants;
+    private final int[] deficit;
+    private final boolean[] active;
+    //active tenants in round robin order, circular buffer
+    private final int[] ring;
+    private int ring_head;
+    private int active_count;
+    //tenants which left the active list in deactivation order, circular buffer. A tenant is in the list once
+    private final int[] idle;
+    private final long[] idle_since;
+    private final boolean[] parked;
+    private int idle_head;
+    private int idle_count;
+
+    private final SharedBufferPool pool;
+    private final int quantum;
+    private final int maxQueueSize;
+    private final int flow_cnt;
+    private final long interval;
+    private final long target;
+
+    /**
+     * @param tenantCount number of tenants
+     * @param pool memory shared by all tenants
+     * @param quantum DRR quantum between tenants in bytes
+     * @param flow_cnt flows per tenant
+     */
+    public SFQCodelManager(final int tenantCount, final SharedBufferPool pool, final int quantum, final int flow_cnt) {
+        this.tenants=new SFQCodel[tenantCount];
+        this.deficit=new int[tenantCount];
+        this.active=new boolean[tenantCount];
+        this.ring=new int[tenantCount];
+        this.idle=new int[tenantCount];
+        this.idle_since=new long[tenantCount];
+        this.parked=new boolean[tenantCount];
+        this.pool=pool;
+        this.quantum=quantum;
+        this.flow_cnt=flow_cnt;
+        //pool limits the tenant, local overflow drop is only a safety net
+        this.maxQueueSize=pool.getMaxPackets();
+        this.interval=100;
+        this.target=10;
+    }
+
+    /**
+     * @return queue of tenant, created when used for the first time
+     */
+    public SFQCodel getTenant(final int tenant) {
+        SFQCodel codel= this.tenants[tenant];
+        if (codel == null) {
+            codel=new SFQCodel(this.maxQueueSize, this.flow_cnt, this.quantum, this.interval, this.target);
+            codel.setPool(this.pool);
+            this.tenants[tenant]=codel;
+        }
+        return codel;
+    }
+
+    /**
+     * @return true if the tenant queue was created
+     */
+    public boolean hasTenant(final int tenant) {
+        return this.tenants[tenant] != null;
+    }
+
+    public boolean enqueue(final int tenant, final Packet p) {
+        return this.enqueue(tenant,p,System.currentTimeMillis());
+    }
+
+    /**
+     * queue packet of tenant, packet is dropped when tenant is above its dynamic threshold of the pool
+     * @param now time in msec
+     * @return true if packet is admitted
+     */
+    public boolean enqueue(final int tenant, final Packet p, final long now) {
+        final SFQCodel codel= this.getTenant(tenant);
+        if (!this.pool.reserve(codel.size(),codel.backlog(),p.size)) {
+            p.drop();
+            return false;
+        }
+        //packet is reserved, packets codel drops or replaces are given back by the tenant
+        codel.enqueue(p,now);
+        if (!this.active[tenant] && !codel.isEmpty()) {
+            this.active[tenant]=true;
+            this.deficit[tenant]= this.quantum;
+            this.ring[(this.ring_head+ this.active_count) % this.ring.length]=tenant;
+            this.active_count++;
+        }
+        return true;
+    }
+
+    public Packet dequeue() {
+        return this.dequeue(System.currentTimeMillis());
+    }
+
+    /**
+     * dequeue packet of next active tenant
+     * @param now time in msec
+     * @return packet or null, null can also mean codel dropped the packets of a tenant or all tenants are paced
+     */
+    public Packet dequeue(final long now) {
+        if (this.idle_count > 0) {
+            this.sweep(now);
+        }
+        int misses=0;
+        while (this.active_count > 0 && misses <= this.active_count) {
+            final int tenant= this.ring[this.ring_head];
+            final SFQCodel codel= this.tenants[tenant];
+            if (codel.isEmpty()) {
+                this.deactivate(tenant,now);
+                continue;
+            }
+            if (this.deficit[tenant] <= 0) {
+                this.deficit[tenant]+= this.quantum;
+                this.rotate();
+                continue;
+            }
+            final Packet p=codel.dequeue(now);
+            if (p == null) {
+                if (codel.isEmpty()) {
+                    this.deactivate(tenant,now);
+                } else {
+                    this.rotate();
+                    misses++;
+                }
+                continue;
+            }
+            this.pool.add(-1,-p.size);
+            this.deficit[tenant]-=p.size;
+            if (codel.isEmpty()) {
+                this.deactivate(tenant,now);
+            }
+            return p;
+        }
+        return null;
+    }
+
+    /**
+     * dequeue up to max packets with one clock read
+     * @return number of packets dequeued
+     */
+    public int dequeue(final Packet[] packets, final int offset, final int max) {
+        final long now=System.currentTimeMillis();
+        int cnt=0;
+        while (cnt < max) {
+            final Packet p= this.dequeue(now);
+            if (p == null) {
+                break;
+            }
+            packets[offset+cnt]=p;
+            cnt++;
+        }
+        return cnt;
+    }
+
+    private void rotate() {
+        final int tenant= this.ring[this.ring_head];
+        this.ring_head=(this.ring_head+1) % this.ring.length;
+        this.ring[(this.ring_head+ this.active_count-1) % this.ring.length]=tenant;
+    }
+
+    //tenant is always at the head of the ring
+    private void deactivate(final int tenant, final long now) {
+        this.active[tenant]=false;
+        this.deficit[tenant]=0;
+        this.ring_head=(this.ring_head+1) % this.ring.length;
+        this.active_count--;
+        this.idle_since[tenant]=now;
+        if (!this.parked[tenant]) {
+            this.parked[tenant]=true;
+            this.idle[(this.idle_head+ this.idle_count) % this.idle.length]=tenant;
+            this.idle_count++;
+        }
+    }
+
+    /**
+     * free the flows of tenants which are idle for IDLE_INTERVALS codel intervals, their codel state is no longer
+     * used on reentry. A tenant which is active again leaves the idle list, so tenants sending now and then
+     * do not allocate their flows on every packet.
+     */
+    private void sweep(final long now) {
+        while (this.idle_count > 0) {
+            final int tenant= this.idle[this.idle_head];
+            if (!this.active[tenant] && now- this.idle_since[tenant] < IDLE_INTERVALS* this.interval) {
+                return;
+            }
+            this.idle_head=(this.idle_head+1) % this.idle.length;
+            this.idle_count--;
+            this.parked[tenant]=false;
+            if (!this.active[tenant]) {
+                //an idle tenant keeps only the flows with pacing, weight or rate settings
+                this.tenants[tenant].compact(now);
+            }
+        }
+    }
+
+    /**
+     * drop all packets of a tenant, the tenant leaves the active list on next dequeue
+     */
+    public void reset(final int tenant) {
+        final SFQCodel codel= this.tenants[tenant];
+        if (codel != null) {
+            codel.reset();
+        }
+    }
+
+    /**
+     * @return number of tenants with queued packets
+     */
+    public int getActiveCount() {
+        return this.active_count;
+    }
+
+    public int getTenantCount() {
+        return this.tenants.length;
+    }
+
+    public SharedBufferPool getPool() {
+        return this.pool;
+    }
+
+}
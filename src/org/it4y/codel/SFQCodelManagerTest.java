@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+public class SFQCodelManagerTest {
+
+    @Test
+    public void testIdleFootprint() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        bean.setThreadAllocatedMemoryEnabled(true);
+        int count = 10000;
+        SFQCodelManager manager = new SFQCodelManager(count, new SharedBufferPool(100000, 100000000L, 8), 1500, 1024);
+        //class loading and static init
+        manager.getTenant(0);
+        long start = bean.getThreadAllocatedBytes(thread);
+        for (int i = 1; i < count; i++) {
+            manager.getTenant(i);
+        }
+        long perTenant = (bean.getThreadAllocatedBytes(thread) - start) / (count - 1);
+        Assert.assertTrue("idle tenant uses " + perTenant + " bytes", perTenant < 1024);
+
+        //a tenant with traffic only allocates the flows it uses
+        for (int i = 0; i < 100; i++) {
+            manager.enqueue(i, new Packet(100), 0);
+            Assert.assertEquals(1, manager.getTenant(i).getFlowsAllocated());
+        }
+        Assert.assertEquals(100, manager.getActiveCount());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull(manager.dequeue(0));
+        }
+        Assert.assertEquals(0, manager.getActiveCount());
+        Assert.assertTrue(manager.hasTenant(count - 1));
+
+        //flows are kept while the tenants may become active again
+        Assert.assertEquals(1, manager.getTenant(1).getFlowsAllocated());
+        Assert.assertNull(manager.dequeue(1599));
+        Assert.assertEquals(1, manager.getTenant(1).getFlowsAllocated());
+        //idle for 16 codel intervals : flows and flow arrays are freed
+        Assert.assertNull(manager.dequeue(1600));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(0, manager.getTenant(i).getFlowsAllocated());
+        }
+        long idle = retained(manager.getTenant(1));
+        Assert.assertTrue("idle tenant retains " + idle + " bytes", idle < 1024);
+        //a second round of traffic must not grow the retained size
+        for (int i = 0; i < 100; i++) {
+            manager.enqueue(i, new Packet(100), 0);
+        }
+        while (manager.dequeue(2000) != null) {
+            //drain
+        }
+        Assert.assertNull(manager.dequeue(4000));
+        Assert.assertEquals(idle, retained(manager.getTenant(1)));
+
+        //flows with settings or recent codel state are kept
+        SFQCodel tenant = manager.getTenant(2);
+        tenant.setFlowMaxRate(7, 1000000);
+        Assert.assertEquals(1, tenant.getFlowsAllocated());
+        manager.enqueue(2, new Packet(100), 4000);
+        while (manager.dequeue(4000) != null) {
+            //drain
+        }
+        Assert.assertNull(manager.dequeue(6000));
+        Assert.assertEquals(1, tenant.getFlowsAllocated());
+        Assert.assertEquals(1000000, tenant.getFlowMaxRate(7));
+        tenant.reset();
+        Assert.assertTrue(tenant.getFlowsAllocated() >= 1);
+    }
+
+    /**
+     * size of the objects only reachable from the tenant, walked with reflection
+     */
+    private static long retained(Object root) {
+        java.util.IdentityHashMap<Object, Boolean> seen = new java.util.IdentityHashMap<Object, Boolean>();
+        java.util.ArrayDeque<Object> todo = new java.util.ArrayDeque<Object>();
+        todo.add(root);
+        long bytes = 0;
+        while (!todo.isEmpty()) {
+            Object o = todo.poll();
+            if (seen.put(o, Boolean.TRUE) != null) {
+                continue;
+            }
+            Class<?> c = o.getClass();
+            if (c.isArray()) {
+                int length = java.lang.reflect.Array.getLength(o);
+                if (c.getComponentType().isPrimitive()) {
+                    bytes += 16 + length * 8L;
+                } else {
+                    bytes += 16 + length * 4L;
+                    for (int i = 0; i < length; i++) {
+                        Object e = java.lang.reflect.Array.get(o, i);
+                        if (e != null) {
+                            todo.add(e);
+                        }
+                    }
+                }
+                continue;
+            }
+            bytes += 16;
+            for (; c != null; c = c.getSuperclass()) {
+                for (java.lang.reflect.Field f : c.getDeclaredFields()) {
+                    if (java.lang.reflect.Modifier.isStatic(f.getModifiers())) {
+                        continue;
+                    }
+                    bytes += 8;
+                    if (f.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        f.setAccessible(true);
+                        Object v = f.get(o);
+                        //threads and classes are shared, not owned by the tenant
+                        if (v != null && !(v instanceof Thread) && !(v instanceof Class) && v != root.getClass()) {
+                            todo.add(v);
+                        }
+                    } catch (Exception e) {
+                        //module protected jdk internals, not counted
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testRoundRobinActiveTenants() {
+        SFQCodelManager manager = new SFQCodelManager(100000, new SharedBufferPool(10000, 10000000L, 8), 1500, 16);
+        Assert.assertFalse(manager.hasTenant(7));
+        for (int i = 0; i < 100; i++) {
+            manager.enqueue(7, new Packet(1000));
+            manager.enqueue(99999, new Packet(500));
+        }
+        Assert.assertTrue(manager.hasTenant(7));
+        Assert.assertFalse(manager.hasTenant(8));
+        Assert.assertEquals(2, manager.getActiveCount());
+        Assert.assertEquals(200, manager.getPool().getPackets());
+
+        //byte fair between tenants
+        long[] bytes = new long[2];
+        for (int i = 0; i < 90; i++) {
+            Packet p = manager.dequeue();
+            bytes[p.size == 1000 ? 0 : 1] += p.size;
+        }
+        Assert.assertTrue(Math.abs(bytes[0] - bytes[1]) <= 1500);
+
+        //tenant leaves active list when empty
+        Packet[] packets = new Packet[200];
+        Assert.assertEquals(110, manager.dequeue(packets, 0, 200));
+        Assert.assertEquals(0, manager.getActiveCount());
+        Assert.assertEquals(0, manager.getPool().getPackets());
+        Assert.assertEquals(0, manager.getPool().getBytes());
+        Assert.assertNull(manager.dequeue());
+    }
+
+    @Test
+    public void testSharedPoolAndReset() {
+        //alpha=1 : single tenant may use half of the pool
+        SFQCodelManager manager = new SFQCodelManager(1000, new SharedBufferPool(100, 1000000L, 8), 1500, 16);
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (manager.enqueue(3, new Packet(100))) {
+                accepted++;
+            }
+        }
+        Assert.assertEquals(50, accepted);
+        manager.enqueue(4, new Packet(100));
+        manager.reset(3);
+        manager.reset(500);
+        Assert.assertEquals(1, manager.getPool().getPackets());
+        //reset tenant leaves the active list on next dequeue
+        Assert.assertEquals(100, manager.dequeue().size);
+        Assert.assertNull(manager.dequeue());
+        Assert.assertEquals(0, manager.getActiveCount());
+
+        //purge and reset through the tenant give the dropped packets back
+        manager.getTenant(5).setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size / 100;
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            manager.enqueue(5, new Packet(100));
+            manager.enqueue(5, new Packet(200));
+        }
+        Assert.assertEquals(20, manager.getPool().getPackets());
+        Assert.assertEquals(10, manager.getTenant(5).purgeFlow(1));
+        Assert.assertEquals(10, manager.getPool().getPackets());
+        Assert.assertEquals(2000, manager.getPool().getBytes());
+        manager.getTenant(5).reset();
+        Assert.assertEquals(0, manager.getPool().getPackets());
+        Assert.assertEquals(0, manager.getPool().getBytes());
+        Assert.assertNull(manager.dequeue());
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class SFQCodelMultiConsumerTest {
+    private static final int FLOWS = 64;
+    private static final int COUNT = 200000;
+    private static final int CONSUMERS = 4;
+
+    static class SeqPacket extends Packet {
+        static final AtomicInteger dropped = new AtomicInteger();
+        final int flow;
+        final int seq;
+
+        SeqPacket(int flow, int seq) {
+            super(64 + flow);
+            this.flow = flow;
+            this.seq = seq;
+        }
+
+        @Override
+        public void drop() {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testLeasedFlowsKeepOrder() throws InterruptedException {
+        this.produceAndConsume(new SFQCodel(COUNT, 1024, 1500, 100, 10));
+    }
+
+    @Test
+    public void testOverflowDropsFromLeasedFlows() throws InterruptedException {
+        //queue limit far below COUNT, producer drops the head of the fattest flow also when it is leased
+        this.produceAndConsume(new SFQCodel(256, 1024, 1500, 100, 10));
+        Assert.assertTrue(SeqPacket.dropped.get() > 0);
+    }
+
+    private void produceAndConsume(final SFQCodel codel) throws InterruptedException {
+        SeqPacket.dropped.set(0);
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return ((SeqPacket) p).flow;
+            }
+        });
+        codel.setMultiConsumer(true);
+        final AtomicInteger delivered = new AtomicInteger();
+        final Throwable[] error = new Throwable[1];
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < COUNT; i++) {
+                    codel.enqueue(new SeqPacket(i % FLOWS, i / FLOWS));
+                }
+            }
+        });
+        Thread[] consumers = new Thread[CONSUMERS];
+        for (int c = 0; c < CONSUMERS; c++) {
+            final boolean batch = (c & 1) == 0;
+            consumers[c] = new Thread(new Runnable() {
+                public void run() {
+                    //packets of a flow are seen in order by every consumer
+                    int[] last = new int[FLOWS];
+                    Arrays.fill(last, -1);
+                    Packet[] packets = new Packet[16];
+                    try {
+                        while (delivered.get() + SeqPacket.dropped.get() < COUNT) {
+                            int n;
+                            if (batch) {
+                                n = codel.dequeue(packets, 0, packets.length);
+                            } else {
+                                packets[0] = codel.dequeue();
+                                n = packets[0] == null ? 0 : 1;
+                            }
+                            for (int i = 0; i < n; i++) {
+                                SeqPacket p = (SeqPacket) packets[i];
+                                Assert.assertTrue(p.seq > last[p.flow]);
+                                last[p.flow] = p.seq;
+                            }
+                            delivered.addAndGet(n);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (error) {
+                            error[0] = t;
+                        }
+                        delivered.addAndGet(COUNT);
+                    }
+                }
+            });
+        }
+        producer.start();
+        for (Thread t : consumers) {
+            t.start();
+        }
+        producer.join();
+        for (Thread t : consumers) {
+            t.join(60000);
+            Assert.assertFalse(t.isAlive());
+        }
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+        Assert.assertEquals(COUNT, delivered.get() + SeqPacket.dropped.get());
+        Assert.assertEquals(0, codel.size());
+        Assert.assertEquals(0, codel.backlog());
+        Assert.assertNull(codel.dequeue());
+        Assert.assertEquals(0, codel.getFlowSize());
+    }
+
+    @Test
+    public void testConsumerFlowAffinity() throws InterruptedException {
+        //two consumers overlap, a flow stays with its consumer until that consumer comes back for the next
+        //packet : packets of each flow are processed in order across consumers
+        SeqPacket.dropped.set(0);
+        final int flows = 8;
+        final int count = 100000;
+        final SFQCodel codel = new SFQCodel(count, flows, 1500, 100, 10);
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return ((SeqPacket) p).flow;
+            }
+        });
+        codel.setMultiConsumer(true);
+        final AtomicIntegerArray last = new AtomicIntegerArray(flows);
+        final AtomicIntegerArray owner = new AtomicIntegerArray(flows);
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger busy = new AtomicInteger();
+        final AtomicInteger overlap = new AtomicInteger();
+        final AtomicInteger handover = new AtomicInteger();
+        final Throwable[] error = new Throwable[1];
+        Thread[] consumers = new Thread[2];
+        for (int i = 0; i < flows; i++) {
+            last.set(i, -1);
+        }
+        for (int c = 0; c < consumers.length; c++) {
+            final int id = c + 1;
+            final boolean batch = c == 1;
+            consumers[c] = new Thread(new Runnable() {
+                public void run() {
+                    SFQCodel.Consumer consumer = codel.newConsumer();
+                    Packet[] packets = new Packet[4];
+                    try {
+                        while (processed.get() + SeqPacket.dropped.get() < count) {
+                            int n;
+                            if (batch) {
+                                n = consumer.dequeue(packets, 0, packets.length);
+                            } else {
+                                packets[0] = consumer.dequeue();
+                                n = packets[0] == null ? 0 : 1;
+                            }
+                            if (n == 0) {
+                                Thread.yield();
+                                continue;
+                            }
+                            if (busy.incrementAndGet() > 1) {
+                                overlap.incrementAndGet();
+                            }
+                            for (int i = 0; i < n; i++) {
+                                SeqPacket p = (SeqPacket) packets[i];
+                                //codel may drop packets, the sequence of a flow only goes up
+                                Assert.assertTrue("flow " + p.flow + " seq " + p.seq, last.getAndSet(p.flow, p.seq) < p.seq);
+                                if (owner.getAndSet(p.flow, id) != id) {
+                                    handover.incrementAndGet();
+                                }
+                                if ((p.seq & 63) == 0) {
+                                    //other consumer runs while this one processes
+                                    Thread.yield();
+                                }
+                            }
+                            busy.decrementAndGet();
+                            processed.addAndGet(n);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (error) {
+                            error[0] = t;
+                        }
+                        processed.addAndGet(count);
+                    } finally {
+                        consumer.release();
+                    }
+                }
+            });
+        }
+        for (Thread t : consumers) {
+            t.start();
+        }
+        for (int i = 0; i < count; i++) {
+            codel.enqueue(new SeqPacket(i % flows, i / flows));
+            if ((i & 1023) == 0) {
+                Thread.yield();
+            }
+        }
+        for (Thread t : consumers) {
+            t.join(60000);
+            Assert.assertFalse(t.isAlive());
+        }
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+        Assert.assertEquals(count, processed.get() + SeqPacket.dropped.get());
+        //consumers did overlap and flows moved between them
+        Assert.assertTrue(overlap.get() > 0);
+        Assert.assertTrue(handover.get() > flows);
+        Assert.assertEquals(0, codel.size());
+        Assert.assertEquals(0, codel.backlog());
+        Assert.assertNull(codel.dequeue());
+        Assert.assertEquals(0, codel.getFlowSize());
+    }
+
+    @Test
+    public void testNewConsumerNeedsMultiConsumer() {
+        try {
+            new SFQCodel().newConsumer();
+            Assert.fail("consumer of a single consumer queue");
+        } catch (IllegalStateException expected) {
+            //single consumer queue
+        }
+    }
+
+    @Test
+    public void testRingProducerConsumer() throws InterruptedException {
+        //ring flows : producer and consumer thread without scheduler lock, flows are handed over on activation
+        SeqPacket.dropped.set(0);
+        final SFQCodel codel = new SFQCodel(256, FLOWS, 1500, 100, 10);
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return ((SeqPacket) p).flow;
+            }
+        });
+        codel.setRingSize(16);
+        final int[] delivered = new int[1];
+        final Throwable[] error = new Throwable[1];
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                int[] last = new int[FLOWS];
+                Arrays.fill(last, -1);
+                try {
+                    while (delivered[0] + SeqPacket.dropped.get() < COUNT) {
+                        SeqPacket p = (SeqPacket) codel.dequeue();
+                        if (p == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        Assert.assertTrue(p.seq > last[p.flow]);
+                        last[p.flow] = p.seq;
+                        delivered[0]++;
+                    }
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < COUNT; i++) {
+            codel.enqueue(new SeqPacket(i % FLOWS, i / FLOWS));
+        }
+        consumer.join(60000);
+        Assert.assertFalse(consumer.isAlive());
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+        Assert.assertEquals(COUNT, delivered[0] + SeqPacket.dropped.get());
+        Assert.assertEquals(0, codel.size());
+        Assert.assertEquals(0, codel.backlog());
+        Assert.assertNull(codel.dequeue());
+        Assert.assertEquals(0, codel.getFlowSize());
+    }
+
+    @Test
+    public void testRingStallWatchdog() throws InterruptedException {
+        //producer starts stall episodes, the consumer ends them : each episode is reported once
+        SeqPacket.dropped.set(0);
+        final SFQCodel codel = new SFQCodel(256, FLOWS, 1500, 100, 10);
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return ((SeqPacket) p).flow;
+            }
+        });
+        codel.setRingSize(16);
+        final AtomicInteger reported = new AtomicInteger();
+        codel.setListener(new QueueListener.Adapter() {
+            @Override
+            public void stall(long duration, int drops, int packets) {
+                reported.incrementAndGet();
+            }
+        }, 1000);
+        codel.setStallWatchdog(2, SFQCodel.STALL_REJECT);
+        final int[] delivered = new int[1];
+        final Throwable[] error = new Throwable[1];
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (delivered[0] + SeqPacket.dropped.get() < COUNT) {
+                        if (codel.dequeue() == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        delivered[0]++;
+                        //consumer stalls now and then
+                        if (delivered[0] % 5000 == 0) {
+                            Thread.sleep(5);
+                        }
+                    }
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < COUNT; i++) {
+            codel.enqueue(new SeqPacket(i % FLOWS, i / FLOWS));
+        }
+        consumer.join(60000);
+        Assert.assertFalse(consumer.isAlive());
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+        //an episode still open ends on the next dequeue
+        Assert.assertNull(codel.dequeue());
+        Assert.assertFalse(codel.isStalled());
+        Assert.assertTrue(codel.getStallCount() > 0);
+        Assert.assertEquals(codel.getStallCount(), reported.get());
+        Assert.assertEquals(COUNT, delivered[0] + SeqPacket.dropped.get());
+    }
+
+    @Test
+    public void testSingleConsumerOrderUnchanged() {
+        //with leasing a single consumer sees the same DRR order as without
+        SFQCodel plain = new SFQCodel();
+        SFQCodel leased = new SFQCodel();
+        leased.setMultiConsumer(true);
+        Classify classify = new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return ((SeqPacket) p).flow;
+            }
+        };
+        plain.setClassifier(classify);
+        leased.setClassifier(classify);
+        for (int i = 0; i < 1000; i++) {
+            plain.enqueue(new SeqPacket(i % 7, i));
+            leased.enqueue(new SeqPacket(i % 7, i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(((SeqPacket) plain.dequeue()).seq, ((SeqPacket) leased.dequeue()).seq);
+        }
+        Assert.assertTrue(leased.isEmpty());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publish packets of a SFQCodel queue to a single subscriber, demand driven.
+ * Subscriber and Subscription have the same contract as java.util.concurrent.Flow
+ * (reactive streams) so a Flow.Subscriber can be wrapped one to one.
+ *
+ * Packets are dequeued in batches when the subscriber requests them, enqueue only
+ * triggers a dequeue when there is outstanding demand. There is no polling thread:
+ * packets are delivered on the thread calling request(), enqueue() or poll().
+ * With pacing enabled, packets of held flows are delivered by calling poll() at codel.nextWakeup().
+ */
+public class SFQCodelPublisher {
+    public interface Subscriber {
+        void onSubscribe(Subscription s);
+        void onNext(Packet p);
+        void onError(Throwable t);
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+        void cancel();
+    }
+
+    private static final int BATCH=64;
+
+    private final SFQCodel codel;
+    private final Lock lock = new ReentrantLock();
+    private final AtomicReference<Subscriber> subscriber = new AtomicReference<Subscriber>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Packet[] batch = new Packet[BATCH];
+    private volatile boolean cancelled;
+    private volatile boolean completed;
+    private volatile Throwable error;
+    private boolean done;
+
+    private final Subscription subscription = new Subscription() {
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("request must be > 0 : " + n);
+            } else {
+                long r;
+                long u;
+                do {
+                    r = demand.get();
+                    u = r + n;
+                    //cap at unbounded
+                    if (u < 0) {
+                        u = Long.MAX_VALUE;
+                    }
+                } while (!demand.compareAndSet(r, u));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    };
+
+    public SFQCodelPublisher(final SFQCodel codel) {
+        this.codel = codel;
+    }
+
+    /**
+     * subscribe, only one subscriber is supported
+     * @param s
+     */
+    public void subscribe(final Subscriber s) {
+        if (!this.subscriber.compareAndSet(null, s)) {
+            s.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {}
+            });
+            s.onError(new IllegalStateException("only one subscriber supported"));
+            return;
+        }
+        s.onSubscribe(this.subscription);
+        this.drain();
+    }
+
+    /**
+     * queue packet in SFQCodel, packets are delivered when subscriber has outstanding demand
+     * @param p
+     */
+    public void enqueue(final Packet p) {
+        this.lock.lock();
+        try {
+            this.codel.enqueue(p);
+        } finally {
+            this.lock.unlock();
+        }
+        if (this.demand.get() > 0) {
+            this.drain();
+        }
+    }
+
+    /**
+     * no more packets will be queued, subscriber completes when queue is drained
+     */
+    public void complete() {
+        this.completed = true;
+        this.drain();
+    }
+
+    /**
+     * deliver packets that became eligible without a request or enqueue, like paced flows
+     * released at codel.nextWakeup()
+     */
+    public void poll() {
+        this.drain();
+    }
+
+    public long getDemand() {
+        return this.demand.get();
+    }
+
+    /**
+     * deliver packets while there is demand, only one thread can drain at the same time.
+     * Other threads calling drain() will let the draining thread do one more loop.
+     */
+    private void drain() {
+        if (this.wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            final Subscriber s = this.subscriber.get();
+            if (s != null && !this.done) {
+                this.emit(s);
+            }
+            missed = this.wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void emit(final Subscriber s) {
+        if (this.cancelled) {
+            this.done = true;
+            return;
+        }
+        if (this.error != null) {
+            this.done = true;
+            s.onError(this.error);
+            return;
+        }
+        final long r = this.demand.get();
+        long e = 0;
+        while (e != r && !this.cancelled) {
+            final int cnt;
+            this.lock.lock();
+            try {
+                cnt = this.codel.dequeue(this.batch, 0, (int) Math.min(BATCH, r - e));
+            } finally {
+                this.lock.unlock();
+            }
+            if (cnt == 0) {
+                break;
+            }
+            for (int i = 0; i < cnt; i++) {
+                final Packet p = this.batch[i];
+                this.batch[i] = null;
+                if (this.cancelled) {
+                    p.drop();
+                } else {
+                    s.onNext(p);
+                }
+            }
+            e = e + cnt;
+        }
+        if (e != 0 && r != Long.MAX_VALUE) {
+            this.demand.addAndGet(-e);
+        }
+        if (this.completed && !this.cancelled) {
+            final boolean empty;
+            this.lock.lock();
+            try {
+                //paced flows are held outside the flow lists, only an empty queue completes
+                empty = this.codel.isEmpty();
+            } finally {
+                this.lock.unlock();
+            }
+            if (empty) {
+                this.done = true;
+                s.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SFQCodelPublisherTest {
+
+    static class TestSubscriber implements SFQCodelPublisher.Subscriber {
+        final List<Packet> packets = new ArrayList<Packet>();
+        SFQCodelPublisher.Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(SFQCodelPublisher.Subscription s) {
+            this.subscription = s;
+        }
+
+        @Override
+        public void onNext(Packet p) {
+            packets.add(p);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Test
+    public void testDemandDrivenDequeue() {
+        SFQCodelPublisher publisher = new SFQCodelPublisher(new SFQCodel());
+        TestSubscriber subscriber = new TestSubscriber();
+        publisher.subscribe(subscriber);
+        Assert.assertNotNull(subscriber.subscription);
+
+        //no demand, packets stay queued
+        for (int i = 0; i < 10; i++) {
+            publisher.enqueue(new Packet(100));
+        }
+        Assert.assertEquals(0, subscriber.packets.size());
+
+        //request drives dequeue
+        subscriber.subscription.request(4);
+        Assert.assertEquals(4, subscriber.packets.size());
+        Assert.assertEquals(0, publisher.getDemand());
+        subscriber.subscription.request(100);
+        Assert.assertEquals(10, subscriber.packets.size());
+        Assert.assertEquals(94, publisher.getDemand());
+
+        //enqueue with outstanding demand delivers immediately
+        publisher.enqueue(new Packet(100));
+        Assert.assertEquals(11, subscriber.packets.size());
+        Assert.assertEquals(93, publisher.getDemand());
+
+        publisher.complete();
+        Assert.assertTrue(subscriber.completed);
+        Assert.assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testCompleteAfterDrain() {
+        SFQCodelPublisher publisher = new SFQCodelPublisher(new SFQCodel());
+        TestSubscriber subscriber = new TestSubscriber();
+        publisher.subscribe(subscriber);
+        publisher.enqueue(new Packet(100));
+        publisher.enqueue(new Packet(100));
+        publisher.complete();
+        Assert.assertFalse(subscriber.completed);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        Assert.assertEquals(2, subscriber.packets.size());
+        Assert.assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void testCompleteWithPacedPackets() throws Exception {
+        SFQCodel codel = new SFQCodel();
+        codel.setPacing(100);
+        SFQCodelPublisher publisher = new SFQCodelPublisher(codel);
+        TestSubscriber subscriber = new TestSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        Packet p = new Packet(100);
+        p.departureTime = System.nanoTime() / 1000 + 20000;
+        publisher.enqueue(p);
+        publisher.complete();
+        //held by the pacer, the queue is not drained yet
+        Assert.assertEquals(0, subscriber.packets.size());
+        Assert.assertFalse(subscriber.completed);
+        Thread.sleep(30);
+        publisher.poll();
+        Assert.assertEquals(1, subscriber.packets.size());
+        Assert.assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void testCancel() {
+        SFQCodelPublisher publisher = new SFQCodelPublisher(new SFQCodel());
+        TestSubscriber subscriber = new TestSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(10);
+        subscriber.subscription.cancel();
+        publisher.enqueue(new Packet(100));
+        Assert.assertEquals(0, subscriber.packets.size());
+    }
+
+    @Test
+    public void testInvalidRequest() {
+        SFQCodelPublisher publisher = new SFQCodelPublisher(new SFQCodel());
+        TestSubscriber subscriber = new TestSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        Assert.assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testSingleSubscriber() {
+        SFQCodelPublisher publisher = new SFQCodelPublisher(new SFQCodel());
+        TestSubscriber first = new TestSubscriber();
+        TestSubscriber second = new TestSubscriber();
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        Assert.assertNull(first.error);
+        Assert.assertTrue(second.error instanceof IllegalStateException);
+    }
+}
@@ -192,6 +192,695 @@ public class SFQCodelTest {
         testReset(codel);
     }
 
+    @Test
+    public void testPurgeFlowSFQCodel() {
+        SFQCodel codel=new SFQCodel();
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        for (int i=0;i<100;i++) {
+            codel.enqueue(new Packet(10));
+            codel.enqueue(new Packet(20));
+        }
+        Assert.assertEquals(200,codel.size());
+        Assert.assertEquals(3000,codel.backlog());
+        Assert.assertEquals(2,codel.getFlowSize());
+
+        //purge flow 10, only flow 20 must be left
+        Assert.assertEquals(100,codel.purgeFlow(10));
+        Assert.assertEquals(100,codel.size());
+        Assert.assertEquals(2000,codel.backlog());
+        Assert.assertEquals(0,codel.purgeFlow(10));
+        Packet p=codel.dequeue();
+        Assert.assertNotNull(p);
+        Assert.assertEquals(20,p.size);
+
+        //purged flow must be usable again
+        codel.enqueue(new Packet(10));
+        Assert.assertEquals(100,codel.size());
+        Assert.assertEquals(2,codel.getFlowSize());
+        int count=0;
+        while((p=codel.dequeue()) != null) {
+            count++;
+        }
+        Assert.assertEquals(100,count);
+        Assert.assertEquals(0,codel.size());
+        Assert.assertEquals(true,codel.isEmpty());
+        testReset(codel);
+    }
+
+    @Test
+    public void testCheckpointRestoreSFQCodel() throws Exception {
+        Classify classify=new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        };
+        SFQCodel codel=new SFQCodel();
+        codel.setClassifier(classify);
+        for (int i=0;i<10;i++) {
+            codel.enqueue(new Packet(10));
+            codel.enqueue(new Packet(20));
+        }
+        codel.enqueue(new Packet(30));
+        //move flow 10 to old flows
+        for (int i=0;i<4;i++) {
+            Assert.assertNotNull(codel.dequeue());
+        }
+        java.io.File file=java.io.File.createTempFile("codel",".snapshot");
+        file.deleteOnExit();
+        codel.checkpoint(file,true);
+
+        SFQCodel restored=new SFQCodel();
+        restored.setClassifier(classify);
+        //restored 1 sec after the checkpoint, queue times move with the downtime
+        final long now=System.currentTimeMillis()+1000;
+        Assert.assertEquals(codel.size(),restored.restore(file,now));
+        Assert.assertEquals(codel.size(),restored.size());
+        Assert.assertEquals(codel.backlog(),restored.backlog());
+        Assert.assertEquals(codel.getFlowSize(),restored.getFlowSize());
+        Assert.assertEquals(codel.getNewFlowSize(),restored.getNewFlowSize());
+        //both queues must dequeue the same packets in the same order
+        Packet p;
+        long downtime=-1;
+        while((p=codel.dequeue()) != null) {
+            Packet r=restored.dequeue(now);
+            Assert.assertNotNull(r);
+            Assert.assertEquals(p.size,r.size);
+            if (downtime < 0) {
+                downtime=r.queueTime-p.queueTime;
+                Assert.assertTrue(downtime >= 1000);
+            }
+            Assert.assertEquals(p.queueTime+downtime,r.queueTime);
+        }
+        Assert.assertNull(restored.dequeue());
+        testReset(restored);
+
+        //corrupt snapshots are rejected before the queue is changed
+        codel.enqueue(new Packet(10));
+        codel.checkpoint(file,true);
+        java.io.RandomAccessFile raf=new java.io.RandomAccessFile(file,"rw");
+        try {
+            //flow index of the only packet
+            raf.seek(raf.length()-16);
+            raf.writeInt(-1);
+            Assert.assertNotNull(restoreFails(file));
+            raf.setLength(raf.length()-1);
+            Assert.assertNotNull(restoreFails(file));
+        } finally {
+            raf.close();
+        }
+        Assert.assertEquals(10,codel.dequeue().size);
+
+        //state only
+        codel.checkpoint(file,false);
+        Assert.assertEquals(0,new SFQCodel().restore(file));
+
+        //failed checkpoint keeps the last good snapshot
+        codel.enqueue(new Packet(10));
+        codel.checkpoint(file,true);
+        final long length=file.length();
+        java.io.File tmp=new java.io.File(file.getPath()+".tmp");
+        Assert.assertFalse(tmp.exists());
+        Assert.assertTrue(tmp.mkdir());
+        try {
+            codel.checkpoint(file,false);
+            Assert.fail("snapshot written through a directory");
+        } catch (java.io.IOException expected) {
+            //temp file can not be created
+        } finally {
+            Assert.assertTrue(tmp.delete());
+        }
+        Assert.assertEquals(length,file.length());
+        final SFQCodel single=new SFQCodel();
+        Assert.assertEquals(1,single.restore(file));
+        //only the flows with state or packets are allocated
+        Assert.assertTrue(single.getFlowsAllocated() <= codel.getFlowsAllocated());
+        Assert.assertTrue(single.getFlowsAllocated() < 1024);
+    }
+
+    /**
+     * dequeue packets while both flows stay backlogged
+     * @return bytes dequeued per packet size
+     */
+    private long[] weightedShares(SFQCodel codel, int packets) {
+        for (int i=0;i<2000;i++) {
+            codel.enqueue(new Packet(1000));
+            codel.enqueue(new Packet(1001));
+        }
+        long[] bytes=new long[2];
+        for (int i=0;i<packets;i++) {
+            Packet p=codel.dequeue();
+            Assert.assertNotNull(p);
+            bytes[p.size-1000]+=p.size;
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testWeightedClassifySFQCodel() {
+        SFQCodel codel=new SFQCodel();
+        codel.setClassifier(new WeightedClassify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+
+            @Override
+            public int weightPacket(Packet p) {
+                return p.size == 1001 ? 4 : 1;
+            }
+        });
+        long[] bytes=weightedShares(codel,2000);
+        Assert.assertEquals(1,codel.getFlowWeight(1000 % 1024));
+        Assert.assertEquals(4,codel.getFlowWeight(1001 % 1024));
+        //premium flow must get 4x the share, within 2%
+        Assert.assertEquals(4.0,(double)bytes[1]/bytes[0],0.08);
+        testReset(codel);
+    }
+
+    @Test
+    public void testFlowWeightSFQCodel() {
+        SFQCodel codel=new SFQCodel();
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        codel.setFlowWeight(1000 % 1024,3);
+        long[] bytes=weightedShares(codel,2000);
+        Assert.assertEquals(3.0,(double)bytes[0]/bytes[1],0.06);
+        testReset(codel);
+
+        //equal weights give equal share
+        codel.setFlowWeight(1000 % 1024,1);
+        bytes=weightedShares(codel,2000);
+        Assert.assertEquals(1.0,(double)bytes[0]/bytes[1],0.02);
+        testReset(codel);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFlowWeightSFQCodel() {
+        new SFQCodel().setFlowWeight(0,0);
+    }
+
+    static class AckPacket extends Packet {
+        final int connection;
+        final long ack;
+
+        AckPacket(int connection, long ack) {
+            super(40);
+            this.connection=connection;
+            this.ack=ack;
+        }
+    }
+
+    @Test
+    public void testAckFilterSFQCodel() {
+        SFQCodel codel=new SFQCodel();
+        //all packets in one flow
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return 1;
+            }
+        });
+        codel.setAckFilter(new AckFilter() {
+            @Override
+            public boolean isPureAck(Packet p) {
+                return p instanceof AckPacket;
+            }
+
+            @Override
+            public boolean isRedundant(Packet queued, Packet newer) {
+                AckPacket q=(AckPacket)queued;
+                AckPacket n=(AckPacket)newer;
+                return q.connection == n.connection && n.ack >= q.ack;
+            }
+        });
+        codel.enqueue(new Packet(1000));
+        AckPacket ack1=new AckPacket(1,100);
+        codel.enqueue(ack1);
+        codel.enqueue(new AckPacket(1,200));
+        AckPacket ack3=new AckPacket(1,300);
+        codel.enqueue(ack3);
+        //older acks are replaced in place
+        Assert.assertEquals(2,codel.size());
+        Assert.assertEquals(1040,codel.backlog());
+        Assert.assertEquals(ack1.queueTime,ack3.queueTime);
+
+        //ack of other connection is not redundant
+        codel.enqueue(new AckPacket(2,50));
+        Assert.assertEquals(3,codel.size());
+        Assert.assertEquals(1000,codel.dequeue().size);
+        Assert.assertSame(ack3,codel.dequeue());
+        AckPacket p=(AckPacket)codel.dequeue();
+        Assert.assertEquals(2,p.connection);
+        Assert.assertTrue(codel.isEmpty());
+
+        //replace ack at head of queue, ack in front was dequeued
+        codel.enqueue(new Packet(1000));
+        codel.enqueue(new AckPacket(1,400));
+        Assert.assertEquals(1000,codel.dequeue().size);
+        codel.enqueue(new AckPacket(1,500));
+        Assert.assertEquals(1,codel.size());
+        Assert.assertEquals(40,codel.backlog());
+        Assert.assertEquals(500,((AckPacket)codel.dequeue()).ack);
+
+        //dequeued ack is not replaced anymore
+        codel.enqueue(new AckPacket(1,600));
+        Assert.assertEquals(1,codel.size());
+        testReset(codel);
+    }
+
+    @Test
+    public void testQueueListener() {
+        SFQCodel codel=new SFQCodel(4,1024,1500,100,10);
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        final int[] events=new int[4];
+        codel.setListener(new QueueListener.Adapter() {
+            @Override
+            public void overflowDrop(int flow, int size, int backlog) {
+                events[0]++;
+                Assert.assertEquals(100,size);
+                Assert.assertEquals(200,backlog);
+            }
+            @Override
+            public void newToOld(int flow, int size) {
+                events[1]++;
+            }
+            @Override
+            public void backlog(int packets, int bytes, int flows, int newFlows) {
+                events[2]++;
+                Assert.assertEquals(2,packets);
+                Assert.assertEquals(200,bytes);
+                Assert.assertEquals(2,flows);
+            }
+        },60000);
+        codel.enqueue(new Packet(10));
+        for (int i=0;i<3;i++) {
+            codel.enqueue(new Packet(100));
+        }
+        //queue full, packet of fattest flow dropped
+        Assert.assertEquals(1,events[0]);
+        Assert.assertEquals(3,codel.size());
+
+        //first dequeue samples backlog, next sample is after period
+        Assert.assertEquals(10,codel.dequeue().size);
+        Assert.assertEquals(1,events[2]);
+        Assert.assertEquals(100,codel.dequeue().size);
+        Assert.assertEquals(1,events[2]);
+        Assert.assertTrue(events[1] > 0);
+
+        //disabled listener is not called
+        codel.setListener(null,0);
+        codel.enqueue(new Packet(100));
+        codel.enqueue(new Packet(100));
+        Assert.assertEquals(1,events[0]);
+        testReset(codel);
+    }
+
+    @Test
+    public void testDropEpisodePurged() throws Exception {
+        SFQCodel codel=new SFQCodel();
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        final int[] episodes=new int[2];
+        codel.setListener(new QueueListener.Adapter() {
+            @Override
+            public void dropEpisode(int flow, int count, long sojourn, int drops, long duration) {
+                episodes[0]++;
+                episodes[1]=drops;
+                Assert.assertEquals(100,flow);
+                Assert.assertTrue(sojourn >= 120);
+                Assert.assertTrue(duration >= 0);
+            }
+        },60000);
+        for (int round=1;round<=2;round++) {
+            for (int i=0;i<50;i++) {
+                codel.enqueue(new Packet(100));
+            }
+            //sojourn time above target for more then interval, codel enters dropping state
+            Thread.sleep(120);
+            Assert.assertNotNull(codel.dequeue());
+            Thread.sleep(120);
+            Assert.assertNotNull(codel.dequeue());
+            Assert.assertEquals(round-1,episodes[0]);
+            //open episode is reported with the purged packets, not lost on the codel state reset
+            if (round == 1) {
+                Assert.assertEquals(47,codel.purgeFlow(100));
+            } else {
+                codel.reset();
+            }
+            Assert.assertEquals(round,episodes[0]);
+            Assert.assertEquals(48,episodes[1]);
+            Assert.assertEquals(0,codel.size());
+        }
+    }
+
+    @Test
+    public void testPacing() {
+        SFQCodel codel=new SFQCodel();
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        codel.setPacing(64);
+        Assert.assertEquals(Long.MAX_VALUE,codel.nextWakeup());
+        //1000 bytes/sec : 100 byte packets leave 100 msec apart
+        codel.setFlowMaxRate(100,1000);
+        Assert.assertEquals(1000,codel.getFlowMaxRate(100));
+        codel.enqueue(new Packet(100));
+        codel.enqueue(new Packet(100));
+        codel.enqueue(new Packet(10));
+        Assert.assertEquals(100,codel.dequeue().size);
+        long now=System.nanoTime()/1000;
+        //paced flow is held, other flows are not
+        Assert.assertEquals(10,codel.dequeue().size);
+        Assert.assertNull(codel.dequeue());
+        Assert.assertEquals(1,codel.size());
+        Assert.assertTrue(codel.nextWakeup() > now+50000);
+        Assert.assertTrue(codel.nextWakeup() <= now+100000);
+        //new packet of a held flow does not make it eligible
+        codel.enqueue(new Packet(100));
+        Assert.assertNull(codel.dequeue());
+
+        //earliest departure time
+        Packet edt=new Packet(20);
+        edt.departureTime=now+1000000L;
+        codel.enqueue(edt);
+        Assert.assertNull(codel.dequeue());
+        Assert.assertTrue(codel.nextWakeup() <= now+100000);
+
+        //disable pacing releases held flows
+        codel.setPacing(0);
+        Assert.assertEquals(Long.MAX_VALUE,codel.nextWakeup());
+        Assert.assertEquals(3,codel.dequeue(new Packet[4],0,4));
+        testReset(codel);
+    }
+
+    @Test
+    public void testOfferAdmission() {
+        SFQCodel codel=new SFQCodel(16,1024,1500,100,10);
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        AdmissionResult result=new AdmissionResult();
+        Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(100),result));
+        Assert.assertFalse(result.isCongested());
+        Assert.assertEquals(100,result.flow);
+        Assert.assertEquals(100,result.backlog);
+        Assert.assertEquals(1,result.packets);
+        Assert.assertEquals(CodelPacketQueue.CONGESTION_NONE,codel.getCongestion(100));
+
+        //sojourn above target is signaled on dequeue
+        Packet p=new Packet(100);
+        codel.offer(p,null);
+        codel.dequeue();
+        p.queueTime=p.queueTime-50;
+        Assert.assertSame(p,codel.dequeue());
+        Assert.assertEquals(CodelPacketQueue.CONGESTION_TARGET,codel.getCongestion(100));
+        Assert.assertEquals(AdmissionResult.ACCEPTED_CONGESTED,codel.offer(new Packet(100),result));
+        Assert.assertTrue(result.sojourn >= 50);
+        //other flows are not congested
+        Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(200),result));
+        Assert.assertEquals(CodelPacketQueue.CONGESTION_NONE,codel.getCongestion(200));
+        //empty flow clears the signal
+        while (codel.dequeue() != null) {
+            //drain
+        }
+        Assert.assertEquals(CodelPacketQueue.CONGESTION_NONE,codel.getCongestion(100));
+
+        //queue near its limit
+        for (int i=0;i<13;i++) {
+            Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(100),result));
+        }
+        Assert.assertEquals(AdmissionResult.ACCEPTED_CONGESTED,codel.offer(new Packet(200),result));
+        Assert.assertEquals(AdmissionResult.ACCEPTED_CONGESTED,codel.offer(new Packet(300),result));
+        //full queue drops from the fattest flow
+        Assert.assertEquals(AdmissionResult.ACCEPTED_CONGESTED,codel.offer(new Packet(400),result));
+        Assert.assertEquals(15,codel.size());
+        Assert.assertEquals(CodelPacketQueue.CONGESTION_DROPPING,codel.getCongestion(100));
+        Assert.assertEquals(AdmissionResult.DROPPED_OVERFLOW,codel.offer(new Packet(100),result));
+        Assert.assertEquals(12,result.packets);
+        testReset(codel);
+        Assert.assertEquals(CodelPacketQueue.CONGESTION_NONE,codel.getCongestion(100));
+    }
+
+    @Test
+    public void testStatsSnapshot() {
+        SFQCodel codel=new SFQCodel(16,1024,1500,100,10);
+        codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        });
+        QueueStats stats=new QueueStats(QueueStats.SCHEDULER_COUNTERS);
+        codel.setStats(stats);
+        Assert.assertSame(stats,codel.getStats());
+        long[] snapshot=new long[QueueStats.SCHEDULER_COUNTERS];
+        stats.read(snapshot);
+        Assert.assertEquals(0,snapshot[QueueStats.SIZE]);
+
+        codel.enqueue(new Packet(100));
+        codel.enqueue(new Packet(100));
+        codel.enqueue(new Packet(200));
+        stats.read(snapshot);
+        Assert.assertEquals(3,snapshot[QueueStats.SIZE]);
+        Assert.assertEquals(400,snapshot[QueueStats.BACKLOG]);
+        Assert.assertEquals(2,snapshot[QueueStats.FLOWS]);
+        Assert.assertEquals(2,snapshot[QueueStats.NEW_FLOWS]);
+
+        Assert.assertNotNull(codel.dequeue());
+        stats.read(snapshot);
+        Assert.assertEquals(2,snapshot[QueueStats.SIZE]);
+        Assert.assertEquals(codel.backlog(),snapshot[QueueStats.BACKLOG]);
+
+        codel.purgeFlow(200);
+        stats.read(snapshot);
+        Assert.assertEquals(codel.size(),snapshot[QueueStats.SIZE]);
+        Assert.assertEquals(codel.backlog(),snapshot[QueueStats.BACKLOG]);
+
+        testReset(codel);
+        stats.read(snapshot);
+        Assert.assertEquals(0,snapshot[QueueStats.SIZE]);
+        Assert.assertEquals(0,snapshot[QueueStats.BACKLOG]);
+        Assert.assertEquals(0,snapshot[QueueStats.FLOWS]);
+    }
+
+    @Test
+    public void testRingFlows() throws Exception {
+        Classify classify=new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        };
+        SFQCodel codel=new SFQCodel(16,1024,1500,100,10);
+        codel.setClassifier(classify);
+        codel.setRingSize(3);
+        Assert.assertEquals(3,codel.getRingSize());
+        try {
+            codel.setMultiConsumer(true);
+            Assert.fail("ring flows need a single consumer");
+        } catch (IllegalStateException ignore) {
+        }
+        //ring holds 4 packets, 5th packet of the flow is dropped at the tail
+        AdmissionResult result=new AdmissionResult();
+        Packet first=new Packet(100);
+        Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(first,result));
+        for (int i=0;i<3;i++) {
+            Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(100),result));
+        }
+        Assert.assertEquals(AdmissionResult.DROPPED_OVERFLOW,codel.offer(new Packet(100),result));
+        Assert.assertEquals(4,result.packets);
+        Assert.assertEquals(CodelPacketQueue.CONGESTION_DROPPING,codel.getCongestion(100));
+        codel.enqueue(new Packet(200));
+        codel.enqueue(new Packet(200));
+        Assert.assertEquals(6,codel.size());
+        Assert.assertEquals(800,codel.backlog());
+        Assert.assertEquals(4,codel.getFlowQueueSize(100));
+        try {
+            codel.setRingSize(0);
+            Assert.fail("queue in use");
+        } catch (IllegalStateException ignore) {
+        }
+
+        Assert.assertSame(first,codel.dequeue());
+        java.io.File file=java.io.File.createTempFile("codel",".snapshot");
+        file.deleteOnExit();
+        codel.checkpoint(file,true);
+        //restore in a linked queue, same packets in the same order
+        SFQCodel restored=new SFQCodel();
+        restored.setClassifier(classify);
+        final long now=System.currentTimeMillis();
+        Assert.assertEquals(5,restored.restore(file,now));
+        Packet p;
+        long downtime=-1;
+        while((p=codel.dequeue()) != null) {
+            Packet r=restored.dequeue(now);
+            Assert.assertNotNull(r);
+            Assert.assertEquals(p.size,r.size);
+            if (downtime < 0) {
+                downtime=r.queueTime-p.queueTime;
+            }
+            Assert.assertEquals(p.queueTime+downtime,r.queueTime);
+        }
+        Assert.assertNull(restored.dequeue());
+        Assert.assertEquals(0,codel.size());
+        Assert.assertEquals(0,codel.backlog());
+
+        codel.enqueue(new Packet(100));
+        codel.enqueue(new Packet(100));
+        Assert.assertEquals(2,codel.purgeFlow(100));
+        Assert.assertEquals(0,codel.backlog());
+        codel.enqueue(new Packet(200));
+        testReset(codel);
+
+        //queue limit reached : the offered packet is dropped, queued packets stay
+        SFQCodel small=new SFQCodel(2,1024,1500,100,10);
+        small.setClassifier(classify);
+        small.setRingSize(8);
+        small.enqueue(new Packet(100));
+        small.enqueue(new Packet(200));
+        Assert.assertEquals(AdmissionResult.DROPPED_OVERFLOW,small.offer(new Packet(300),result));
+        Assert.assertEquals(300,result.flow);
+        Assert.assertEquals(2,small.size());
+        Assert.assertEquals(300,small.backlog());
+        try {
+            small.drop();
+            Assert.fail("producer can not drop from a ring");
+        } catch (IllegalStateException ignore) {
+        }
+        try {
+            small.setStallWatchdog(100,SFQCodel.STALL_HEAD_DROP);
+            Assert.fail("producer can not head drop from a ring");
+        } catch (IllegalStateException ignore) {
+        }
+        small.setStallWatchdog(100,SFQCodel.STALL_REJECT);
+        SFQCodel stall=new SFQCodel();
+        stall.setStallWatchdog(100,SFQCodel.STALL_HEAD_DROP);
+        try {
+            stall.setRingSize(8);
+            Assert.fail("producer can not head drop from a ring");
+        } catch (IllegalStateException ignore) {
+        }
+    }
+
+    @Test
+    public void testStallWatchdog() {
+        final long[] stall=new long[4];
+        QueueListener listener=new QueueListener.Adapter() {
+            @Override
+            public void stall(long duration, int drops, int packets) {
+                stall[0]++;
+                stall[1]=duration;
+                stall[2]=drops;
+                stall[3]=packets;
+            }
+        };
+        Classify classify=new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return p.size;
+            }
+        };
+        SFQCodel codel=new SFQCodel(16,1024,1500,100,10);
+        codel.setClassifier(classify);
+        codel.setListener(listener,1000);
+        codel.setStallWatchdog(100,SFQCodel.STALL_REJECT);
+        AdmissionResult result=new AdmissionResult();
+        Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(100),0,result));
+        Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(100),50,result));
+        Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(200),99,result));
+        Assert.assertFalse(codel.isStalled());
+        //no dequeue for 100 msec, offered packets are rejected
+        Assert.assertEquals(AdmissionResult.DROPPED_STALL,codel.offer(new Packet(100),100,result));
+        Assert.assertTrue(result.isCongested());
+        Assert.assertTrue(codel.isStalled());
+        Assert.assertEquals(AdmissionResult.DROPPED_STALL,codel.offer(new Packet(300),150,result));
+        Assert.assertEquals(3,codel.size());
+        Assert.assertEquals(1,codel.getStallCount());
+        Assert.assertEquals(0,stall[0]);
+        //consumer resumes
+        codel.dequeue(200);
+        Assert.assertFalse(codel.isStalled());
+        Assert.assertEquals(1,stall[0]);
+        Assert.assertEquals(200,stall[1]);
+        Assert.assertEquals(2,stall[2]);
+        Assert.assertEquals(3,stall[3]);
+        Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(300),210,result));
+        testReset(codel);
+
+        //head drop : queue keeps the newest packets of each flow
+        codel=new SFQCodel(4,1024,1500,100,10);
+        codel.setClassifier(classify);
+        codel.setListener(listener,1000);
+        codel.setStallWatchdog(100,SFQCodel.STALL_HEAD_DROP);
+        Packet a=new Packet(100);
+        Packet b=new Packet(100);
+        Packet d=new Packet(100);
+        codel.enqueue(a,0);
+        codel.enqueue(b,1);
+        Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(200),100,result));
+        Assert.assertTrue(codel.isStalled());
+        //queue full, oldest packet of the flow is dropped and the flow is signaled as congested
+        Assert.assertEquals(AdmissionResult.ACCEPTED_CONGESTED,codel.offer(d,101,result));
+        Assert.assertEquals(3,codel.size());
+        Assert.assertEquals(2,codel.getFlowQueueSize(100));
+        //flow has no packet to drop, offered packet is dropped
+        Assert.assertEquals(AdmissionResult.DROPPED_STALL,codel.offer(new Packet(300),102,result));
+        Assert.assertEquals(3,codel.size());
+        Assert.assertSame(b,codel.dequeue(150));
+        Assert.assertEquals(2,stall[0]);
+        Assert.assertEquals(150,stall[1]);
+        Assert.assertEquals(2,stall[2]);
+        Assert.assertEquals(3,stall[3]);
+
+        //queue drained by reset, empty queue is never stalled
+        codel.reset();
+        Assert.assertEquals(AdmissionResult.ACCEPTED,codel.offer(new Packet(100),1000,result));
+        Assert.assertFalse(codel.isStalled());
+        try {
+            codel.setStallWatchdog(100,0);
+            Assert.fail("invalid mode");
+        } catch (IllegalArgumentException ignore) {
+        }
+        testReset(codel);
+    }
+
+    private java.io.IOException restoreFails(java.io.File file) {
+        SFQCodel codel=new SFQCodel();
+        try {
+            codel.restore(file);
+            return null;
+        } catch (java.io.IOException e) {
+            Assert.assertTrue(codel.isEmpty());
+            Assert.assertEquals(0,codel.getFlowSize());
+            return e;
+        }
+    }
+
     private void testReset(SFQCodel codel) {
         codel.reset();
         Assert.assertEquals(0,codel.size());
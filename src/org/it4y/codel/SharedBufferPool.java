@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packet and byte budget shared by several queues, with switch style dynamic threshold admission
+ * (Choudhury/Hahne) : a queue may grow as long its length is below alpha times the free space of the pool,
+ * so the share each queue gets shrinks as the pool fills up.
+ *
+ * alpha is expressed in 1/8 units, 8 means alpha=1.
+ *
+ * The pool is thread safe : reserve() checks the threshold and accounts the packet in one atomic step,
+ * so queues serviced by different threads can not overrun the budget together.
+ */
+public class SharedBufferPool {
+    private final int maxPackets;
+    private final long maxBytes;
+    private final int alpha;
+    private final AtomicInteger packets = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param maxPackets packet budget of the pool
+     * @param maxBytes byte budget of the pool
+     * @param alpha dynamic threshold factor in 1/8 units
+     */
+    public SharedBufferPool(final int maxPackets, final long maxBytes, final int alpha) {
+        this.maxPackets = maxPackets;
+        this.maxBytes = maxBytes;
+        this.alpha = alpha;
+    }
+
+    /**
+     * @return packet threshold a single queue may not exceed now
+     */
+    public int packetThreshold() {
+        return (int) (((long) (this.maxPackets - this.packets.get()) * this.alpha) >> 3);
+    }
+
+    /**
+     * @return byte threshold a single queue may not exceed now
+     */
+    public long byteThreshold() {
+        return ((this.maxBytes - this.bytes.get()) * this.alpha) >> 3;
+    }
+
+    /**
+     * check dynamic threshold for a queue with given length. Check only, the packet is not accounted :
+     * use reserve() when other threads share the pool
+     * @param queuePackets packets queued in the queue
+     * @param queueBytes bytes queued in the queue
+     * @param size size of the new packet
+     * @return true if packet is admitted
+     */
+    public boolean admit(final int queuePackets, final long queueBytes, final int size) {
+        if (this.packets.get() >= this.maxPackets || this.bytes.get() + size > this.maxBytes) {
+            return false;
+        }
+        return queuePackets < this.packetThreshold() && queueBytes + size <= this.byteThreshold();
+    }
+
+    /**
+     * check dynamic threshold for a queue with given length and account the packet if admitted.
+     * The packet is reserved first and the bytes next, a packet reserved for a rejected byte check is
+     * given back : concurrent callers may see a fuller pool for a moment but never an overrun.
+     * @param queuePackets packets queued in the queue
+     * @param queueBytes bytes queued in the queue
+     * @param size size of the new packet
+     * @return true if packet is admitted and accounted in the pool
+     */
+    public boolean reserve(final int queuePackets, final long queueBytes, final int size) {
+        int n;
+        do {
+            n= this.packets.get();
+            if (n >= this.maxPackets || queuePackets >= (int) (((long) (this.maxPackets - n) * this.alpha) >> 3)) {
+                return false;
+            }
+        } while (!this.packets.compareAndSet(n, n + 1));
+        long b;
+        do {
+            b= this.bytes.get();
+            if (b + size > this.maxBytes || queueBytes + size > (((this.maxBytes - b) * this.alpha) >> 3)) {
+                this.packets.decrementAndGet();
+                return false;
+            }
+        } while (!this.bytes.compareAndSet(b, b + size));
+        return true;
+    }
+
+    /**
+     * account packets/bytes added (positive) or removed (negative) from the pool
+     */
+    public void add(final int packets, final long bytes) {
+        if (packets != 0) {
+            this.packets.addAndGet(packets);
+        }
+        if (bytes != 0) {
+            this.bytes.addAndGet(bytes);
+        }
+    }
+
+    public int getPackets() {
+        return this.packets.get();
+    }
+
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    public int getMaxPackets() {
+        return this.maxPackets;
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+}
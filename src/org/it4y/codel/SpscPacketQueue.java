@@ -0,0 +1,328 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single producer / single consumer packet queue on an array ring, same API as PacketQueue.
+ * No lock is taken and Packet.next() is not touched : the producer stores the packet in its slot and publishes
+ * the tail index with an ordered store (lazySet), the consumer does the same with the head index.
+ * Each index lives on its own cache line together with the state only its owner writes, the producer
+ * caches the last head it has seen so it only reads the consumer line when the ring looks full.
+ *
+ * add/offer/last are producer methods, remove/first/get/drainTo/detach/Take are consumer methods.
+ * size, getBacklog and the counters may be read from any thread.
+ */
+public class SpscPacketQueue {
+    //a consumer parked in Take() racing with the producer is woken up after this time at the latest
+    private static final long PARK_NANOS=TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * ring index owned by one side, padded to its own cache line
+     */
+    static final class Sequence extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        private static final AtomicLongFieldUpdater<Sequence> BYTES=AtomicLongFieldUpdater.newUpdater(Sequence.class,"bytes");
+        //bytes passed through this index
+        volatile long bytes;
+        //last seen index of the other side, only used by the owner
+        long cache;
+        //padding, never used
+        long p1, p2, p3, p4, p5;
+
+        void publish(final long index, final long bytes) {
+            BYTES.lazySet(this,bytes);
+            this.lazySet(index);
+        }
+    }
+
+    private final Sequence head=new Sequence();
+    private final Sequence tail=new Sequence();
+    private final Packet[] ring;
+    private final int mask;
+    private volatile Thread waiter;
+    private long waited;
+
+    /**
+     * @param capacity maximum number of packets, rounded up to a power of 2
+     */
+    public SpscPacketQueue(final int capacity) {
+        if (capacity < 1 || capacity > (1<<30)) {
+            throw new IllegalArgumentException("invalid capacity : "+capacity);
+        }
+        final int size=Integer.highestOneBit(capacity-1)<<1;
+        this.ring=new Packet[Math.max(1,size)];
+        this.mask= this.ring.length-1;
+    }
+
+    /**
+     * producer : queue packet
+     * @return false if the ring is full
+     */
+    public boolean offer(final Packet p) {
+        final Sequence t= this.tail;
+        final long index=t.get();
+        if (index-t.cache >= this.ring.length) {
+            t.cache= this.head.get();
+            if (index-t.cache >= this.ring.length) {
+                return false;
+            }
+        }
+        this.ring[(int) index & this.mask]=p;
+        t.publish(index+1,t.bytes+p.size);
+        if (this.waiter != null) {
+            LockSupport.unpark(this.waiter);
+        }
+        return true;
+    }
+
+    /**
+     * producer : queue a batch of packets, the tail is published once for the batch
+     * @return number of packets queued, less than count when the ring is full
+     */
+    public int offer(final Packet[] packets, final int offset, final int count) {
+        final Sequence t= this.tail;
+        final long index=t.get();
+        long free= this.ring.length-(index-t.cache);
+        if (free < count) {
+            t.cache= this.head.get();
+            free= this.ring.length-(index-t.cache);
+        }
+        final int n=(int) Math.min(free,count);
+        long bytes=t.bytes;
+        for (int i=0;i<n;i++) {
+            final Packet p=packets[offset+i];
+            this.ring[(int) (index+i) & this.mask]=p;
+            bytes=bytes+p.size;
+        }
+        if (n > 0) {
+            t.publish(index+n,bytes);
+            if (this.waiter != null) {
+                LockSupport.unpark(this.waiter);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * producer : queue packet
+     * @throws IllegalStateException if the ring is full
+     */
+    public void add(final Packet p) {
+        if (!this.offer(p)) {
+            throw new IllegalStateException("queue full");
+        }
+    }
+
+    /**
+     * consumer : remove packet at the head
+     * @return packet or null if empty
+     */
+    public Packet remove() {
+        final Sequence h= this.head;
+        final long index=h.get();
+        if (index >= h.cache) {
+            h.cache= this.tail.get();
+            if (index >= h.cache) {
+                return null;
+            }
+        }
+        final int slot=(int) index & this.mask;
+        final Packet p= this.ring[slot];
+        this.ring[slot]=null;
+        h.publish(index+1,h.bytes+p.size);
+        return p;
+    }
+
+    /**
+     * consumer : remove up to max packets, the head is published once for the batch
+     * @return number of packets stored in packets starting at offset
+     */
+    public int drainTo(final Packet[] packets, final int offset, final int max) {
+        final Sequence h= this.head;
+        final long index=h.get();
+        if (index+max > h.cache) {
+            h.cache= this.tail.get();
+        }
+        final int n=(int) Math.min(h.cache-index,max);
+        long bytes=h.bytes;
+        for (int i=0;i<n;i++) {
+            final int slot=(int) (index+i) & this.mask;
+            final Packet p= this.ring[slot];
+            this.ring[slot]=null;
+            packets[offset+i]=p;
+            bytes=bytes+p.size;
+        }
+        if (n > 0) {
+            h.publish(index+n,bytes);
+        }
+        return n;
+    }
+
+    /**
+     * consumer : remove all queued packets as a chain linked with next(), like LinkedQueue.detach()
+     * @return first packet of the chain or null if empty
+     */
+    public Packet detach() {
+        final Sequence h= this.head;
+        final long index=h.get();
+        h.cache= this.tail.get();
+        final int n=(int) (h.cache-index);
+        if (n == 0) {
+            return null;
+        }
+        long bytes=h.bytes;
+        Packet first=null;
+        Packet last=null;
+        for (int i=0;i<n;i++) {
+            final int slot=(int) (index+i) & this.mask;
+            final Packet p= this.ring[slot];
+            this.ring[slot]=null;
+            bytes=bytes+p.size;
+            if (last == null) {
+                first=p;
+            } else {
+                last.next(p);
+            }
+            last=p;
+        }
+        last.next(null);
+        h.publish(index+n,bytes);
+        return first;
+    }
+
+    /**
+     * consumer : drop all packets
+     */
+    public void clear() {
+        Packet p= this.detach();
+        while (p != null) {
+            final Packet next=p.next();
+            p.next(null);
+            p=next;
+        }
+    }
+
+    /**
+     * consumer : wait for a packet
+     */
+    public Packet Take() throws InterruptedException {
+        Packet p;
+        while ((p= this.remove()) == null) {
+            this.park(PARK_NANOS);
+        }
+        return p;
+    }
+
+    /**
+     * consumer : wait at most time for a packet
+     * @return packet or null on timeout
+     */
+    public Packet Take(final long time, final TimeUnit unit) throws InterruptedException {
+        Packet p= this.remove();
+        if (p != null) {
+            return p;
+        }
+        final long deadline=System.nanoTime()+unit.toNanos(time);
+        long left;
+        while ((p= this.remove()) == null && (left=deadline-System.nanoTime()) > 0) {
+            this.park(Math.min(left,PARK_NANOS));
+        }
+        return p;
+    }
+
+    private void park(final long nanos) throws InterruptedException {
+        this.waiter=Thread.currentThread();
+        try {
+            if (this.isEmpty()) {
+                this.waited++;
+                LockSupport.parkNanos(this,nanos);
+            }
+        } finally {
+            this.waiter=null;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * consumer : packet at the head, not removed
+     */
+    public Packet first() {
+        return this.get(0);
+    }
+
+    /**
+     * consumer : i-th packet from the head, not removed
+     * @return packet or null if less than i+1 packets are queued
+     */
+    public Packet get(final int i) {
+        final long index= this.head.get();
+        if (i < 0 || index+i >= this.tail.get()) {
+            return null;
+        }
+        return this.ring[(int) (index+i) & this.mask];
+    }
+
+    /**
+     * producer : last queued packet
+     */
+    public Packet last() {
+        final long index= this.tail.get();
+        if (index == this.head.get()) {
+            return null;
+        }
+        return this.ring[(int) (index-1) & this.mask];
+    }
+
+    public boolean isEmpty() {
+        return this.head.get() >= this.tail.get();
+    }
+
+    public int size() {
+        //head first, tail never moves back
+        final long h= this.head.get();
+        return (int) Math.min(this.tail.get()-h, this.ring.length);
+    }
+
+    public int getBacklog() {
+        final long out= this.head.bytes;
+        return (int) (this.tail.bytes-out);
+    }
+
+    public int getCapacity() {
+        return this.ring.length;
+    }
+
+    //performance counters, are always unsigned !!!
+    public long getAdded() {
+        return this.tail.get();
+    }
+
+    public long getRemoved() {
+        return this.head.get();
+    }
+
+    public long getWaited() {
+        return this.waited;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class SpscPacketQueueTest {
+
+    @Test
+    public void testSpscPacketQueue() {
+        SpscPacketQueue queue = new SpscPacketQueue(3);
+        Assert.assertEquals(4, queue.getCapacity());
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.remove());
+        Assert.assertNull(queue.first());
+        Assert.assertNull(queue.last());
+
+        //wrap around the ring a few times
+        for (int round = 0; round < 3; round++) {
+            for (int i = 1; i <= 4; i++) {
+                Assert.assertTrue(queue.offer(new Packet(i * 10)));
+            }
+            Assert.assertFalse(queue.offer(new Packet(50)));
+            Assert.assertEquals(4, queue.size());
+            Assert.assertEquals(100, queue.getBacklog());
+            Assert.assertEquals(10, queue.first().size);
+            Assert.assertEquals(40, queue.last().size);
+            Assert.assertEquals(30, queue.get(2).size);
+            Assert.assertNull(queue.get(4));
+            for (int i = 1; i <= 4; i++) {
+                Assert.assertEquals(i * 10, queue.remove().size);
+            }
+            Assert.assertNull(queue.remove());
+            Assert.assertEquals(0, queue.getBacklog());
+        }
+        Assert.assertEquals(12, queue.getAdded());
+        Assert.assertEquals(12, queue.getRemoved());
+        try {
+            for (int i = 0; i < 5; i++) {
+                queue.add(new Packet(1));
+            }
+            Assert.fail("ring is full");
+        } catch (IllegalStateException ignore) {
+        }
+        queue.clear();
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.getBacklog());
+    }
+
+    @Test
+    public void testRingCodelPacketQueue() {
+        //ring flow keeps the PacketQueue contract : push, addAll, drainTo and stats
+        RingCodelPacketQueue queue = new RingCodelPacketQueue(0, 4);
+        QueueStats stats = new QueueStats(QueueStats.QUEUE_COUNTERS);
+        queue.setStats(stats);
+        Packet a = new Packet(10);
+        Packet b = new Packet(20);
+        a.next(b);
+        queue.addAll(a, b, 2);
+        Assert.assertNull(a.next());
+        queue.add(new Packet(30));
+        Packet pushed = new Packet(5);
+        queue.push(pushed);
+        Assert.assertEquals(4, queue.size());
+        Assert.assertEquals(65, queue.getBacklog());
+        Assert.assertSame(pushed, queue.first());
+        Assert.assertEquals(30, queue.last().size);
+        Assert.assertEquals(20, queue.get(2).size);
+        try {
+            Packet c = new Packet(1);
+            Packet d = new Packet(1);
+            c.next(d);
+            queue.addAll(c, d, 2);
+            Assert.fail("ring holds 4 packets");
+        } catch (IllegalStateException ignore) {
+        }
+        Assert.assertSame(pushed, queue.remove());
+        Assert.assertSame(a, queue.remove());
+        long[] values = new long[QueueStats.QUEUE_COUNTERS];
+        stats.read(values);
+        Assert.assertEquals(2, values[QueueStats.SIZE]);
+        Assert.assertEquals(50, values[QueueStats.BACKLOG]);
+        queue.push(a);
+        PacketQueue target = new PacketQueue();
+        Assert.assertEquals(3, queue.drainTo(target));
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.getBacklog());
+        Assert.assertEquals(3, target.size());
+        Assert.assertEquals(60, target.getBacklog());
+        Assert.assertSame(a, target.remove());
+        Assert.assertSame(b, target.remove());
+        Assert.assertEquals(30, target.remove().size);
+        stats.read(values);
+        Assert.assertEquals(0, values[QueueStats.SIZE]);
+        Assert.assertEquals(5, values[QueueStats.ADDED]);
+        Assert.assertEquals(5, values[QueueStats.REMOVED]);
+    }
+
+    @Test
+    public void testBatch() {
+        SpscPacketQueue queue = new SpscPacketQueue(8);
+        Packet[] in = new Packet[10];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = new Packet(i + 1);
+        }
+        //batch is cut at the free space
+        Assert.assertEquals(6, queue.offer(in, 0, 6));
+        Assert.assertEquals(2, queue.offer(in, 6, 4));
+        Assert.assertEquals(0, queue.offer(in, 8, 2));
+        Assert.assertEquals(36, queue.getBacklog());
+
+        Packet[] out = new Packet[5];
+        Assert.assertEquals(5, queue.drainTo(out, 0, 5));
+        Assert.assertSame(in[0], out[0]);
+        Assert.assertSame(in[4], out[4]);
+        Assert.assertEquals(21, queue.getBacklog());
+        Assert.assertEquals(2, queue.offer(in, 8, 2));
+
+        //detach links the packets like LinkedQueue.detach()
+        Packet p = queue.detach();
+        for (int i = 5; i < 10; i++) {
+            Assert.assertSame(in[i], p);
+            p = p.next();
+        }
+        Assert.assertNull(p);
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.getBacklog());
+        Assert.assertNull(queue.detach());
+        Assert.assertEquals(0, queue.drainTo(out, 0, 5));
+    }
+
+    @Test
+    public void testTake() throws InterruptedException {
+        final SpscPacketQueue queue = new SpscPacketQueue(16);
+        Assert.assertNull(queue.Take(5, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(queue.getWaited() > 0);
+        queue.add(new Packet(10));
+        Assert.assertEquals(10, queue.Take(5, TimeUnit.MILLISECONDS).size);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignore) {
+                }
+                queue.add(new Packet(20));
+            }
+        });
+        producer.start();
+        Assert.assertEquals(20, queue.Take().size);
+        producer.join();
+    }
+
+    @Test
+    public void testProducerConsumer() throws InterruptedException {
+        final SpscPacketQueue queue = new SpscPacketQueue(64);
+        final int count = 200000;
+        final Throwable[] error = new Throwable[1];
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                Packet[] batch = new Packet[8];
+                int i = 0;
+                while (i < count) {
+                    if ((i & 1) == 0) {
+                        if (queue.offer(new Packet(i % 1500))) {
+                            i++;
+                        } else {
+                            Thread.yield();
+                        }
+                    } else {
+                        int n = Math.min(batch.length, count - i);
+                        for (int j = 0; j < n; j++) {
+                            batch[j] = new Packet((i + j) % 1500);
+                        }
+                        n = queue.offer(batch, 0, n);
+                        if (n == 0) {
+                            Thread.yield();
+                        }
+                        i += n;
+                    }
+                }
+            }
+        });
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Packet[] batch = new Packet[8];
+                    int i = 0;
+                    while (i < count) {
+                        //packets arrive in order and complete
+                        if ((i & 1) == 0) {
+                            Assert.assertEquals(i % 1500, queue.Take().size);
+                            i++;
+                        } else {
+                            int n = queue.drainTo(batch, 0, batch.length);
+                            if (n == 0) {
+                                Thread.yield();
+                            }
+                            for (int j = 0; j < n; j++) {
+                                Assert.assertEquals((i + j) % 1500, batch[j].size);
+                            }
+                            i += n;
+                        }
+                        Assert.assertTrue(queue.size() <= 64);
+                    }
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        });
+        producer.start();
+        consumer.start();
+        producer.join(60000);
+        consumer.join(60000);
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.getBacklog());
+        Assert.assertEquals(count, queue.getRemoved());
+    }
+}
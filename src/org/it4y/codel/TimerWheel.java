@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+/**
+ * Hierarchical timer wheel holding throttled flows until their time to send.
+ *
+ * Level 0 has 256 slots of one tick, level 1 has 64 slots of 256 ticks, timers further away
+ * wait in an overflow list. Higher levels are cascaded into lower levels when the wheel turns.
+ * Flows are linked through CodelPacketQueue.timer_next, scheduling and expiring a flow does not allocate.
+ * Times are in usec, a tick is granularity usec. The wheel only turns tick by tick while level 0 holds
+ * timers, otherwise it jumps to the next level 1 slot or overflow cascade.
+ */
+public class TimerWheel {
+    private static final int L0_BITS=8;
+    private static final int L0_SIZE=1<<L0_BITS;
+    private static final int L0_MASK=L0_SIZE-1;
+    private static final int L1_SIZE=64;
+    private static final int L1_MASK=L1_SIZE-1;
+    private static final long L1_SPAN=(long)L0_SIZE*L1_SIZE;
+
+    private final long granularity;
+    private final CodelPacketQueue[] level0=new CodelPacketQueue[L0_SIZE];
+    private final CodelPacketQueue[] level1=new CodelPacketQueue[L1_SIZE];
+    private CodelPacketQueue overflow;
+    //all timers before clock tick are expired
+    private long clock;
+    private int count;
+    //timers in level 0 and level 1
+    private int l0_count;
+    private int l1_count;
+
+    /**
+     * @param granularity tick in usec
+     * @param now current time in usec
+     */
+    public TimerWheel(final long granularity, final long now) {
+        this.granularity=granularity;
+        this.clock=now/granularity;
+    }
+
+    /**
+     * hold flow until expire
+     * @param flow flow, must not be linked in a FlowQueue or the wheel
+     * @param expire time to send in usec
+     */
+    public void schedule(final CodelPacketQueue flow, final long expire) {
+        flow.time_to_send=expire;
+        this.insert(flow);
+        this.count++;
+    }
+
+    private void insert(final CodelPacketQueue flow) {
+        final long tick=Math.max(this.clock,flow.time_to_send/ this.granularity);
+        final long delta=tick- this.clock;
+        if (delta < L0_SIZE) {
+            final int i=(int)tick & L0_MASK;
+            flow.timer_next= this.level0[i];
+            this.level0[i]=flow;
+            this.l0_count++;
+        } else if (delta < L1_SPAN) {
+            final int i=(int)(tick>>L0_BITS) & L1_MASK;
+            flow.timer_next= this.level1[i];
+            this.level1[i]=flow;
+            this.l1_count++;
+        } else {
+            flow.timer_next= this.overflow;
+            this.overflow=flow;
+        }
+    }
+
+    private void cascade(CodelPacketQueue flow, final boolean level1) {
+        while (flow != null) {
+            if (level1) {
+                this.l1_count--;
+            }
+            final CodelPacketQueue next=flow.timer_next;
+            this.insert(flow);
+            flow=next;
+        }
+    }
+
+    /**
+     * move all flows which expired at now to the end of target
+     * @param now time in usec
+     * @param target flow queue
+     * @return number of flows moved
+     */
+    public int advance(final long now, final FlowQueue target) {
+        final long tick=now/ this.granularity;
+        int n=0;
+        while (this.count > 0 && this.clock <= tick) {
+            final int i=(int) this.clock & L0_MASK;
+            if (i == 0) {
+                if ((this.clock & (L1_SPAN-1)) == 0) {
+                    final CodelPacketQueue far= this.overflow;
+                    this.overflow=null;
+                    this.cascade(far,false);
+                }
+                final int j=(int)(this.clock>>L0_BITS) & L1_MASK;
+                final CodelPacketQueue block= this.level1[j];
+                this.level1[j]=null;
+                this.cascade(block,true);
+            }
+            if (this.l0_count == 0) {
+                //nothing in level 0, skip to the next level 1 slot, or to the next overflow cascade when level 1 is empty
+                final long next= this.l1_count == 0 ? (this.clock | (L1_SPAN-1))+1 : (this.clock | L0_MASK)+1;
+                this.clock=Math.min(next,tick+1);
+                continue;
+            }
+            CodelPacketQueue flow= this.level0[i];
+            this.level0[i]=null;
+            while (flow != null) {
+                final CodelPacketQueue next=flow.timer_next;
+                flow.timer_next=null;
+                flow.throttled=false;
+                target.add(flow);
+                this.count--;
+                this.l0_count--;
+                n++;
+                flow=next;
+            }
+            this.clock++;
+        }
+        if (this.clock <= tick) {
+            //wheel is empty, no need to turn tick by tick
+            this.clock=tick+1;
+        }
+        return n;
+    }
+
+    /**
+     * @return earliest time to send in usec of all held flows, Long.MAX_VALUE if wheel is empty
+     */
+    public long nextExpire() {
+        if (this.count == 0) {
+            return Long.MAX_VALUE;
+        }
+        //a level may hold timers earlier than the first timer of the level below, check all levels
+        long expire=min(this.overflow);
+        for (int n=0;n<L0_SIZE;n++) {
+            final CodelPacketQueue flow= this.level0[(int)(this.clock+n) & L0_MASK];
+            if (flow != null) {
+                expire=Math.min(expire,min(flow));
+                break;
+            }
+        }
+        for (int n=1;n<=L1_SIZE;n++) {
+            final CodelPacketQueue flow= this.level1[(int)((this.clock>>L0_BITS)+n) & L1_MASK];
+            if (flow != null) {
+                expire=Math.min(expire,min(flow));
+                break;
+            }
+        }
+        return expire;
+    }
+
+    private static long min(CodelPacketQueue flow) {
+        long min=Long.MAX_VALUE;
+        while (flow != null) {
+            min=Math.min(min,flow.time_to_send);
+            flow=flow.timer_next;
+        }
+        return min;
+    }
+
+    /**
+     * move all flows to target, whatever their time to send
+     * @param target flow queue, null to only unlink the flows
+     */
+    public void flush(final FlowQueue target) {
+        for (int i=0;i<L0_SIZE;i++) {
+            this.flush(this.level0[i],target);
+            this.level0[i]=null;
+        }
+        for (int i=0;i<L1_SIZE;i++) {
+            this.flush(this.level1[i],target);
+            this.level1[i]=null;
+        }
+        this.flush(this.overflow,target);
+        this.overflow=null;
+        this.count=0;
+        this.l0_count=0;
+        this.l1_count=0;
+    }
+
+    private void flush(CodelPacketQueue flow, final FlowQueue target) {
+        while (flow != null) {
+            final CodelPacketQueue next=flow.timer_next;
+            flow.timer_next=null;
+            flow.throttled=false;
+            if (target != null) {
+                target.add(flow);
+            }
+            flow=next;
+        }
+    }
+
+    /**
+     * @return number of flows held
+     */
+    public int size() {
+        return this.count;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+    private static int[] indexes(FlowQueue queue) {
+        int[] result = new int[queue.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ((CodelPacketQueue) queue.remove()).index;
+        }
+        return result;
+    }
+
+    @Test
+    public void testLevels() {
+        //1 usec ticks : level 0 covers 256 usec, level 1 covers 16384 usec
+        TimerWheel wheel = new TimerWheel(1, 1000);
+        FlowQueue ready = new FlowQueue();
+        CodelPacketQueue[] flows = new CodelPacketQueue[5];
+        for (int i = 0; i < flows.length; i++) {
+            flows[i] = new CodelPacketQueue(i);
+        }
+        wheel.schedule(flows[0], 1100);
+        wheel.schedule(flows[1], 1000 + 5000);
+        wheel.schedule(flows[2], 1000 + 100000);
+        wheel.schedule(flows[3], 500);
+        wheel.schedule(flows[4], 1100);
+        Assert.assertEquals(5, wheel.size());
+        Assert.assertEquals(500, wheel.nextExpire());
+
+        //expired timer is released on next advance
+        Assert.assertEquals(1, wheel.advance(1000, ready));
+        Assert.assertArrayEquals(new int[]{3}, indexes(ready));
+        Assert.assertEquals(1100, wheel.nextExpire());
+
+        Assert.assertEquals(0, wheel.advance(1099, ready));
+        Assert.assertEquals(2, wheel.advance(1100, ready));
+        Assert.assertEquals(2, ready.size());
+        Assert.assertFalse(flows[0].throttled);
+        Assert.assertNull(flows[0].timer_next);
+        indexes(ready);
+
+        //level 1 timer is cascaded to level 0
+        Assert.assertEquals(6000, wheel.nextExpire());
+        Assert.assertEquals(0, wheel.advance(5999, ready));
+        Assert.assertEquals(1, wheel.advance(6000, ready));
+        Assert.assertArrayEquals(new int[]{1}, indexes(ready));
+
+        //overflow timer
+        Assert.assertEquals(101000, wheel.nextExpire());
+        Assert.assertEquals(0, wheel.advance(100999, ready));
+        Assert.assertEquals(1, wheel.advance(200000, ready));
+        Assert.assertArrayEquals(new int[]{2}, indexes(ready));
+        Assert.assertEquals(0, wheel.size());
+        Assert.assertEquals(Long.MAX_VALUE, wheel.nextExpire());
+    }
+
+    @Test
+    public void testNextExpireAcrossLevels() {
+        TimerWheel wheel = new TimerWheel(1, 0);
+        FlowQueue ready = new FlowQueue();
+        CodelPacketQueue a = new CodelPacketQueue(0);
+        CodelPacketQueue b = new CodelPacketQueue(1);
+        //a in level 1, after the wheel turns b in level 0 expires later than a
+        wheel.schedule(a, 300);
+        wheel.advance(200, ready);
+        wheel.schedule(b, 450);
+        Assert.assertEquals(300, wheel.nextExpire());
+        Assert.assertEquals(1, wheel.advance(300, ready));
+        Assert.assertSame(a, ready.remove());
+        Assert.assertEquals(450, wheel.nextExpire());
+        wheel.flush(ready);
+        Assert.assertSame(b, ready.remove());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testIdleGap() {
+        //1 usec ticks : a 1000 sec gap is 1G ticks, the wheel must not turn them one by one
+        TimerWheel wheel = new TimerWheel(1, 0);
+        FlowQueue ready = new FlowQueue();
+        CodelPacketQueue near = new CodelPacketQueue(0);
+        CodelPacketQueue far = new CodelPacketQueue(1);
+        CodelPacketQueue level1 = new CodelPacketQueue(2);
+        wheel.schedule(near, 100);
+        wheel.schedule(far, 1000000000L);
+        long start = System.nanoTime();
+        Assert.assertEquals(1, wheel.advance(100, ready));
+        Assert.assertSame(near, ready.remove());
+        //timers scheduled after a jump still expire on their tick
+        Assert.assertEquals(0, wheel.advance(500000000L, ready));
+        wheel.schedule(level1, 500000000L + 5000);
+        Assert.assertEquals(0, wheel.advance(500000000L + 4999, ready));
+        Assert.assertEquals(1, wheel.advance(500000000L + 5000, ready));
+        Assert.assertSame(level1, ready.remove());
+        Assert.assertEquals(0, wheel.advance(999999999L, ready));
+        Assert.assertEquals(1, wheel.advance(1000000000L, ready));
+        Assert.assertSame(far, ready.remove());
+        Assert.assertTrue("advance took " + (System.nanoTime() - start) / 1000 + " usec", System.nanoTime() - start < 1000000000L);
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testGranularity() {
+        TimerWheel wheel = new TimerWheel(64, 0);
+        FlowQueue ready = new FlowQueue();
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            wheel.schedule(new CodelPacketQueue(i), i * 997L);
+        }
+        //flows are released in tick order, never before their time
+        long now = 0;
+        int released = 0;
+        while (wheel.size() > 0) {
+            now += 500;
+            released += wheel.advance(now, ready);
+            while (!ready.isEmpty()) {
+                CodelPacketQueue flow = (CodelPacketQueue) ready.remove();
+                Assert.assertTrue(flow.time_to_send / 64 <= now / 64);
+                Assert.assertTrue(flow.time_to_send > now - 1000);
+            }
+        }
+        Assert.assertEquals(count, released);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Userspace UDP bottleneck : datagrams received on the listen channel are classified
+ * per source address, queued in SFQCodel and forwarded to target at a fixed rate.
+ *
+ * Everything runs on the thread calling run() using non blocking channels and one selector.
+ * Packets and their payload buffers (slices of one direct buffer) are allocated once and
+ * recycled. The forwarding path is not allocation free : DatagramChannel.receive() returns a
+ * new source SocketAddress for every datagram. The listen channel can not be connected and
+ * read() because flows are classified on that source address.
+ */
+public class UdpCodelProxy implements Runnable {
+    public static final int DEFAULT_POOL_SIZE=1024;
+    public static final int DEFAULT_MTU=2048;
+
+    private final SFQCodel codel;
+    private final InetSocketAddress target;
+    private final DatagramChannel in;
+    private final DatagramChannel out;
+    private final Selector selector;
+    private final SelectionKey outKey;
+    private final UdpPacket[] pool;
+    private final ByteBuffer discard;
+    private int free;
+
+    //token bucket in bytes
+    private final long rate;
+    private final long burst;
+    private long tokens;
+    private long lastRefill;
+
+    private UdpPacket pending;
+    private volatile boolean running;
+    private volatile IOException error;
+
+    private long received;
+    private long forwarded;
+    private long dropped;
+    private long overrun;
+
+    public UdpCodelProxy(final SFQCodel codel, final InetSocketAddress listen, final InetSocketAddress target, final long rate) throws IOException {
+        this(codel,listen,target,rate,DEFAULT_POOL_SIZE,DEFAULT_MTU);
+    }
+
+    /**
+     * @param codel queue used for the bottleneck
+     * @param listen address to receive datagrams on
+     * @param target address to forward datagrams to
+     * @param rate forward rate in bytes/sec, must be > 0
+     * @param poolSize maximum number of datagrams in flight in the proxy
+     * @param mtu maximum datagram size
+     * @throws IOException
+     */
+    public UdpCodelProxy(final SFQCodel codel, final InetSocketAddress listen, final InetSocketAddress target, final long rate, final int poolSize, final int mtu) throws IOException {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be > 0 : " + rate);
+        }
+        if (poolSize <= 0 || mtu <= 0) {
+            throw new IllegalArgumentException("invalid pool size " + poolSize + " or mtu " + mtu);
+        }
+        this.codel = codel;
+        this.target = target;
+        this.rate = rate;
+        //allow a burst of 10 msec, but at least 2 datagrams
+        this.burst = Math.max(2L * mtu, rate / 100);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+
+        //one direct buffer, sliced per packet
+        final ByteBuffer memory = ByteBuffer.allocateDirect(poolSize * mtu);
+        this.pool = new UdpPacket[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            memory.limit((i + 1) * mtu);
+            memory.position(i * mtu);
+            this.pool[i] = new UdpPacket(this, memory.slice());
+        }
+        this.free = poolSize;
+        this.discard = ByteBuffer.allocateDirect(mtu);
+
+        this.codel.setClassifier(new Classify() {
+            @Override
+            public int classifyPacket(Packet p) {
+                return ((UdpPacket) p).source.hashCode() & Integer.MAX_VALUE;
+            }
+        });
+
+        this.selector = Selector.open();
+        this.in = DatagramChannel.open();
+        this.in.configureBlocking(false);
+        this.in.socket().bind(listen);
+        this.in.register(this.selector, SelectionKey.OP_READ);
+        this.out = DatagramChannel.open();
+        this.out.configureBlocking(false);
+        this.out.connect(target);
+        this.outKey = this.out.register(this.selector, 0);
+    }
+
+    public SocketAddress getLocalAddress() {
+        return this.in.socket().getLocalSocketAddress();
+    }
+
+    public InetSocketAddress getTarget() {
+        return this.target;
+    }
+
+    public long getReceived() {
+        return this.received;
+    }
+
+    public long getForwarded() {
+        return this.forwarded;
+    }
+
+    /**
+     * @return number of datagrams dropped by SFQCodel
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * @return number of datagrams discarded because all packets of the pool are in use
+     */
+    public long getOverrun() {
+        return this.overrun;
+    }
+
+    @Override
+    public void run() {
+        this.running = true;
+        try {
+            while (this.running) {
+                final long wait = this.transmit();
+                if (wait > 0) {
+                    this.selector.select(wait);
+                } else {
+                    this.selector.select();
+                }
+                this.selector.selectedKeys().clear();
+                this.receive();
+            }
+        } catch (IOException e) {
+            this.error = e;
+        } finally {
+            this.closeChannels();
+        }
+    }
+
+    /**
+     * @return I/O error that stopped run() and closed the channels, null if none
+     */
+    public IOException getError() {
+        return this.error;
+    }
+
+    /**
+     * stop the proxy, run() returns and channels are closed
+     */
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * receive all available datagrams and queue them
+     */
+    private void receive() throws IOException {
+        while (true) {
+            if (this.free == 0) {
+                //no packets left, read and discard to keep the socket drained
+                this.discard.clear();
+                if (this.in.receive(this.discard) == null) {
+                    return;
+                }
+                this.received++;
+                this.overrun++;
+                continue;
+            }
+            final UdpPacket p = this.pool[this.free - 1];
+            p.buffer.clear();
+            //allocates the source address, kept in the packet for the classifier
+            final SocketAddress source = this.in.receive(p.buffer);
+            if (source == null) {
+                return;
+            }
+            this.pool[--this.free] = null;
+            p.buffer.flip();
+            p.source = source;
+            p.size = p.buffer.remaining();
+            this.received++;
+            this.codel.enqueue(p);
+        }
+    }
+
+    /**
+     * forward packets as long tokens are available
+     * @return msec to wait for tokens, 0 if nothing to send or waiting for socket
+     */
+    private long transmit() throws IOException {
+        if ((this.outKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            this.outKey.interestOps(0);
+        }
+        this.refill();
+        while (true) {
+            if (this.pending == null) {
+                this.pending = this.next();
+                if (this.pending == null) {
+                    return 0;
+                }
+            }
+            if (this.tokens < this.pending.size) {
+                final long need = this.pending.size - this.tokens;
+                return Math.max(1L, need * 1000L / this.rate);
+            }
+            if (this.out.write(this.pending.buffer) == 0) {
+                //socket buffer full, wait until writable
+                this.outKey.interestOps(SelectionKey.OP_WRITE);
+                return 0;
+            }
+            this.tokens = this.tokens - this.pending.size;
+            this.forwarded++;
+            this.release(this.pending);
+            this.pending = null;
+        }
+    }
+
+    private UdpPacket next() {
+        while (true) {
+            final Packet p = this.codel.dequeue();
+            if (p != null) {
+                return (UdpPacket) p;
+            }
+            //null could be a flow with all packets dropped
+            if (this.codel.getFlowSize() == 0) {
+                return null;
+            }
+        }
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        //bucket is full after 1 sec anyway, prevent overflow
+        final long delta = Math.min(now - this.lastRefill, 1000000000L);
+        final long add = delta * this.rate / 1000000000L;
+        if (add > 0) {
+            this.tokens = Math.min(this.burst, this.tokens + add);
+            this.lastRefill = now;
+        }
+    }
+
+    void dropped(final UdpPacket p) {
+        this.dropped++;
+        this.release(p);
+    }
+
+    private void release(final UdpPacket p) {
+        p.source = null;
+        this.pool[this.free++] = p;
+    }
+
+    private void closeChannels() {
+        try {
+            this.in.close();
+        } catch (IOException ignore) {
+        }
+        try {
+            this.out.close();
+        } catch (IOException ignore) {
+        }
+        try {
+            this.selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
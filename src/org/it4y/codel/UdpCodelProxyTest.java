@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+public class UdpCodelProxyTest {
+
+    private static InetSocketAddress localhost(int port) throws Exception {
+        return new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+    }
+
+    @Test
+    public void testForwardLocalhost() throws Exception {
+        DatagramSocket receiver = new DatagramSocket(localhost(0));
+        receiver.setSoTimeout(2000);
+        DatagramSocket sender = new DatagramSocket(localhost(0));
+        //10 Mbyte/sec, should not limit this test
+        UdpCodelProxy proxy = new UdpCodelProxy(new SFQCodel(), localhost(0), (InetSocketAddress) receiver.getLocalSocketAddress(), 10000000L);
+        Thread thread = new Thread(proxy);
+        thread.start();
+        try {
+            int count = 100;
+            byte[] data = new byte[500];
+            for (int i = 0; i < count; i++) {
+                data[0] = (byte) i;
+                sender.send(new DatagramPacket(data, data.length, proxy.getLocalAddress()));
+                //give receiver some time, this is not a load test
+                if (i % 10 == 0) {
+                    Thread.sleep(1);
+                }
+            }
+            byte[] buf = new byte[2048];
+            for (int i = 0; i < count; i++) {
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                receiver.receive(p);
+                Assert.assertEquals(500, p.getLength());
+                //single source, so single flow and ordered
+                Assert.assertEquals((byte) i, buf[0]);
+            }
+        } finally {
+            proxy.close();
+            thread.join();
+            sender.close();
+            receiver.close();
+        }
+        Assert.assertEquals(100, proxy.getReceived());
+        Assert.assertEquals(100, proxy.getForwarded());
+        Assert.assertEquals(0, proxy.getDropped());
+        Assert.assertEquals(0, proxy.getOverrun());
+        Assert.assertNull(proxy.getError());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() throws Exception {
+        new UdpCodelProxy(new SFQCodel(), localhost(0), localhost(9), 0);
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        DatagramSocket receiver = new DatagramSocket(localhost(0));
+        receiver.setSoTimeout(2000);
+        DatagramSocket sender = new DatagramSocket(localhost(0));
+        //100 Kbyte/sec, burst is 2 datagrams
+        UdpCodelProxy proxy = new UdpCodelProxy(new SFQCodel(), localhost(0), (InetSocketAddress) receiver.getLocalSocketAddress(), 100000L, 64, 1000);
+        Thread thread = new Thread(proxy);
+        thread.start();
+        long time;
+        try {
+            byte[] data = new byte[1000];
+            long start = System.nanoTime();
+            for (int i = 0; i < 12; i++) {
+                sender.send(new DatagramPacket(data, data.length, proxy.getLocalAddress()));
+            }
+            byte[] buf = new byte[2048];
+            for (int i = 0; i < 12; i++) {
+                receiver.receive(new DatagramPacket(buf, buf.length));
+            }
+            time = (System.nanoTime() - start) / 1000000L;
+        } finally {
+            proxy.close();
+            thread.join();
+            sender.close();
+            receiver.close();
+        }
+        //12000 bytes - 2000 burst at 100 bytes/msec
+        Assert.assertTrue("time " + time, time >= 90);
+        Assert.assertEquals(12, proxy.getForwarded());
+    }
+}
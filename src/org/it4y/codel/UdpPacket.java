@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Luc Willems (T.M.M.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.it4y.codel;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Packet carrying a received datagram. The payload buffer is a slice of a direct
+ * buffer owned by the proxy, packets are recycled when they are dropped or sent.
+ */
+class UdpPacket extends Packet {
+    final ByteBuffer buffer;
+    SocketAddress source;
+    private final UdpCodelProxy owner;
+
+    UdpPacket(final UdpCodelProxy owner, final ByteBuffer buffer) {
+        super(0);
+        this.owner = owner;
+        this.buffer = buffer;
+    }
+
+    /**
+     * called when SFQCodel drops this packet
+     */
+    @Override
+    public void drop() {
+        this.owner.dropped(this);
+    }
+}